@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.ac.rdg.resc.cloudmask.CloudMaskDatasetFactory.MaskedDataset;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * Base class for benchmarks which need a {@link MaskedDataset}. A synthetic
+ * dataset of the requested size is created by {@link SyntheticSceneGenerator}
+ * before each trial and deleted afterwards.
+ * 
+ * The dataset caches what it reads and generates (see
+ * {@link CachedReadBenchmark}). Overviews are never persisted to disk, so
+ * nothing carries over between trials.
+ *
+ * @author Guy Griffiths
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public abstract class DatasetBenchmark {
+    protected static final int N_CHANNELS = 8;
+    /* Fixed, so that results are comparable between runs */
+    private static final long SEED = 20141001L;
+
+    @Param({ "512", "2048", "8192" })
+    public int size;
+
+    protected File datasetFile;
+    protected MaskedDataset dataset;
+
+    @Setup(Level.Trial)
+    public void createDataset() throws Exception {
+        datasetFile = File.createTempFile("cloudmask-benchmark-", ".nc");
+        new SyntheticSceneGenerator(size, size, N_CHANNELS, SEED).write(datasetFile);
+        CloudMaskDatasetFactory factory = new CloudMaskDatasetFactory();
+        factory.setOverviewDiskSize(0);
+        dataset = factory.createDataset("benchmark", datasetFile.getAbsolutePath(), false);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDataset() {
+        dataset.close();
+        datasetFile.delete();
+    }
+
+    protected static String channel(int i) {
+        return SyntheticSceneGenerator.channelName(i);
+    }
+
+    protected static String mask(int i) {
+        return channel(i) + "-" + MaskedDataset.MASK_SUFFIX;
+    }
+
+    /**
+     * Plugin-generated values are only calculated when they are accessed, so
+     * every value needs reading to measure the full cost
+     */
+    protected static void consumeAll(Array4D<Number> values, Blackhole blackhole) {
+        int xSize = values.getXSize();
+        int ySize = values.getYSize();
+        for (int y = 0; y < ySize; y++) {
+            for (int x = 0; x < xSize; x++) {
+                blackhole.consume(values.get(0, 0, y, x));
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.awt.image.BufferedImage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import uk.ac.rdg.resc.cloudmask.CloudMaskDatasetFactory.MaskedDataset;
+import uk.ac.rdg.resc.edal.graphics.utils.SimpleFeatureCatalogue;
+
+/**
+ * Measures rendering the full domain of a variable, with its threshold mask,
+ * at different viewport sizes. Where the viewport is smaller than the grid,
+ * this draws from overviews, so cold renders include building them.
+ *
+ * @author Guy Griffiths
+ */
+public class RenderBenchmark extends CachedReadBenchmark {
+    @Param({ "256", "1024", "2048" })
+    public int viewport;
+
+    private EdalImageGenerator imageGenerator;
+
+    @Setup(Level.Trial)
+    public void createImageGenerator() throws Exception {
+        /*
+         * No feature caching, so that each render reads through the
+         * dataset's caches, which are cleared before cold renders
+         */
+        SimpleFeatureCatalogue<MaskedDataset> catalogue = new SimpleFeatureCatalogue<>(dataset,
+                false);
+        imageGenerator = new EdalImageGenerator(channel(1), catalogue);
+    }
+
+    @Benchmark
+    public BufferedImage render() {
+        return imageGenerator.generateImage(0, 0, size, size, viewport, viewport);
+    }
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javafx.application.Platform;
+
+/**
+ * Periodically saves a {@link SessionSnapshot} of the current dataset to a
+ * rotating set of files alongside it.
+ * 
+ * The snapshot itself is taken on the FX thread (which is cheap), and then
+ * written out on a background thread, so the UI never waits for an autosave.
+ * 
+ * Autosave files can be recovered with
+ * {@link EditJournal#replay(File, CloudMaskDatasetFactory.MaskedDataset)}
+ *
+ * @author Guy Griffiths
+ */
+public class Autosaver {
+    public static final String AUTOSAVE_SUFFIX = ".autosave";
+
+    private final File datasetFile;
+    private final int nFiles;
+    private final Callable<SessionSnapshot> snapshotSource;
+    private final ScheduledExecutorService executor;
+
+    private int nextFile = 0;
+
+    /**
+     * Creates and starts a new {@link Autosaver}
+     * 
+     * @param datasetFile
+     *            The dataset being edited
+     * @param intervalSeconds
+     *            How often to autosave
+     * @param nFiles
+     *            The number of autosave files to rotate between
+     * @param snapshotSource
+     *            Provides the snapshots to save. This will be called on the
+     *            FX thread, and may return <code>null</code> if nothing has
+     *            changed since the last autosave
+     */
+    public Autosaver(File datasetFile, long intervalSeconds, int nFiles,
+            Callable<SessionSnapshot> snapshotSource) {
+        this.datasetFile = datasetFile;
+        this.nFiles = Math.max(1, nFiles);
+        this.snapshotSource = snapshotSource;
+
+        /*
+         * Carry on rotating from the oldest existing file
+         */
+        File latest = latestAutosave(datasetFile);
+        for (int i = 0; i < this.nFiles; i++) {
+            if (autosaveFile(datasetFile, i).equals(latest)) {
+                nextFile = (i + 1) % this.nFiles;
+            }
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "autosave");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                autosave();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void autosave() {
+        SessionSnapshot snapshot;
+        try {
+            FutureTask<SessionSnapshot> capture = new FutureTask<>(snapshotSource);
+            Platform.runLater(capture);
+            snapshot = capture.get();
+        } catch (InterruptedException e) {
+            return;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (snapshot == null) {
+            return;
+        }
+
+        /*
+         * Write to a temporary file and move it into place, so that a crash
+         * whilst writing never leaves us with a broken autosave
+         */
+        File target = autosaveFile(datasetFile, nextFile);
+        File temp = new File(target.getAbsolutePath() + ".tmp");
+        try {
+            snapshot.writeTo(temp, datasetFile);
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            nextFile = (nextFile + 1) % nFiles;
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        }
+    }
+
+    /**
+     * Stops autosaving. Existing autosave files are left in place.
+     */
+    public void stop() {
+        executor.shutdown();
+    }
+
+    /**
+     * Stops autosaving and removes all autosave files. Any autosave which is
+     * currently being written will finish before the files are removed.
+     */
+    public void stopAndDelete() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < nFiles; i++) {
+                    autosaveFile(datasetFile, i).delete();
+                }
+            }
+        });
+        executor.shutdown();
+    }
+
+    /**
+     * Removes all autosave files, but keeps autosaving. Used once the dataset
+     * has been explicitly saved.
+     */
+    public void deleteFiles() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < nFiles; i++) {
+                    autosaveFile(datasetFile, i).delete();
+                }
+            }
+        });
+    }
+
+    private static File autosaveFile(File datasetFile, int index) {
+        return new File(datasetFile.getAbsolutePath() + AUTOSAVE_SUFFIX + "." + index);
+    }
+
+    /**
+     * Finds the most recent autosave of a dataset
+     * 
+     * @param datasetFile
+     *            The dataset file
+     * @return The most recently written autosave file, or <code>null</code> if
+     *         none exist
+     */
+    public static File latestAutosave(File datasetFile) {
+        File latest = null;
+        File[] candidates = datasetFile.getAbsoluteFile().getParentFile().listFiles();
+        if (candidates == null) {
+            return null;
+        }
+        String prefix = datasetFile.getName() + AUTOSAVE_SUFFIX + ".";
+        for (File candidate : candidates) {
+            if (candidate.getName().startsWith(prefix) && !candidate.getName().endsWith(".tmp")
+                    && (latest == null || candidate.lastModified() > latest.lastModified())) {
+                latest = candidate;
+            }
+        }
+        return latest;
+    }
+}
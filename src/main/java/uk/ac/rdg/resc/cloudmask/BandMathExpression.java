@@ -0,0 +1,840 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An arithmetic expression over a number of variables, compiled into a tree
+ * of kernels which each process a whole row of values at a time.
+ * 
+ * Each kernel is a single tight loop over primitive arrays, specialised for
+ * its operation (and for constant operands), so evaluating a row makes one
+ * pass per operation over data which is already in the cache, with no boxing
+ * or per-pixel dispatch. Parts of the expression which don't use any
+ * variables are evaluated once, when it is compiled.
+ * 
+ * Expressions may contain:
+ * <ul>
+ * <li>Variables, by name. Names which are not plain identifiers (e.g. which
+ * contain a "-") should be enclosed in double quotes</li>
+ * <li>Numbers, and <code>NaN</code></li>
+ * <li>The operators <code>+ - * / ^</code> (where <code>^</code> is a
+ * power)</li>
+ * <li>The comparisons <code>&lt; &lt;= &gt; &gt;= == !=</code>, which give 1
+ * or 0</li>
+ * <li>The logical operators <code>&amp;&amp; || !</code>, which treat
+ * non-zero values as true</li>
+ * <li>Conditions, as <code>condition ? a : b</code></li>
+ * <li>The functions <code>abs, sqrt, exp, log, log10, min, max</code></li>
+ * </ul>
+ * 
+ * A missing (NaN) value in any input gives a missing output, except in the
+ * branch of a condition which isn't taken. So
+ * <code>(b4 - b5) / (b4 + b5) &gt; 0.1 ? b7 : NaN</code> gives b7 wherever
+ * the normalised difference is above 0.1, and is missing elsewhere.
+ *
+ * @author Guy Griffiths
+ */
+public final class BandMathExpression {
+    private enum Operation {
+        ADD, SUBTRACT, MULTIPLY, DIVIDE, POWER, LESS, LESS_EQUAL, GREATER, GREATER_EQUAL,
+        EQUAL, NOT_EQUAL, AND, OR, MIN, MAX, NEGATE, NOT, ABS, SQRT, EXP, LOG, LOG10
+    }
+
+    private final String expression;
+    private final String[] variables;
+    private final Kernel root;
+    /*
+     * Intermediate rows for each kernel, held per thread so that rows can be
+     * evaluated concurrently without allocating
+     */
+    private final ThreadLocal<float[][]> buffers;
+
+    /**
+     * Compiles an expression
+     * 
+     * @param expression
+     *            The expression to compile
+     * @throws IllegalArgumentException
+     *             If the expression is not valid. The message describes the
+     *             problem
+     */
+    public BandMathExpression(String expression) {
+        this.expression = expression;
+        Parser parser = new Parser(expression);
+        root = parser.parse();
+        variables = parser.variables.toArray(new String[parser.variables.size()]);
+        final int nBuffers = parser.nBuffers;
+        buffers = new ThreadLocal<float[][]>() {
+            @Override
+            protected float[][] initialValue() {
+                return new float[nBuffers][0];
+            }
+        };
+    }
+
+    /**
+     * @return The expression, as it was given
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return The names of the variables used in the expression, in the order
+     *         they first appear. This is the order in which rows should be
+     *         passed to {@link #evaluateRow(float[][], int, float[])}
+     */
+    public String[] getVariables() {
+        return variables.clone();
+    }
+
+    /**
+     * Evaluates the expression for a row of values
+     * 
+     * @param sourceRows
+     *            A row of values for each variable, in the order given by
+     *            {@link #getVariables()}. Missing values are NaN
+     * @param length
+     *            The number of values in the row
+     * @param out
+     *            The buffer to write the results to
+     */
+    public void evaluateRow(float[][] sourceRows, int length, float[] out) {
+        float[][] rowBuffers = buffers.get();
+        if (rowBuffers.length > 0 && rowBuffers[0].length < length) {
+            for (int i = 0; i < rowBuffers.length; i++) {
+                rowBuffers[i] = new float[length];
+            }
+        }
+        float[] result = root.evaluate(sourceRows, rowBuffers, length);
+        System.arraycopy(result, 0, out, 0, length);
+    }
+
+    /**
+     * Evaluates the expression for a single set of values
+     * 
+     * @param values
+     *            The value of each variable, in the order given by
+     *            {@link #getVariables()}
+     * @return The result
+     */
+    public float evaluate(float... values) {
+        float[][] sourceRows = new float[values.length][1];
+        for (int i = 0; i < values.length; i++) {
+            sourceRows[i][0] = values[i];
+        }
+        float[] out = new float[1];
+        evaluateRow(sourceRows, 1, out);
+        return out[0];
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * Evaluates part of an expression for a row of values
+     */
+    private static abstract class Kernel {
+        /**
+         * @return An array whose first <code>length</code> values are the
+         *         results. This will either be a source row or one of the
+         *         buffers, so must not be modified
+         */
+        abstract float[] evaluate(float[][] sourceRows, float[][] buffers, int length);
+    }
+
+    private static final class VariableKernel extends Kernel {
+        private final int index;
+
+        private VariableKernel(int index) {
+            this.index = index;
+        }
+
+        @Override
+        float[] evaluate(float[][] sourceRows, float[][] buffers, int length) {
+            return sourceRows[index];
+        }
+    }
+
+    private static final class ConstantKernel extends Kernel {
+        private final float value;
+        /*
+         * -1 until the constant is needed as a whole row. Constants which are
+         * folded away or used by a ScalarKernel never need a buffer
+         */
+        private final int buffer;
+
+        private ConstantKernel(float value) {
+            this(value, -1);
+        }
+
+        private ConstantKernel(float value, int buffer) {
+            this.value = value;
+            this.buffer = buffer;
+        }
+
+        @Override
+        float[] evaluate(float[][] sourceRows, float[][] buffers, int length) {
+            float[] out = buffers[buffer];
+            for (int i = 0; i < length; i++) {
+                out[i] = value;
+            }
+            return out;
+        }
+    }
+
+    private static final class UnaryKernel extends Kernel {
+        private final Operation operation;
+        private final Kernel operand;
+        private final int buffer;
+
+        private UnaryKernel(Operation operation, Kernel operand, int buffer) {
+            this.operation = operation;
+            this.operand = operand;
+            this.buffer = buffer;
+        }
+
+        @Override
+        float[] evaluate(float[][] sourceRows, float[][] buffers, int length) {
+            float[] a = operand.evaluate(sourceRows, buffers, length);
+            float[] out = buffers[buffer];
+            switch (operation) {
+            case NEGATE:
+                for (int i = 0; i < length; i++) {
+                    out[i] = -a[i];
+                }
+                break;
+            case NOT:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] != a[i] ? Float.NaN : (a[i] == 0f ? 1f : 0f);
+                }
+                break;
+            case ABS:
+                for (int i = 0; i < length; i++) {
+                    out[i] = Math.abs(a[i]);
+                }
+                break;
+            case SQRT:
+                for (int i = 0; i < length; i++) {
+                    out[i] = (float) Math.sqrt(a[i]);
+                }
+                break;
+            case EXP:
+                for (int i = 0; i < length; i++) {
+                    out[i] = (float) Math.exp(a[i]);
+                }
+                break;
+            case LOG:
+                for (int i = 0; i < length; i++) {
+                    out[i] = (float) Math.log(a[i]);
+                }
+                break;
+            case LOG10:
+                for (int i = 0; i < length; i++) {
+                    out[i] = (float) Math.log10(a[i]);
+                }
+                break;
+            default:
+                throw new IllegalStateException(operation + " is not a unary operation");
+            }
+            return out;
+        }
+    }
+
+    private static final class BinaryKernel extends Kernel {
+        private final Operation operation;
+        private final Kernel left;
+        private final Kernel right;
+        private final int buffer;
+
+        private BinaryKernel(Operation operation, Kernel left, Kernel right, int buffer) {
+            this.operation = operation;
+            this.left = left;
+            this.right = right;
+            this.buffer = buffer;
+        }
+
+        @Override
+        float[] evaluate(float[][] sourceRows, float[][] buffers, int length) {
+            float[] a = left.evaluate(sourceRows, buffers, length);
+            float[] b = right.evaluate(sourceRows, buffers, length);
+            float[] out = buffers[buffer];
+            switch (operation) {
+            case ADD:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] + b[i];
+                }
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] - b[i];
+                }
+                break;
+            case MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] * b[i];
+                }
+                break;
+            case DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] / b[i];
+                }
+                break;
+            case POWER:
+                for (int i = 0; i < length; i++) {
+                    out[i] = power(a[i], b[i]);
+                }
+                break;
+            case LESS:
+                for (int i = 0; i < length; i++) {
+                    out[i] = truth(a[i] < b[i], a[i], b[i]);
+                }
+                break;
+            case LESS_EQUAL:
+                for (int i = 0; i < length; i++) {
+                    out[i] = truth(a[i] <= b[i], a[i], b[i]);
+                }
+                break;
+            case GREATER:
+                for (int i = 0; i < length; i++) {
+                    out[i] = truth(a[i] > b[i], a[i], b[i]);
+                }
+                break;
+            case GREATER_EQUAL:
+                for (int i = 0; i < length; i++) {
+                    out[i] = truth(a[i] >= b[i], a[i], b[i]);
+                }
+                break;
+            case EQUAL:
+                for (int i = 0; i < length; i++) {
+                    out[i] = truth(a[i] == b[i], a[i], b[i]);
+                }
+                break;
+            case NOT_EQUAL:
+                for (int i = 0; i < length; i++) {
+                    out[i] = truth(a[i] != b[i], a[i], b[i]);
+                }
+                break;
+            case AND:
+                for (int i = 0; i < length; i++) {
+                    out[i] = truth(a[i] != 0f && b[i] != 0f, a[i], b[i]);
+                }
+                break;
+            case OR:
+                for (int i = 0; i < length; i++) {
+                    out[i] = truth(a[i] != 0f || b[i] != 0f, a[i], b[i]);
+                }
+                break;
+            case MIN:
+                for (int i = 0; i < length; i++) {
+                    out[i] = Math.min(a[i], b[i]);
+                }
+                break;
+            case MAX:
+                for (int i = 0; i < length; i++) {
+                    out[i] = Math.max(a[i], b[i]);
+                }
+                break;
+            default:
+                throw new IllegalStateException(operation + " is not a binary operation");
+            }
+            return out;
+        }
+    }
+
+    /**
+     * A {@link BinaryKernel} whose right operand is constant - by far the
+     * most common case (e.g. <code>b4 &gt; 0.1</code> or
+     * <code>b4 - 273.15</code>)
+     */
+    private static final class ScalarKernel extends Kernel {
+        private final Operation operation;
+        private final Kernel left;
+        private final float b;
+        private final int buffer;
+
+        private ScalarKernel(Operation operation, Kernel left, float b, int buffer) {
+            this.operation = operation;
+            this.left = left;
+            this.b = b;
+            this.buffer = buffer;
+        }
+
+        @Override
+        float[] evaluate(float[][] sourceRows, float[][] buffers, int length) {
+            float[] a = left.evaluate(sourceRows, buffers, length);
+            float[] out = buffers[buffer];
+            switch (operation) {
+            case ADD:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] + b;
+                }
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] - b;
+                }
+                break;
+            case MULTIPLY:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] * b;
+                }
+                break;
+            case DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    out[i] = a[i] / b;
+                }
+                break;
+            case LESS:
+                for (int i = 0; i < length; i++) {
+                    out[i] = truth(a[i] < b, a[i], b);
+                }
+                break;
+            case LESS_EQUAL:
+                for (int i = 0; i < length; i++) {
+                    out[i] = truth(a[i] <= b, a[i], b);
+                }
+                break;
+            case GREATER:
+                for (int i = 0; i < length; i++) {
+                    out[i] = truth(a[i] > b, a[i], b);
+                }
+                break;
+            case GREATER_EQUAL:
+                for (int i = 0; i < length; i++) {
+                    out[i] = truth(a[i] >= b, a[i], b);
+                }
+                break;
+            default:
+                throw new IllegalStateException(operation + " has no scalar kernel");
+            }
+            return out;
+        }
+    }
+
+    private static final class ConditionalKernel extends Kernel {
+        private final Kernel condition;
+        private final Kernel ifTrue;
+        private final Kernel ifFalse;
+        private final int buffer;
+
+        private ConditionalKernel(Kernel condition, Kernel ifTrue, Kernel ifFalse, int buffer) {
+            this.condition = condition;
+            this.ifTrue = ifTrue;
+            this.ifFalse = ifFalse;
+            this.buffer = buffer;
+        }
+
+        @Override
+        float[] evaluate(float[][] sourceRows, float[][] buffers, int length) {
+            /*
+             * Both branches are evaluated for the whole row, which is much
+             * cheaper than evaluating them a value at a time
+             */
+            float[] c = condition.evaluate(sourceRows, buffers, length);
+            float[] a = ifTrue.evaluate(sourceRows, buffers, length);
+            float[] b = ifFalse.evaluate(sourceRows, buffers, length);
+            float[] out = buffers[buffer];
+            for (int i = 0; i < length; i++) {
+                out[i] = c[i] != c[i] ? Float.NaN : (c[i] != 0f ? a[i] : b[i]);
+            }
+            return out;
+        }
+    }
+
+    /**
+     * @return 1 if the condition is true, 0 if not, or NaN if either operand
+     *         is missing
+     */
+    private static float truth(boolean condition, float a, float b) {
+        if (a != a || b != b) {
+            return Float.NaN;
+        }
+        return condition ? 1f : 0f;
+    }
+
+    /**
+     * @return a to the power b, or NaN if either is missing. Math.pow gives 1
+     *         for NaN to the power 0
+     */
+    private static float power(float a, float b) {
+        if (a != a || b != b) {
+            return Float.NaN;
+        }
+        return (float) Math.pow(a, b);
+    }
+
+    /**
+     * A recursive descent parser which builds the kernels as it goes
+     */
+    private static final class Parser {
+        private final String text;
+        private int pos = 0;
+        private final List<String> variables = new ArrayList<>();
+        private int nBuffers = 0;
+
+        private Parser(String text) {
+            this.text = text;
+        }
+
+        private Kernel parse() {
+            if (text == null || text.trim().isEmpty()) {
+                throw new IllegalArgumentException("The expression is empty");
+            }
+            Kernel kernel = parseConditional();
+            skipWhitespace();
+            if (pos < text.length()) {
+                throw error("Unexpected \"" + text.charAt(pos) + "\"");
+            }
+            return row(kernel);
+        }
+
+        private Kernel parseConditional() {
+            Kernel condition = parseOr();
+            if (accept("?")) {
+                Kernel ifTrue = parseConditional();
+                expect(":");
+                Kernel ifFalse = parseConditional();
+                if (condition instanceof ConstantKernel) {
+                    float c = ((ConstantKernel) condition).value;
+                    if (c != c) {
+                        return constant(Float.NaN);
+                    }
+                    return c != 0f ? ifTrue : ifFalse;
+                }
+                return new ConditionalKernel(condition, row(ifTrue), row(ifFalse), nBuffers++);
+            }
+            return condition;
+        }
+
+        private Kernel parseOr() {
+            Kernel kernel = parseAnd();
+            while (accept("||")) {
+                kernel = binary(Operation.OR, kernel, parseAnd());
+            }
+            return kernel;
+        }
+
+        private Kernel parseAnd() {
+            Kernel kernel = parseComparison();
+            while (accept("&&")) {
+                kernel = binary(Operation.AND, kernel, parseComparison());
+            }
+            return kernel;
+        }
+
+        private Kernel parseComparison() {
+            Kernel kernel = parseAdditive();
+            if (accept("<=")) {
+                return binary(Operation.LESS_EQUAL, kernel, parseAdditive());
+            } else if (accept(">=")) {
+                return binary(Operation.GREATER_EQUAL, kernel, parseAdditive());
+            } else if (accept("==")) {
+                return binary(Operation.EQUAL, kernel, parseAdditive());
+            } else if (accept("!=")) {
+                return binary(Operation.NOT_EQUAL, kernel, parseAdditive());
+            } else if (accept("<")) {
+                return binary(Operation.LESS, kernel, parseAdditive());
+            } else if (accept(">")) {
+                return binary(Operation.GREATER, kernel, parseAdditive());
+            }
+            return kernel;
+        }
+
+        private Kernel parseAdditive() {
+            Kernel kernel = parseMultiplicative();
+            while (true) {
+                if (accept("+")) {
+                    kernel = binary(Operation.ADD, kernel, parseMultiplicative());
+                } else if (accept("-")) {
+                    kernel = binary(Operation.SUBTRACT, kernel, parseMultiplicative());
+                } else {
+                    return kernel;
+                }
+            }
+        }
+
+        private Kernel parseMultiplicative() {
+            Kernel kernel = parseUnary();
+            while (true) {
+                if (accept("*")) {
+                    kernel = binary(Operation.MULTIPLY, kernel, parseUnary());
+                } else if (accept("/")) {
+                    kernel = binary(Operation.DIVIDE, kernel, parseUnary());
+                } else {
+                    return kernel;
+                }
+            }
+        }
+
+        private Kernel parseUnary() {
+            if (accept("-")) {
+                return unary(Operation.NEGATE, parseUnary());
+            } else if (accept("!")) {
+                return unary(Operation.NOT, parseUnary());
+            }
+            return parsePower();
+        }
+
+        private Kernel parsePower() {
+            Kernel kernel = parsePrimary();
+            if (accept("^")) {
+                /*
+                 * Right-associative, and binds more tightly than a unary
+                 * minus on its left, so -2^2 is -4
+                 */
+                return binary(Operation.POWER, kernel, parseUnary());
+            }
+            return kernel;
+        }
+
+        private Kernel parsePrimary() {
+            skipWhitespace();
+            if (pos >= text.length()) {
+                throw error("Unexpected end of expression");
+            }
+            char c = text.charAt(pos);
+            if (c == '(') {
+                pos++;
+                Kernel kernel = parseConditional();
+                expect(")");
+                return kernel;
+            } else if (c == '"') {
+                int end = text.indexOf('"', pos + 1);
+                if (end < 0) {
+                    throw error("Unclosed quote");
+                }
+                String name = text.substring(pos + 1, end);
+                pos = end + 1;
+                return variable(name);
+            } else if (Character.isDigit(c) || c == '.') {
+                return parseNumber();
+            } else if (Character.isLetter(c) || c == '_') {
+                int start = pos;
+                while (pos < text.length()
+                        && (Character.isLetterOrDigit(text.charAt(pos))
+                                || text.charAt(pos) == '_' || text.charAt(pos) == '.')) {
+                    pos++;
+                }
+                String name = text.substring(start, pos);
+                if (accept("(")) {
+                    return parseFunction(name, start);
+                } else if ("NaN".equals(name)) {
+                    return constant(Float.NaN);
+                }
+                return variable(name);
+            }
+            throw error("Unexpected \"" + c + "\"");
+        }
+
+        private Kernel parseNumber() {
+            int start = pos;
+            while (pos < text.length()
+                    && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                pos++;
+            }
+            if (pos < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+                pos++;
+                if (pos < text.length() && (text.charAt(pos) == '+' || text.charAt(pos) == '-')) {
+                    pos++;
+                }
+                while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+            }
+            String number = text.substring(start, pos);
+            try {
+                return constant(Float.parseFloat(number));
+            } catch (NumberFormatException e) {
+                pos = start;
+                throw error("Invalid number \"" + number + "\"");
+            }
+        }
+
+        private Kernel parseFunction(String name, int start) {
+            List<Kernel> args = new ArrayList<>();
+            if (!accept(")")) {
+                do {
+                    args.add(parseConditional());
+                } while (accept(","));
+                expect(")");
+            }
+            Operation operation;
+            int nArgs = 1;
+            switch (name) {
+            case "abs":
+                operation = Operation.ABS;
+                break;
+            case "sqrt":
+                operation = Operation.SQRT;
+                break;
+            case "exp":
+                operation = Operation.EXP;
+                break;
+            case "log":
+                operation = Operation.LOG;
+                break;
+            case "log10":
+                operation = Operation.LOG10;
+                break;
+            case "min":
+                operation = Operation.MIN;
+                nArgs = 2;
+                break;
+            case "max":
+                operation = Operation.MAX;
+                nArgs = 2;
+                break;
+            default:
+                pos = start;
+                throw error("Unknown function \"" + name + "\"");
+            }
+            if (args.size() != nArgs) {
+                pos = start;
+                throw error(name + " needs " + nArgs + " argument" + (nArgs == 1 ? "" : "s"));
+            }
+            if (nArgs == 1) {
+                return unary(operation, args.get(0));
+            } else {
+                return binary(operation, args.get(0), args.get(1));
+            }
+        }
+
+        private Kernel variable(String name) {
+            if (name.isEmpty()) {
+                throw error("Empty variable name");
+            }
+            int index = variables.indexOf(name);
+            if (index < 0) {
+                index = variables.size();
+                variables.add(name);
+            }
+            return new VariableKernel(index);
+        }
+
+        private Kernel constant(float value) {
+            return new ConstantKernel(value);
+        }
+
+        /**
+         * @return The given kernel, with a buffer allocated if it is a
+         *         constant which is needed as a whole row
+         */
+        private Kernel row(Kernel kernel) {
+            if (kernel instanceof ConstantKernel && ((ConstantKernel) kernel).buffer < 0) {
+                return new ConstantKernel(((ConstantKernel) kernel).value, nBuffers++);
+            }
+            return kernel;
+        }
+
+        private Kernel unary(Operation operation, Kernel operand) {
+            if (operand instanceof ConstantKernel) {
+                float a = ((ConstantKernel) operand).value;
+                return fold(new UnaryKernel(operation, new ConstantKernel(a, 1), 0));
+            }
+            return new UnaryKernel(operation, operand, nBuffers++);
+        }
+
+        private Kernel binary(Operation operation, Kernel left, Kernel right) {
+            if (left instanceof ConstantKernel && right instanceof ConstantKernel) {
+                float a = ((ConstantKernel) left).value;
+                float b = ((ConstantKernel) right).value;
+                return fold(new BinaryKernel(operation, new ConstantKernel(a, 1),
+                        new ConstantKernel(b, 2), 0));
+            }
+            if (right instanceof ConstantKernel) {
+                switch (operation) {
+                case ADD:
+                case SUBTRACT:
+                case MULTIPLY:
+                case DIVIDE:
+                case LESS:
+                case LESS_EQUAL:
+                case GREATER:
+                case GREATER_EQUAL:
+                    return new ScalarKernel(operation, left, ((ConstantKernel) right).value,
+                            nBuffers++);
+                default:
+                    break;
+                }
+            }
+            return new BinaryKernel(operation, row(left), row(right), nBuffers++);
+        }
+
+        /**
+         * Evaluates a kernel which doesn't use any variables, replacing it
+         * with a constant. The kernel should write to buffer 0, and its
+         * operands to buffers 1 and 2, so that folding doesn't allocate any
+         * of the buffers used for evaluating rows
+         */
+        private Kernel fold(Kernel kernel) {
+            float[][] foldBuffers = new float[3][1];
+            float value = kernel.evaluate(new float[0][], foldBuffers, 1)[0];
+            return constant(value);
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private boolean accept(String token) {
+            skipWhitespace();
+            if (text.startsWith(token, pos)) {
+                /*
+                 * Don't mistake the start of "<=" for "<", etc.
+                 */
+                if (token.length() == 1 && pos + 1 < text.length()
+                        && "<>!=".indexOf(token.charAt(0)) >= 0 && text.charAt(pos + 1) == '=') {
+                    return false;
+                }
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw error("Expected \"" + token + "\"");
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + (pos + 1)
+                    + " of \"" + text + "\"");
+        }
+    }
+}
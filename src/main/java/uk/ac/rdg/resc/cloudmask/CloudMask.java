@@ -57,6 +57,9 @@ public class CloudMask extends Application {
         String widthStr = properties.getProperty("imageWidth", "512");
         String heightStr = properties.getProperty("imageHeight", "512");
         String imageScaleStr = properties.getProperty("scale", "1.0");
+        String autosaveIntervalStr = properties.getProperty("autosaveInterval", "60");
+        String autosaveFilesStr = properties.getProperty("autosaveFiles", "3");
+        String overviewCacheSizeStr = properties.getProperty("overviewCacheSize", "2048");
 
         int nRows = 2;
         try {
@@ -95,6 +98,24 @@ public class CloudMask extends Application {
             imageScale = Double.parseDouble(imageScaleStr);
         } catch (NumberFormatException e) {
         }
+
+        long autosaveInterval = 60;
+        try {
+            autosaveInterval = Long.parseLong(autosaveIntervalStr);
+        } catch (NumberFormatException e) {
+        }
+
+        int autosaveFiles = 3;
+        try {
+            autosaveFiles = Integer.parseInt(autosaveFilesStr);
+        } catch (NumberFormatException e) {
+        }
+
+        long overviewCacheSize = CloudMaskDatasetFactory.DEFAULT_OVERVIEW_DISK_SIZE;
+        try {
+            overviewCacheSize = Long.parseLong(overviewCacheSizeStr) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+        }
         
         GridPane grid = new GridPane();
         grid.setHgap(8);
@@ -102,6 +123,8 @@ public class CloudMask extends Application {
         grid.setPadding(new Insets(4));
 
         CloudMaskController controller = new CloudMaskController(width, height, imageScale, primaryStage);
+        controller.setAutosave(autosaveInterval, autosaveFiles);
+        controller.setOverviewDiskSize(overviewCacheSize);
 
         int col = 0;
         for (int row = 0; row < nRows; row++) {
@@ -32,13 +32,24 @@ import java.io.File;
 import java.io.IOException;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.function.Predicate;
 
+import javafx.animation.Animation;
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleStringProperty;
@@ -49,14 +60,25 @@ import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 import javafx.collections.transformation.FilteredList;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.control.ButtonType;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 
 import org.controlsfx.dialog.ExceptionDialog;
 
 import uk.ac.rdg.resc.cloudmask.CloudMaskDatasetFactory.MaskedDataset;
+import uk.ac.rdg.resc.cloudmask.profiling.BrushStrokeEvent;
+import uk.ac.rdg.resc.cloudmask.profiling.CompositeRecomputeEvent;
+import uk.ac.rdg.resc.cloudmask.profiling.DatasetLoadEvent;
+import uk.ac.rdg.resc.cloudmask.profiling.MaskRecomputeEvent;
+import uk.ac.rdg.resc.cloudmask.profiling.SaveEvent;
+import uk.ac.rdg.resc.cloudmask.profiling.Timings;
+import uk.ac.rdg.resc.cloudmask.profiling.Timings.Stage;
+import uk.ac.rdg.resc.cloudmask.widgets.FrameCache;
 import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
@@ -80,8 +102,22 @@ public class CloudMaskController {
      * variables + RGB images
      */
     private ObservableList<MaskVariable> plottableVariables;
-    private Map<String, EdalImageGenerator> dataModels;
+    /*
+     * Image generators are created when a variable is first displayed, and
+     * this is kept in access order so that the least recently used idle ones
+     * can be discarded
+     */
+    private LinkedHashMap<String, EdalImageGenerator> dataModels;
+    /*
+     * The display settings of generators which have been discarded, so that
+     * they can be restored when the variable is next displayed
+     */
+    private Map<String, DisplaySettings> discardedDisplaySettings;
     private Map<String, UndoRedoManager<UndoState>> undoStacks;
+    /** The number of image generators to keep for variables not on display */
+    private static final int MAX_IDLE_GENERATORS = 8;
+    /** The current mask opacity, or null if it has not been changed */
+    private Float maskOpacity = null;
     private Map<String, MaskedVariableView> views;
 
     private final CompositeMaskView compositeMaskView;
@@ -94,6 +130,14 @@ public class CloudMaskController {
 
     private Stage mainStage;
 
+    /** The file containing the active dataset */
+    private File activeDatasetFile = null;
+    /**
+     * Journal of all edits since the last save, used for crash recovery. May
+     * be <code>null</code> if the journal could not be created
+     */
+    private EditJournal journal = null;
+
     /*
      * This doesn't necessarily represent a change in the data which would be
      * saved, but rather the possibility that this has occurred. False positives
@@ -101,10 +145,44 @@ public class CloudMaskController {
      * then check in detail.
      */
     private boolean changedSinceLastSave = false;
+    /*
+     * Incremented on every change, so that the autosaver can tell whether
+     * anything has happened since it last ran
+     */
+    private long editCount = 0;
+    private long autosavedEditCount = 0;
+
+    /** Autosave interval in seconds, or 0 to disable autosave */
+    private long autosaveInterval = 0;
+    private int autosaveFiles = 3;
+    private long overviewDiskSize = CloudMaskDatasetFactory.DEFAULT_OVERVIEW_DISK_SIZE;
+    private Autosaver autosaver = null;
+
+    /*
+     * Slider values can change far faster than views can be rendered, so only
+     * the latest threshold and colour scale for each variable are applied, and
+     * each view is rendered at most once per batch of changes
+     */
+    private final UpdateConflater sliderUpdates;
+    /*
+     * The composite depends on all of the views, so is rendered at most this
+     * often (in ms) whilst thresholds are changing, and once they settle
+     */
+    private static final long MIN_COMPOSITE_INTERVAL = 100L;
+    private final PauseTransition compositeUpdate;
+    private final Set<String> maskChangedVariables = new HashSet<>();
+    private long lastCompositeUpdate = 0L;
+
+    /*
+     * The frames last drawn for each variable, so that switching back to a
+     * variable shows it immediately
+     */
+    private final FrameCache frameCache = new FrameCache(Runtime.getRuntime().maxMemory() / 32);
 
     public CloudMaskController(int compositeWidth, int compositeHeight, double scale,
             Stage primaryStage) {
-        dataModels = new HashMap<>();
+        dataModels = new LinkedHashMap<>(16, 0.75f, true);
+        discardedDisplaySettings = new HashMap<>();
         undoStacks = new HashMap<>();
         views = new HashMap<>();
         viewWindows = new ArrayList<>();
@@ -120,6 +198,21 @@ public class CloudMaskController {
         manualMaskUndoStack = new Stack<>();
         manualMaskRedoStack = new Stack<>();
         mainStage = primaryStage;
+
+        sliderUpdates = new UpdateConflater(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Platform.runLater(command);
+            }
+        });
+        compositeUpdate = new PauseTransition();
+        compositeUpdate.setOnFinished(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                lastCompositeUpdate = System.currentTimeMillis();
+                compositeMaskView.imageView.updateJustThisImage();
+            }
+        });
     }
 
     public ObservableList<MaskVariable> getMaskableVariables() {
@@ -138,6 +231,10 @@ public class CloudMaskController {
         return compositeMaskView;
     }
 
+    public FrameCache getFrameCache() {
+        return frameCache;
+    }
+
     public SettingsPane getSettingsPane() {
         return settingsPane;
     }
@@ -146,14 +243,169 @@ public class CloudMaskController {
         return activeDataset;
     }
 
+    /**
+     * Configures autosaving. This takes effect the next time a dataset is
+     * loaded.
+     * 
+     * @param intervalSeconds
+     *            The time between autosaves, or 0 to disable autosaving
+     * @param nFiles
+     *            The number of autosave files to rotate between
+     */
+    public void setAutosave(long intervalSeconds, int nFiles) {
+        autosaveInterval = intervalSeconds;
+        autosaveFiles = nFiles;
+    }
+
+    /**
+     * Configures the overviews kept on disk between sessions. This takes
+     * effect the next time a dataset is loaded.
+     * 
+     * @param bytes
+     *            The limit on their total size, or 0 to not keep overviews
+     *            on disk
+     */
+    public void setOverviewDiskSize(long bytes) {
+        overviewDiskSize = bytes;
+    }
+
     public void loadDataset(File datasetLocation) throws IOException, EdalException {
+        setDataset(datasetLocation, openDataset(datasetLocation, null));
+    }
+
+    /**
+     * Opens a dataset, but does not make it active. This does not touch the
+     * UI, and is the slow part of loading a dataset, so should be called from
+     * a background thread.
+     * 
+     * @param datasetLocation
+     *            The location of the dataset
+     * @param progressListener
+     *            A {@link LoadProgressListener} to receive progress updates.
+     *            May be <code>null</code>
+     * @return The opened {@link MaskedDataset}, to be passed to
+     *         {@link CloudMaskController#setDataset(File, MaskedDataset)}
+     */
+    public MaskedDataset openDataset(File datasetLocation, LoadProgressListener progressListener)
+            throws IOException, EdalException {
+        DatasetLoadEvent event = new DatasetLoadEvent(datasetLocation.getAbsolutePath());
+        event.start();
+        try {
+            CloudMaskDatasetFactory mdf = new CloudMaskDatasetFactory();
+            mdf.setOverviewDiskSize(overviewDiskSize);
+            MaskedDataset dataset = mdf.createDataset(datasetLocation.getName(),
+                    datasetLocation.getAbsolutePath(), false);
+            /*
+             * Statistics are otherwise calculated lazily, but we know that
+             * the variables which will be displayed first need them, so
+             * calculate them together in parallel
+             */
+            List<String> initialVariables = dataset.getUnmaskedVariableNames().subList(0,
+                    Math.min(viewWindows.size(), dataset.getUnmaskedVariableNames().size()));
+            dataset.prefetchStatistics(new ArrayList<>(initialVariables), progressListener);
+            event.setDataset(dataset.getOriginalVariableNames().size(), dataset.getGridSize());
+            return dataset;
+        } finally {
+            /*
+             * Failed loads are committed too - they are often the slow ones
+             */
+            event.finish();
+        }
+    }
+
+    /**
+     * Makes an opened dataset active, recovering any unsaved edits and
+     * populating all of the views. This must be called on the JavaFX
+     * application thread.
+     * 
+     * @param datasetLocation
+     *            The location of the dataset
+     * @param dataset
+     *            The {@link MaskedDataset}, as returned by
+     *            {@link CloudMaskController#openDataset(File, LoadProgressListener)}
+     */
+    public void setDataset(File datasetLocation, MaskedDataset dataset) throws IOException,
+            EdalException {
         /*
          * Store dataset
          */
-        CloudMaskDatasetFactory mdf = new CloudMaskDatasetFactory();
-        activeDataset = mdf.createDataset(datasetLocation.getName(),
-                datasetLocation.getAbsolutePath(), false);
-        catalogue = new SimpleFeatureCatalogue<>(activeDataset, true);
+        sliderUpdates.clear();
+        maskChangedVariables.clear();
+        compositeUpdate.stop();
+        frameCache.clear();
+        if (activeDataset != null && activeDataset != dataset) {
+            activeDataset.close();
+        }
+        activeDataset = dataset;
+        activeDatasetFile = datasetLocation;
+
+        /*
+         * Recover any edits from a previous session which didn't get saved.
+         * This gets applied directly to the dataset before any of the views
+         * are populated, so that they all just pick up the recovered state.
+         */
+        closeJournal();
+        if (autosaver != null) {
+            autosaver.stop();
+            autosaver = null;
+        }
+        File journalFile = EditJournal.journalFileFor(datasetLocation);
+        File recoveryFile = null;
+        String recoveryMessage = null;
+        if (EditJournal.hasRecoverableEdits(journalFile, datasetLocation)) {
+            recoveryFile = journalFile;
+            recoveryMessage = "Unsaved edits to this dataset were found from a previous session.  Recover them?";
+        } else {
+            /*
+             * No journal (e.g. it couldn't be written), but we may have an
+             * autosave
+             */
+            File autosave = Autosaver.latestAutosave(datasetLocation);
+            if (autosave != null && EditJournal.hasRecoverableEdits(autosave, datasetLocation)) {
+                recoveryFile = autosave;
+                recoveryMessage = "An autosave of this dataset from "
+                        + new Date(autosave.lastModified()) + " was found.  Recover it?";
+            }
+        }
+        boolean recovered = false;
+        if (recoveryFile != null) {
+            Alert recoverDialog = new Alert(AlertType.CONFIRMATION, recoveryMessage,
+                    ButtonType.YES, ButtonType.NO);
+            Optional<ButtonType> response = recoverDialog.showAndWait();
+            if (response.isPresent() && response.get() == ButtonType.YES) {
+                EditJournal.replay(recoveryFile, activeDataset);
+                recovered = true;
+            }
+        }
+        try {
+            journal = new EditJournal(journalFile, datasetLocation, recovered);
+        } catch (IOException e) {
+            /*
+             * Most likely we can't write alongside the data. Carry on without
+             * crash recovery.
+             */
+            e.printStackTrace();
+            journal = null;
+        }
+        changedSinceLastSave = recovered;
+
+        if (autosaveInterval > 0) {
+            autosavedEditCount = editCount;
+            autosaver = new Autosaver(datasetLocation, autosaveInterval, autosaveFiles,
+                    new Callable<SessionSnapshot>() {
+                        @Override
+                        public SessionSnapshot call() throws Exception {
+                            if (editCount == autosavedEditCount || activeDataset == null) {
+                                return null;
+                            }
+                            autosavedEditCount = editCount;
+                            return activeDataset.snapshot();
+                        }
+                    });
+        }
+
+        catalogue = new VersionedFeatureCatalogue(activeDataset,
+                Runtime.getRuntime().maxMemory() / 16);
         ObservableList<String> unmaskedVariables = activeDataset.getUnmaskedVariableNames();
 
         compositeMaskView.setCatalogue(catalogue);
@@ -164,12 +416,16 @@ public class CloudMaskController {
          * Clear data models & repopulate with new ones
          */
         dataModels.clear();
+        discardedDisplaySettings.clear();
         undoStacks.clear();
+        views.clear();
         plottableVariables.clear();
         for (String var : unmaskedVariables) {
-            dataModels.put(var, new EdalImageGenerator(var, catalogue));
-            undoStacks.put(var, new UndoRedoManager<>(new UndoState(dataModels.get(var).scaleRange,
-                    activeDataset.getMaskThreshold(var))));
+            /*
+             * RGB plugins can only be present here if they were recovered
+             * from the journal
+             */
+            boolean maskable = !isRgb(var);
             boolean included = false;
             for (String testMasked : activeDataset.getMaskedVariables()) {
                 if (var.equalsIgnoreCase(testMasked)) {
@@ -178,7 +434,7 @@ public class CloudMaskController {
                     break;
                 }
             }
-            plottableVariables.add(new MaskVariable(var, true, included, null));
+            plottableVariables.add(new MaskVariable(var, maskable, included, null));
         }
         FXCollections.sort(plottableVariables);
 
@@ -220,85 +476,214 @@ public class CloudMaskController {
                  * When the list of included variables changes, we need to send
                  * this to the dataset and update the composite image
                  */
-                catalogue.expireFromCache(CompositeMaskPlugin.COMPOSITEMASK);
                 String[] mask = new String[includedVariables.size()];
                 for (int i = 0; i < includedVariables.size(); i++) {
                     String maskedVar = includedVariables.get(i);
                     mask[i] = maskedVar + "-" + MaskedDataset.MASK_SUFFIX;
                 }
                 activeDataset.setMaskedVariables(mask);
+                if (journal != null) {
+                    journal.logComposite(mask);
+                }
+                setChanged();
+                CompositeRecomputeEvent event = new CompositeRecomputeEvent(mask.length,
+                        activeDataset.getGridSize());
+                event.start();
                 compositeMaskView.imageView.updateImage();
+                event.finish();
             }
         });
 
         settingsPane.setDatasetLoaded(activeDataset);
+        prefetchNeighbouringTimesteps();
+    }
+
+    /**
+     * Changes the timestep which is displayed and edited
+     * 
+     * @param timestep
+     *            The index of the timestep
+     */
+    public void setTimestep(int timestep) {
+        if (activeDataset == null || timestep == activeDataset.getTimestep()) {
+            return;
+        }
+        /*
+         * Pending slider changes belong to the timestep they were made on
+         */
+        sliderUpdates.flush();
+        activeDataset.setTimestep(timestep);
+        if (journal != null) {
+            journal.logTimestep(timestep, activeDataset.isPerTimestepThresholds());
+        }
+        /*
+         * Manual edits can only be undone on the timestep they were made on
+         */
+        manualMaskUndoStack.clear();
+        manualMaskRedoStack.clear();
+        if (activeDataset.isPerTimestepThresholds()) {
+            /*
+             * Threshold undo states belong to the previous timestep. Start
+             * again from the thresholds of this one.
+             */
+            undoStacks.clear();
+        }
+
+        for (Entry<String, MaskedVariableView> entry : views.entrySet()) {
+            try {
+                getUndoStack(entry.getKey());
+            } catch (IOException | EdalException e) {
+                e.printStackTrace();
+            }
+            /*
+             * This picks up the thresholds for the new timestep
+             */
+            entry.getValue().newModelSelected(dataModels.get(entry.getKey()));
+            entry.getValue().redrawImage();
+        }
+        compositeMaskView.imageView.updateImage();
+        prefetchNeighbouringTimesteps();
+    }
+
+    /**
+     * @param perTimestep
+     *            <code>true</code> to give each timestep its own mask
+     *            thresholds, <code>false</code> to use the same thresholds
+     *            for all of them
+     */
+    public void setPerTimestepThresholds(boolean perTimestep) {
+        /*
+         * Pending slider changes belong to the thresholds in use before the
+         * switch
+         */
+        sliderUpdates.flush();
+        activeDataset.setPerTimestepThresholds(perTimestep);
+        if (journal != null) {
+            journal.logTimestep(activeDataset.getTimestep(), perTimestep);
+        }
+        setChanged();
+    }
+
+    /**
+     * Starts reading the timesteps either side of the current one in the
+     * background, so that stepping to them is quick
+     */
+    private void prefetchNeighbouringTimesteps() {
+        int timestep = activeDataset.getTimestep();
+        activeDataset.prefetchTimesteps(timestep + 1, timestep - 1);
     }
 
     public void saveCurrentDataset(File selectedFile) {
+        sliderUpdates.flush();
+        SaveEvent event = new SaveEvent(selectedFile.getAbsolutePath(),
+                activeDataset.getGridSize());
+        event.start();
         try {
             CloudMaskDatasetFactory.writeDataset(activeDataset, selectedFile.getAbsolutePath());
             changedSinceLastSave = false;
+            if (journal != null) {
+                /*
+                 * Everything is now safely on disk
+                 */
+                journal.reset(activeDatasetFile);
+            }
+            if (autosaver != null) {
+                autosaver.deleteFiles();
+            }
         } catch (Throwable e) {
             ExceptionDialog exceptionDialog = new ExceptionDialog(e);
             exceptionDialog.show();
+        } finally {
+            event.finish();
         }
     }
 
-    public void addPlugin(VariablePlugin plugin) {
+    /**
+     * Saves each granule of the current dataset to its own file
+     *
+     * @param directory
+     *            The directory to save the granules in
+     */
+    public void saveGranules(File directory) {
+        sliderUpdates.flush();
+        SaveEvent event = new SaveEvent(directory.getAbsolutePath(),
+                activeDataset.getGridSize());
+        event.start();
+        try {
+            CloudMaskDatasetFactory.writeGranules(activeDataset, directory);
+            changedSinceLastSave = false;
+            if (journal != null) {
+                journal.reset(activeDatasetFile);
+            }
+            if (autosaver != null) {
+                autosaver.deleteFiles();
+            }
+        } catch (Throwable e) {
+            ExceptionDialog exceptionDialog = new ExceptionDialog(e);
+            exceptionDialog.show();
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Adds a plugin to the active dataset, and makes the variables it
+     * provides available to plot
+     * 
+     * @param plugin
+     *            The {@link VariablePlugin} to add
+     * @return Whether the plugin was added
+     */
+    public boolean addPlugin(VariablePlugin plugin) {
         try {
             activeDataset.addVariablePlugin(plugin);
+            if (journal != null) {
+                journal.logPlugin(plugin);
+            }
+            setChanged();
             for (String var : plugin.providesVariables()) {
-                dataModels.put(var, new EdalImageGenerator(var, catalogue));
-                undoStacks.put(var, new UndoRedoManager<>(new UndoState(
-                        dataModels.get(var).scaleRange, activeDataset.getMaskThreshold(var))));
                 MaskVariable variable = new MaskVariable(var,
                         !(plugin instanceof RgbFalseColourPlugin), false, null);
                 plottableVariables.add(variable);
             }
-        } catch (EdalException | IOException e) {
+            return true;
+        } catch (EdalException e) {
             e.printStackTrace();
+            return false;
         }
     }
 
     public void enableMedian(String variable) {
-        try {
-            activeDataset.enableMedian(variable);
-            dataModels.put(variable + MaskedDataset.MEDIAN, new EdalImageGenerator(variable
-                    + MaskedDataset.MEDIAN, catalogue));
-            undoStacks
-                    .put(variable + MaskedDataset.MEDIAN,
-                            new UndoRedoManager<>(new UndoState(
-                                    dataModels.get(variable).scaleRange, activeDataset
-                                            .getMaskThreshold(variable))));
-            plottableVariables.add(new MaskVariable(variable + MaskedDataset.MEDIAN, true, false,
-                    null));
-        } catch (IOException | EdalException e) {
-            e.printStackTrace();
+        activeDataset.enableMedian(variable);
+        if (journal != null) {
+            journal.logFilter(variable, true);
         }
+        setChanged();
+        plottableVariables.add(new MaskVariable(variable + MaskedDataset.MEDIAN, true, false, null));
     }
 
     public void enableStddev(String variable) {
-        try {
-            activeDataset.enableStddev(variable);
-            dataModels.put(variable + MaskedDataset.STDDEV, new EdalImageGenerator(variable
-                    + MaskedDataset.STDDEV, catalogue));
-            undoStacks
-                    .put(variable + MaskedDataset.STDDEV,
-                            new UndoRedoManager<>(new UndoState(
-                                    dataModels.get(variable).scaleRange, activeDataset
-                                            .getMaskThreshold(variable))));
-            plottableVariables.add(new MaskVariable(variable + MaskedDataset.STDDEV, true, false,
-                    null));
-        } catch (IOException | EdalException e) {
-            e.printStackTrace();
+        activeDataset.enableStddev(variable);
+        if (journal != null) {
+            journal.logFilter(variable, false);
         }
+        setChanged();
+        plottableVariables.add(new MaskVariable(variable + MaskedDataset.STDDEV, true, false, null));
     }
 
     public void setVariable(MaskedVariableView view, String newVar) {
         /*
-         * Get model state for new variable
+         * Get model state for new variable, creating it if this is the first
+         * time it has been displayed
          */
-        EdalImageGenerator imageGenerator = dataModels.get(newVar);
+        EdalImageGenerator imageGenerator;
+        try {
+            imageGenerator = getImageGenerator(newVar);
+            getUndoStack(newVar);
+        } catch (IOException | EdalException e) {
+            e.printStackTrace();
+            return;
+        }
 
         /*
          * Remove mapping of old variable to view (if it exists)
@@ -313,6 +698,10 @@ public class CloudMaskController {
              */
             MaskedVariableView viewToSwap = views.get(newVar);
             EdalImageGenerator swapImageGenerator = dataModels.get(oldVar);
+            /*
+             * The old variable is on display, so it's guaranteed to have an
+             * image generator
+             */
             views.put(oldVar, viewToSwap);
             viewToSwap.newModelSelected(swapImageGenerator);
             viewToSwap.redrawImage();
@@ -332,22 +721,138 @@ public class CloudMaskController {
          */
         view.newModelSelected(imageGenerator);
         view.redrawImage();
+
+        discardIdleGenerators();
+        prefetchVariablesNear(newVar);
+    }
+
+    /**
+     * Reads the variables which are likely to be selected after the given
+     * one in the background. These are its neighbours in the list of
+     * variables, and the variables used by the composite mask.
+     * 
+     * @param var
+     *            The variable which has just been selected
+     */
+    private void prefetchVariablesNear(String var) {
+        int index = -1;
+        for (int i = 0; i < maskableVariables.size(); i++) {
+            if (maskableVariables.get(i).variableName.getValue().equals(var)) {
+                index = i;
+                break;
+            }
+        }
+        List<String> nearby = new ArrayList<>();
+        if (index >= 0) {
+            /*
+             * Users tend to move down the list, so the next variables are
+             * more likely to be wanted than the previous ones
+             */
+            for (int offset : new int[] { 1, -1, 2, -2 }) {
+                int i = index + offset;
+                if (i >= 0 && i < maskableVariables.size()) {
+                    String neighbour = maskableVariables.get(i).variableName.getValue();
+                    if (!views.containsKey(neighbour)) {
+                        nearby.add(neighbour);
+                    }
+                }
+            }
+        }
+        for (String used : activeDataset.getMaskedVariables()) {
+            nearby.add(used);
+        }
+        activeDataset.prefetchVariables(nearby);
+    }
+
+    private boolean isRgb(String var) throws VariableNotFoundException {
+        return RgbFalseColourPlugin.RGB_UNITS.equals(activeDataset.getVariableMetadata(var)
+                .getParameter().getUnits());
+    }
+
+    /**
+     * Gets the image generator for a variable, creating it if necessary
+     * 
+     * @param var
+     *            The variable ID
+     * @return The {@link EdalImageGenerator} for the variable
+     */
+    private EdalImageGenerator getImageGenerator(String var) throws IOException, EdalException {
+        EdalImageGenerator imageGenerator = dataModels.get(var);
+        if (imageGenerator == null) {
+            DisplaySettings settings = discardedDisplaySettings.remove(var);
+            if (settings != null) {
+                imageGenerator = new EdalImageGenerator(var, catalogue, settings.scaleRange);
+                imageGenerator.setPalette(settings.palette);
+            } else {
+                imageGenerator = new EdalImageGenerator(var, catalogue);
+            }
+            if (maskOpacity != null) {
+                imageGenerator.setMaskOpacity(maskOpacity);
+            }
+            dataModels.put(var, imageGenerator);
+        }
+        return imageGenerator;
+    }
+
+    /**
+     * Gets the undo manager for a variable, creating it if necessary. This
+     * should first be called when the variable is first displayed, so that
+     * its initial state is the one which can be returned to.
+     * 
+     * @param var
+     *            The variable ID
+     * @return The {@link UndoRedoManager} for the variable
+     */
+    private UndoRedoManager<UndoState> getUndoStack(String var) throws IOException,
+            EdalException {
+        UndoRedoManager<UndoState> undoStack = undoStacks.get(var);
+        if (undoStack == null) {
+            undoStack = new UndoRedoManager<>(new UndoState(getImageGenerator(var).scaleRange,
+                    activeDataset.getMaskThreshold(var)));
+            undoStacks.put(var, undoStack);
+        }
+        return undoStack;
+    }
+
+    /**
+     * Discards the least recently used image generators which are not on
+     * display, keeping their display settings so that they can be recreated
+     */
+    private void discardIdleGenerators() {
+        int idle = dataModels.size() - views.size();
+        Iterator<Entry<String, EdalImageGenerator>> iterator = dataModels.entrySet().iterator();
+        while (idle > MAX_IDLE_GENERATORS && iterator.hasNext()) {
+            Entry<String, EdalImageGenerator> entry = iterator.next();
+            if (!views.containsKey(entry.getKey())) {
+                EdalImageGenerator imageGenerator = entry.getValue();
+                discardedDisplaySettings.put(entry.getKey(), new DisplaySettings(
+                        imageGenerator.scaleRange, imageGenerator.getPalette()));
+                iterator.remove();
+                idle--;
+            }
+        }
     }
 
     public boolean isVariableActive(String var) {
         return views.containsKey(var);
     }
 
-    public void colourScaleChanged(String var, float minScale, float maxScale) {
-        /*
-         * Update model state
-         */
-        EdalImageGenerator modelState = dataModels.get(var);
-        Extent<Float> scaleRange = Extents.newExtent(minScale, maxScale);
-        modelState.setScaleRange(scaleRange);
-
-        MaskedVariableView view = views.get(var);
-        view.redrawImage();
+    public void colourScaleChanged(final String var, final float minScale,
+            final float maxScale) {
+        sliderUpdates.submit("colour:" + var, new Runnable() {
+            @Override
+            public void run() {
+                /*
+                 * Update model state
+                 */
+                EdalImageGenerator modelState = dataModels.get(var);
+                if (modelState != null) {
+                    Extent<Float> scaleRange = Extents.newExtent(minScale, maxScale);
+                    modelState.setScaleRange(scaleRange);
+                }
+            }
+        });
+        submitRedraw(var);
     }
 
     public void paletteChanged(String var, String palette) {
@@ -362,6 +867,7 @@ public class CloudMaskController {
     }
 
     public void setMaskOpacity(Number newVal) {
+        maskOpacity = newVal.floatValue();
         for (EdalImageGenerator ig : dataModels.values()) {
             ig.setMaskOpacity(newVal.floatValue());
         }
@@ -369,23 +875,111 @@ public class CloudMaskController {
         compositeMaskView.imageView.updateImage();
     }
 
-    public void maskThresholdChanged(String var, float minThreshold, float maxThreshold) {
+    public void maskThresholdChanged(final String var, final float minThreshold,
+            final float maxThreshold) {
+        sliderUpdates.submit("threshold:" + var, new Runnable() {
+            @Override
+            public void run() {
+                /*
+                 * Update mask values on dataset
+                 */
+                activeDataset.setMaskThreshold(var, minThreshold, maxThreshold);
+                if (journal != null) {
+                    journal.logThreshold(var, minThreshold, maxThreshold);
+                }
+                maskChangedVariables.add(var);
+                setChanged();
+            }
+        });
+        submitRedraw(var);
+    }
+
+    /**
+     * Redraws the view of a variable once all pending slider changes have been
+     * applied. Subsequent calls before the redraw happens replace it.
+     * 
+     * @param var
+     *            The variable to redraw
+     */
+    private void submitRedraw(final String var) {
+        sliderUpdates.submit("redraw:" + var, new Runnable() {
+            @Override
+            public void run() {
+                MaskedVariableView view = views.get(var);
+                if (maskChangedVariables.remove(var)) {
+                    MaskRecomputeEvent event = new MaskRecomputeEvent(var,
+                            activeDataset.getGridSize());
+                    event.start();
+                    if (view != null) {
+                        view.redrawImage();
+                    }
+                    event.finish();
+                    requestCompositeUpdate();
+                } else if (view != null) {
+                    view.redrawImage();
+                }
+            }
+        });
+    }
+
+    /**
+     * Redraws the composite mask, no more than once every
+     * {@link CloudMaskController#MIN_COMPOSITE_INTERVAL} ms. Any requests in
+     * between are merged into one redraw at the end of the interval.
+     */
+    private void requestCompositeUpdate() {
+        if (compositeUpdate.getStatus() == Animation.Status.RUNNING) {
+            return;
+        }
+        long wait = lastCompositeUpdate + MIN_COMPOSITE_INTERVAL - System.currentTimeMillis();
         /*
-         * Update mask values on dataset
+         * Even if we're not waiting, redraw on the next pulse, so that the
+         * view which changed is drawn first
          */
-        activeDataset.setMaskThreshold(var, minThreshold, maxThreshold);
-        MaskedVariableView view = views.get(var);
-        view.redrawImage();
-        compositeMaskView.imageView.updateJustThisImage();
-        changedSinceLastSave = true;
+        compositeUpdate.setDuration(Duration.millis(Math.max(1L, wait)));
+        compositeUpdate.playFromStart();
+    }
+
+    /**
+     * Starts or finishes a preview of a threshold whilst it is being dragged.
+     * During the preview, the masks which change are only evaluated at the
+     * resolution they are displayed at. When it finishes, the view and the
+     * composite are redrawn at full resolution.
+     * 
+     * @param var
+     *            The variable whose threshold is being dragged
+     * @param preview
+     *            <code>true</code> when the drag starts, <code>false</code>
+     *            when it finishes
+     */
+    public void setThresholdPreview(String var, boolean preview) {
+        if (preview) {
+            activeDataset.setPreview(true);
+        } else if (activeDataset.isPreview()) {
+            sliderUpdates.flush();
+            activeDataset.setPreview(false);
+            MaskedVariableView view = views.get(var);
+            if (view != null) {
+                view.redrawImage();
+            }
+            compositeUpdate.stop();
+            lastCompositeUpdate = System.currentTimeMillis();
+            compositeMaskView.imageView.updateJustThisImage();
+        }
     }
 
     public void setMaskThresholdInclusive(String var, boolean inclusive) {
         activeDataset.setMaskThresholdInclusive(var, inclusive);
+        if (journal != null) {
+            journal.logInclusive(var, inclusive);
+        }
+        MaskRecomputeEvent event = new MaskRecomputeEvent(var, activeDataset.getGridSize());
+        event.start();
         MaskedVariableView view = views.get(var);
         view.redrawImage();
         compositeMaskView.imageView.updateJustThisImage();
-        changedSinceLastSave = true;
+        event.finish();
+        setChanged();
     }
 
     public BooleanProperty variableInMaskProperty(String currentVariable) {
@@ -398,17 +992,21 @@ public class CloudMaskController {
     }
 
     public void addUndoState(String var) {
+        /*
+         * Make sure the final slider values are recorded
+         */
+        sliderUpdates.flush();
         UndoState undoState = new UndoState(dataModels.get(var).scaleRange,
                 activeDataset.getMaskThreshold(var));
         undoStacks.get(var).setCurrentState(undoState);
-        changedSinceLastSave = true;
+        setChanged();
     }
 
     public void undoLastAction(String var) {
         UndoState undo = undoStacks.get(var).undo();
         if (undo != null) {
             views.get(var).changeSliderValues(undo.colourScaleRange, undo.maskScaleRange, false);
-            changedSinceLastSave = true;
+            setChanged();
         }
     }
 
@@ -416,43 +1014,39 @@ public class CloudMaskController {
         UndoState redo = undoStacks.get(var).redo();
         if (redo != null) {
             views.get(var).changeSliderValues(redo.colourScaleRange, redo.maskScaleRange, false);
-            changedSinceLastSave = true;
+            setChanged();
         }
     }
 
     public void undoLastManualEdit() {
         if (!manualMaskUndoStack.isEmpty()) {
             List<PixelChange> undos = manualMaskUndoStack.pop();
-            for (PixelChange undo : undos) {
-                activeDataset.setManualMaskPixel(undo.coords.getX(), undo.coords.getY(),
-                        undo.fromValue, undo.toValue);
-            }
+            activeDataset.setManualMaskPixels(undos, true);
             manualMaskRedoStack.push(undos);
-            catalogue.expireFromCache(CompositeMaskPlugin.COMPOSITEMASK);
-            catalogue.expireFromCache(MaskedDataset.MANUAL_MASK_NAME);
+            if (journal != null) {
+                journal.logManualPixels(undos, true);
+            }
             compositeMaskView.imageView.updateJustThisImage();
-            changedSinceLastSave = true;
+            setChanged();
         }
     }
 
     public void redoLastManualEdit() {
         if (!manualMaskRedoStack.isEmpty()) {
             List<PixelChange> redos = manualMaskRedoStack.pop();
-            for (PixelChange redo : redos) {
-                activeDataset.setManualMaskPixel(redo.coords.getX(), redo.coords.getY(),
-                        redo.toValue, redo.fromValue);
-            }
+            activeDataset.setManualMaskPixels(redos, false);
             manualMaskUndoStack.push(redos);
-            catalogue.expireFromCache(CompositeMaskPlugin.COMPOSITEMASK);
-            catalogue.expireFromCache(MaskedDataset.MANUAL_MASK_NAME);
+            if (journal != null) {
+                journal.logManualPixels(redos, false);
+            }
             compositeMaskView.imageView.updateJustThisImage();
-            changedSinceLastSave = true;
+            setChanged();
         }
     }
 
     public void setManualMask(GridCoordinates2D imageCoords, int radius, Integer value) {
         setManualMask(imageCoords, value, radius, true);
-        changedSinceLastSave = true;
+        setChanged();
     }
 
     private void setManualMask(GridCoordinates2D imageCoords, Integer value, int radius,
@@ -460,14 +1054,31 @@ public class CloudMaskController {
         if (imageCoords == null) {
             return;
         }
-        List<PixelChange> changes = activeDataset.setManualMask(imageCoords, value, radius);
-        if (saveState && changes.size() > 0) {
-            manualMaskUndoStack.push(changes);
-            manualMaskRedoStack.clear();
+        BrushStrokeEvent event = new BrushStrokeEvent(radius);
+        event.start();
+        try {
+            long start = Timings.start();
+            List<PixelChange> changes = activeDataset.setManualMask(imageCoords, value, radius);
+            Timings.record(Stage.MANUAL_EDIT, MaskedDataset.MANUAL_MASK_NAME, start);
+            if (changes == null) {
+                /*
+                 * The mask couldn't be edited, and the error has already been
+                 * reported
+                 */
+                return;
+            }
+            event.setPixelsTouched(changes.size());
+            if (journal != null) {
+                journal.logManualPixels(changes, false);
+            }
+            if (saveState && changes.size() > 0) {
+                manualMaskUndoStack.push(changes);
+                manualMaskRedoStack.clear();
+            }
+            compositeMaskView.imageView.updateJustThisImage();
+        } finally {
+            event.finish();
         }
-        catalogue.expireFromCache(CompositeMaskPlugin.COMPOSITEMASK);
-        catalogue.expireFromCache(MaskedDataset.MANUAL_MASK_NAME);
-        compositeMaskView.imageView.updateJustThisImage();
     }
 
     public void setDataSelectedPosition(HorizontalPosition coords) {
@@ -492,6 +1103,7 @@ public class CloudMaskController {
 
     public void quit() {
         if (!changedSinceLastSave) {
+            discardJournal();
             mainStage.close();
         } else {
             Alert saveWarning = new Alert(AlertType.CONFIRMATION,
@@ -499,11 +1111,53 @@ public class CloudMaskController {
                     ButtonType.CANCEL);
             Optional<ButtonType> showAndWait = saveWarning.showAndWait();
             if (showAndWait.isPresent() && showAndWait.get() == ButtonType.OK) {
+                /*
+                 * The user has explicitly chosen to lose their changes, so
+                 * there is nothing to recover next time
+                 */
+                discardJournal();
                 mainStage.close();
             }
         }
     }
 
+    /**
+     * Closes the current edit journal, leaving it on disk for recovery
+     */
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Closes and deletes the current edit journal and any autosaves
+     */
+    private void discardJournal() {
+        if (journal != null) {
+            try {
+                journal.delete();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            journal = null;
+        }
+        if (autosaver != null) {
+            autosaver.stopAndDelete();
+            autosaver = null;
+        }
+    }
+
+    private void setChanged() {
+        changedSinceLastSave = true;
+        editCount++;
+    }
+
     class MaskVariable implements Comparable<MaskVariable> {
         /*
          * Plottable variable list is a list of these.
@@ -575,6 +1229,16 @@ public class CloudMaskController {
         }
     }
 
+    private static class DisplaySettings {
+        private final Extent<Float> scaleRange;
+        private final String palette;
+
+        public DisplaySettings(Extent<Float> scaleRange, String palette) {
+            this.scaleRange = scaleRange;
+            this.palette = palette;
+        }
+    }
+
     private static class UndoState {
         private Extent<Float> colourScaleRange;
         private Extent<Double> maskScaleRange;
@@ -28,17 +28,32 @@
 
 package uk.ac.rdg.resc.cloudmask;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -48,14 +63,17 @@ import ucar.ma2.ArrayShort;
 import ucar.ma2.DataType;
 import ucar.ma2.Index;
 import ucar.ma2.InvalidRangeException;
-import ucar.ma2.Range;
 import ucar.nc2.Attribute;
 import ucar.nc2.Dimension;
 import ucar.nc2.NetcdfFileWriter;
 import ucar.nc2.NetcdfFileWriter.Version;
 import ucar.nc2.Variable;
 import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.time.CalendarDateUnit;
 import uk.ac.rdg.resc.cloudmask.CloudMaskController.PixelChange;
+import uk.ac.rdg.resc.cloudmask.profiling.Timings;
+import uk.ac.rdg.resc.cloudmask.profiling.Timings.Stage;
+import uk.ac.rdg.resc.cloudmask.profiling.VariableReadEvent;
 import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.DatasetFactory;
@@ -68,7 +86,6 @@ import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
 import uk.ac.rdg.resc.edal.feature.GridFeature;
-import uk.ac.rdg.resc.edal.graphics.utils.GraphicsUtils;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.RegularAxis;
 import uk.ac.rdg.resc.edal.grid.RegularAxisImpl;
@@ -83,7 +100,6 @@ import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Array4D;
 import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
-import uk.ac.rdg.resc.edal.util.ValuesArray2D;
 
 /**
  * {@link DatasetFactory} that creates {@link Dataset}s representing gridded
@@ -92,147 +108,318 @@ import uk.ac.rdg.resc.edal.util.ValuesArray2D;
  * @author Guy Griffiths
  */
 public final class CloudMaskDatasetFactory extends DatasetFactory {
+    /*
+     * Where overviews of the data in files are kept between sessions
+     */
+    private static final File OVERVIEW_DIRECTORY = new File(
+            System.getProperty("java.io.tmpdir"), "cloudmask-overviews");
+    /**
+     * The default limit on the total size of the overviews kept between
+     * sessions
+     */
+    public static final long DEFAULT_OVERVIEW_DISK_SIZE = 2048L * 1024 * 1024;
+
+    private long overviewDiskSize = DEFAULT_OVERVIEW_DISK_SIZE;
+
+    /**
+     * The suffix given to the output files when writing each granule of a
+     * dataset separately
+     */
+    public static final String GRANULE_OUTPUT_SUFFIX = "-cloudmask.nc";
+
 //    private static final Logger log = LoggerFactory.getLogger(CloudMaskDatasetFactory.class);
 
-    private Dimension xDimension;
+    /**
+     * @param bytes
+     *            The limit on the total size of the overviews which datasets
+     *            created by this factory keep between sessions. The least
+     *            recently used overviews are deleted to stay within it. 0
+     *            keeps overviews in memory only.
+     */
+    public void setOverviewDiskSize(long bytes) {
+        overviewDiskSize = bytes;
+    }
 
-    private Dimension yDimension;
-    
     /* Warnings about not closing nc were invalid - it gets closed by CdmUtils method */
     @Override
     public MaskedDataset createDataset(String id, String location, boolean forceRefresh) throws IOException,
             EdalException {
-        NetcdfDataset nc = null;
-        try {
-            /*
-             * Open the dataset, using the cache for NcML aggregations
-             */
-            nc = NetcdfDatasetAggregator.getDataset(location);
-
-            List<GridVariableMetadata> vars = new ArrayList<GridVariableMetadata>();
-            Map<String, ThresholdSettings> thresholdMap = new HashMap<>();
-            VerticalAxis zDomain = null;
-            TimeAxis tDomain = null;
-            xDimension = null;
-            yDimension = null;
-            Array2D<Number> values = null;
-            String[] maskComponents = null;
-            for (Variable var : nc.getVariables()) {
-                if (var.isCoordinateVariable()) {
-                    continue;
-                }
-                String varId = var.getFullName();
-
-                if (varId.endsWith(MaskedDataset.MASK_SUFFIX)) {
-                    try {
-                        Attribute thresholdMax = var.findAttribute("threshold_max");
-                        Attribute thresholdMin = var.findAttribute("threshold_min");
-                        Attribute thresholdInclusive = var.findAttribute("threshold_inclusive");
-                        ThresholdSettings threshold = new ThresholdSettings(
-                                (Double) thresholdMin.getValue(0),
-                                (Double) thresholdMax.getValue(0),
-                                Boolean.parseBoolean(thresholdInclusive.getValue(0).toString()));
-                        thresholdMap.put(
-                                varId.substring(0,
-                                        varId.length() - MaskedDataset.MASK_SUFFIX.length() - 1),
-                                threshold);
-                    } catch (Exception e) {
+        Mosaic mosaic;
+        if (Mosaic.isMosaic(location)) {
+            mosaic = Mosaic.read(new File(location));
+        } else {
+            mosaic = new Mosaic(Collections.singletonList(location), true);
+        }
+        List<String> granules = mosaic.getGranules();
+        boolean alongY = mosaic.isAlongY();
+
+        List<Variable> dataVariables = null;
+        Map<String, ThresholdSettings> thresholdMap = new HashMap<>();
+        String[] maskComponents = null;
+        /*
+         * The manual mask of each granule, for each timestep
+         */
+        List<Array[]> manualMasks = new ArrayList<>();
+        /*
+         * The number of timesteps, and their values. Datasets without a time
+         * dimension have a single timestep.
+         */
+        int nTimesteps = 1;
+        double[] timeValues = null;
+        String timeUnits = null;
+        /*
+         * The index along the joining axis at which each granule starts
+         */
+        int[] offsets = new int[granules.size() + 1];
+        /*
+         * The size of the whole grid, with all granules joined together
+         */
+        int xSize = 0;
+        int ySize = 0;
+        for (int g = 0; g < granules.size(); g++) {
+            NetcdfDataset nc = null;
+            try {
+                /*
+                 * Open the dataset, using the cache for NcML aggregations
+                 */
+                nc = NetcdfDatasetAggregator.getDataset(granules.get(g));
+
+                Dimension xDimension = null;
+                Dimension yDimension = null;
+                Dimension tDimension = null;
+                Variable manualMask = null;
+                List<Variable> granuleVariables = new ArrayList<>();
+                for (Variable var : nc.getVariables()) {
+                    if (var.isCoordinateVariable()) {
+                        continue;
                     }
-                    continue;
-                } else if (varId.equals(MaskedDataset.MANUAL_MASK_NAME)) {
-                    Array data = var.read();
-                    Index index = data.getIndex();
-                    int[] shape = data.getShape();
-                    int xSize = shape[1];
-                    int ySize = shape[0];
-                    values = new ValuesArray2D(ySize, xSize);
-                    for (int i = 0; i < xSize; i++) {
-                        for (int j = 0; j < ySize; j++) {
-                            index.set(j, i);
-                            float value = data.getFloat(index);
-                            if (!Float.isNaN(value)) {
-                                values.set(value, j, i);
+                    String varId = var.getFullName();
+
+                    if (varId.endsWith(MaskedDataset.MASK_SUFFIX)) {
+                        /*
+                         * Settings are taken from the first granule
+                         */
+                        if (g == 0) {
+                            try {
+                                Attribute thresholdMax = var.findAttribute("threshold_max");
+                                Attribute thresholdMin = var.findAttribute("threshold_min");
+                                Attribute thresholdInclusive = var
+                                        .findAttribute("threshold_inclusive");
+                                ThresholdSettings threshold = new ThresholdSettings(
+                                        (Double) thresholdMin.getValue(0),
+                                        (Double) thresholdMax.getValue(0),
+                                        Boolean.parseBoolean(thresholdInclusive.getValue(0)
+                                                .toString()));
+                                thresholdMap.put(varId.substring(0, varId.length()
+                                        - MaskedDataset.MASK_SUFFIX.length() - 1), threshold);
+                            } catch (Exception e) {
                             }
                         }
+                        continue;
+                    } else if (varId.equals(MaskedDataset.MANUAL_MASK_NAME)) {
+                        manualMask = var;
+                        continue;
+                    } else if (varId.equals(CompositeMaskPlugin.COMPOSITEMASK)) {
+                        if (g == 0) {
+                            try {
+                                Attribute components = var.findAttribute("mask_components");
+                                String componentsString = (String) components.getValue(0);
+                                maskComponents = componentsString.replaceFirst(
+                                        "manual-cloudmask,", "").split(",");
+                            } catch (Exception e) {
+                            }
+                        }
+                        continue;
                     }
-                    continue;
-                } else if (varId.equals(CompositeMaskPlugin.COMPOSITEMASK)) {
-                    try {
-                        Attribute components = var.findAttribute("mask_components");
-                        String componentsString = (String) components.getValue(0);
-                        maskComponents = componentsString.replaceFirst("manual-cloudmask,", "")
-                                .split(",");
-                    } catch (Exception e) {
+
+                    /*
+                     * Variables are either (y, x), or (time, y, x). 2D
+                     * variables are the same at every timestep.
+                     */
+                    List<Dimension> dimensions = var.getDimensions();
+                    int rank = dimensions.size();
+                    if (rank != 2 && rank != 3) {
+                        throw new IllegalArgumentException(
+                                "Currently all (non-coordinate) variables must be 2d, or 3d with time first");
                     }
-                    continue;
+                    if (xDimension == null) {
+                        xDimension = dimensions.get(rank - 1);
+                    } else if (!xDimension.equals(dimensions.get(rank - 1))) {
+                        throw new IllegalArgumentException(
+                                "All variables must share the same dimensions for this NativeGridDataset");
+                    }
+                    if (yDimension == null) {
+                        yDimension = dimensions.get(rank - 2);
+                    } else if (!yDimension.equals(dimensions.get(rank - 2))) {
+                        throw new IllegalArgumentException(
+                                "All variables must share the same dimensions for this NativeGridDataset");
+                    }
+                    if (rank == 3) {
+                        if (tDimension == null) {
+                            tDimension = dimensions.get(0);
+                        } else if (!tDimension.equals(dimensions.get(0))) {
+                            throw new IllegalArgumentException(
+                                    "All 3d variables must share the same time dimension");
+                        }
+                    }
+                    granuleVariables.add(var);
                 }
 
-                List<Dimension> dimensions = var.getDimensions();
-                if (dimensions.size() != 2) {
-                    throw new IllegalArgumentException(
-                            "Currently all (non-coordinate) variables must be 2d");
-                }
                 if (xDimension == null) {
-                    xDimension = dimensions.get(1);
-                } else if (!xDimension.equals(dimensions.get(1))) {
-                    throw new IllegalArgumentException(
-                            "All variables must share the same dimensions for this NativeGridDataset");
+                    throw new IllegalArgumentException(granules.get(g)
+                            + " does not contain any data variables");
                 }
-                if (yDimension == null) {
-                    yDimension = dimensions.get(0);
-                } else if (!yDimension.equals(dimensions.get(0))) {
-                    throw new IllegalArgumentException(
-                            "All variables must share the same dimensions for this NativeGridDataset");
+                int granuleTimesteps = tDimension == null ? 1 : tDimension.getLength();
+                if (g == 0) {
+                    dataVariables = granuleVariables;
+                    nTimesteps = granuleTimesteps;
+                    if (tDimension != null) {
+                        Variable timeVar = nc.findVariable(tDimension.getFullName());
+                        if (timeVar != null && timeVar.getRank() == 1) {
+                            timeValues = (double[]) timeVar.read().get1DJavaArray(double.class);
+                            timeUnits = timeVar.getUnitsString();
+                        }
+                    }
+                } else {
+                    if (granuleTimesteps != nTimesteps) {
+                        throw new IllegalArgumentException(
+                                "All granules must have the same number of timesteps");
+                    }
+                    for (Variable var : dataVariables) {
+                        if (nc.findVariable(var.getFullName()) == null) {
+                            throw new IllegalArgumentException(granules.get(g)
+                                    + " does not contain the variable " + var.getFullName());
+                        }
+                    }
                 }
 
-                RegularAxis xAxis = new RegularAxisImpl("x-axis", 0, 1.0, xDimension.getLength(),
-                        false);
-                RegularAxis yAxis = new RegularAxisImpl("y-axis", 0, 1.0, yDimension.getLength(),
-                        false);
-                HorizontalGrid hDomain = new RegularGridImpl(xAxis, yAxis, null);
-
-                String name = getVariableName(var);
-
-                Parameter parameter = new Parameter(varId, var.getShortName(),
-                        var.getDescription(), var.getUnitsString(), name);
-
-                GridVariableMetadata metadata = new GridVariableMetadata(parameter, hDomain,
-                        zDomain, tDomain, true);
-
-                for (Attribute attr : var.getAttributes()) {
-                    String attrName = attr.getFullName();
-                    if (!attrName.startsWith("_") && !attrName.equals("units")
-                            && !attrName.equals("long_name")) {
-                        metadata.getVariableProperties().put(attrName, attr.getValue(0));
+                /*
+                 * Granules are joined end-to-end, so must all be the same size
+                 * in the other direction
+                 */
+                int granuleXSize = xDimension.getLength();
+                int granuleYSize = yDimension.getLength();
+                if (alongY) {
+                    if (g > 0 && granuleXSize != xSize) {
+                        throw new IllegalArgumentException(
+                                "All granules must have the same x-size to be joined along y");
+                    }
+                    xSize = granuleXSize;
+                    offsets[g + 1] = offsets[g] + granuleYSize;
+                    ySize = offsets[g + 1];
+                } else {
+                    if (g > 0 && granuleYSize != ySize) {
+                        throw new IllegalArgumentException(
+                                "All granules must have the same y-size to be joined along x");
                     }
+                    ySize = granuleYSize;
+                    offsets[g + 1] = offsets[g] + granuleXSize;
+                    xSize = offsets[g + 1];
                 }
 
-                vars.add(metadata);
+                /*
+                 * Read the manual mask for each timestep. A 2D mask applies
+                 * to all of them.
+                 */
+                Array[] granuleMasks = new Array[nTimesteps];
+                if (manualMask != null && manualMask.getRank() == 3) {
+                    int[] shape = manualMask.getShape();
+                    for (int t = 0; t < nTimesteps; t++) {
+                        try {
+                            granuleMasks[t] = manualMask.read(new int[] { t, 0, 0 },
+                                    new int[] { 1, shape[1], shape[2] }).reduce(0);
+                        } catch (InvalidRangeException e) {
+                            throw new IOException("Problem reading manual mask", e);
+                        }
+                    }
+                } else if (manualMask != null) {
+                    Arrays.fill(granuleMasks, manualMask.read());
+                }
+                manualMasks.add(granuleMasks);
+            } finally {
+                NetcdfDatasetAggregator.releaseDataset(nc);
             }
+        }
 
-            if (values == null) {
-                values = new ValuesArray2D(yDimension.getLength(), xDimension.getLength());
+        VerticalAxis zDomain = null;
+        /*
+         * Variables are presented as 2D, and time series are handled by
+         * selecting a timestep on the dataset, since everything is displayed
+         * and edited one timestep at a time
+         */
+        TimeAxis tDomain = null;
+        RegularAxis xAxis = new RegularAxisImpl("x-axis", 0, 1.0, xSize, false);
+        RegularAxis yAxis = new RegularAxisImpl("y-axis", 0, 1.0, ySize, false);
+        HorizontalGrid hDomain = new RegularGridImpl(xAxis, yAxis, null);
+
+        List<GridVariableMetadata> vars = new ArrayList<GridVariableMetadata>();
+        for (Variable var : dataVariables) {
+            String varId = var.getFullName();
+            String name = getVariableName(var);
+
+            Parameter parameter = new Parameter(varId, var.getShortName(), var.getDescription(),
+                    var.getUnitsString(), name);
+
+            GridVariableMetadata metadata = new GridVariableMetadata(parameter, hDomain, zDomain,
+                    tDomain, true);
+
+            for (Attribute attr : var.getAttributes()) {
+                String attrName = attr.getFullName();
+                if (!attrName.startsWith("_") && !attrName.equals("units")
+                        && !attrName.equals("long_name")) {
+                    metadata.getVariableProperties().put(attrName, attr.getValue(0));
+                }
             }
-            /*
-             * We want to always read with a bounding box - other data reading
-             * strategies will cause median/stddev to fail
-             */
-            MaskedDataset maskedDataset = new MaskedDataset(id, location, vars,
-                    DataReadingStrategy.BOUNDING_BOX, thresholdMap, values);
-            if (maskComponents != null) {
-                maskedDataset.setMaskedVariables(maskComponents);
+
+            vars.add(metadata);
+        }
+
+        /*
+         * Join together the manual masks of each granule, for each timestep.
+         * These only use memory for the areas which have been set.
+         */
+        CopyOnWriteMask[] values = new CopyOnWriteMask[nTimesteps];
+        for (int t = 0; t < nTimesteps; t++) {
+            values[t] = new CopyOnWriteMask(ySize, xSize);
+            for (int g = 0; g < granules.size(); g++) {
+                Array data = manualMasks.get(g)[t];
+                if (data == null) {
+                    continue;
+                }
+                int yOffset = alongY ? offsets[g] : 0;
+                int xOffset = alongY ? 0 : offsets[g];
+                Index index = data.getIndex();
+                int[] shape = data.getShape();
+                for (int i = 0; i < shape[1]; i++) {
+                    for (int j = 0; j < shape[0]; j++) {
+                        index.set(j, i);
+                        float value = data.getFloat(index);
+                        if (!Float.isNaN(value)) {
+                            values[t].set(value, j + yOffset, i + xOffset);
+                        }
+                    }
+                }
             }
+        }
 
-            return maskedDataset;
-        } finally {
-            NetcdfDatasetAggregator.releaseDataset(nc);
+        /*
+         * We want to always read with a bounding box - other data reading
+         * strategies will cause median/stddev to fail
+         */
+        MaskedDataset maskedDataset = new MaskedDataset(id, granules, offsets, alongY,
+                timeValues, timeUnits, vars, DataReadingStrategy.BOUNDING_BOX, thresholdMap,
+                values);
+        if (maskComponents != null) {
+            maskedDataset.setMaskedVariables(maskComponents);
         }
+
+        return maskedDataset;
     }
 
     private final class ThresholdSettings {
-        private double min;
-        private double max;
-        private boolean inclusive;
+        private final double min;
+        private final double max;
+        private final boolean inclusive;
 
         public ThresholdSettings(double min, double max, boolean inclusive) {
             super();
@@ -242,6 +429,55 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
         }
     }
 
+    /**
+     * An immutable version of everything which the user can change that the
+     * masks are derived from: the mask thresholds, the components of the
+     * composite mask, and the manual masks.
+     * 
+     * Each change makes a new version which shares everything unchanged with
+     * the previous one (the manual masks are copy-on-write
+     * {@link CopyOnWriteMask.Snapshot}s). Data sources read everything from
+     * the version which was current when they were opened, so the composite
+     * mask they read always agrees with the components they read.
+     */
+    private final class MaskState {
+        /** The thresholds of each variable which has been initialised */
+        private final Map<String, ThresholdSettings> thresholds;
+        /** The variables the composite mask uses, manual mask first */
+        private final String[] compositeComponents;
+        /** The manual mask of each timestep */
+        private final CopyOnWriteMask.Snapshot[] manualMasks;
+        /** The version of the manual mask edits included in this state */
+        private final long manualMaskVersion;
+
+        public MaskState(Map<String, ThresholdSettings> thresholds,
+                String[] compositeComponents, CopyOnWriteMask.Snapshot[] manualMasks,
+                long manualMaskVersion) {
+            this.thresholds = thresholds;
+            this.compositeComponents = compositeComponents;
+            this.manualMasks = manualMasks;
+            this.manualMaskVersion = manualMaskVersion;
+        }
+
+        public MaskState withThreshold(String var, ThresholdSettings settings) {
+            Map<String, ThresholdSettings> newThresholds = new HashMap<>(thresholds);
+            newThresholds.put(var, settings);
+            return new MaskState(Collections.unmodifiableMap(newThresholds),
+                    compositeComponents, manualMasks, manualMaskVersion);
+        }
+
+        public MaskState withCompositeComponents(String[] components) {
+            return new MaskState(thresholds, components.clone(), manualMasks,
+                    manualMaskVersion);
+        }
+
+        public MaskState withManualMask(int t, CopyOnWriteMask.Snapshot mask, long version) {
+            CopyOnWriteMask.Snapshot[] newMasks = manualMasks.clone();
+            newMasks[t] = mask;
+            return new MaskState(thresholds, compositeComponents, newMasks, version);
+        }
+    }
+
     /**
      * An {@link GriddedDataset} which:
      * 
@@ -251,6 +487,9 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
      * 
      * Allows median and standard deviation filters to be added in a moving 3x3
      * window to any original variable
+     * 
+     * Steps through the timesteps of 3D (time, y, x) data, with a separate
+     * manual mask for each timestep
      *
      * @author Guy Griffiths
      */
@@ -267,39 +506,226 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
         public final static String MASK_SUFFIX = "MASK";
         public final static String MEDIAN = "-median3x3";
         public final static String STDDEV = "-stddev3x3";
+        /** Separates the ID of a variable from the factor of one of its overviews */
+        public final static String OVERVIEW_SEPARATOR = "@";
 
-        private final String location;
+        /*
+         * Overviews are made at every power of 2 which leaves them at least
+         * this size along both axes
+         */
+        private final static int MIN_OVERVIEW_SIZE = 64;
+        /*
+         * The largest area of an expression which is generated up front.
+         * Larger reads (e.g. of the whole of a large grid) generate values as
+         * they are read, to limit memory use.
+         */
+        private final static int MAX_EVALUATED_VALUES = 4096 * 4096;
+
+        /*
+         * The maximum number of values sampled when calculating statistics.
+         * Larger grids are sampled with a stride.
+         */
+        private final static int MAX_STATISTICS_SAMPLES = 4096 * 4096;
+        /*
+         * The largest extent of a region of manual mask edits. Edits further
+         * apart than this are recorded separately.
+         */
+        private final static int MAX_EDIT_EXTENT = 128;
+
+        /** The files making up this dataset, in order */
+        private final List<String> granules;
+        /** The index along the joining axis at which each granule starts */
+        private final int[] granuleOffsets;
+        /** Whether granules are joined along the y-axis or the x-axis */
+        private final boolean alongY;
+        /** The values of the time axis, or null if there isn't one */
+        private final double[] timeValues;
+        private final String timeUnits;
+        /** The manual mask for each timestep */
+        private final CopyOnWriteMask[] manualMasks;
+        /** The timestep which is read and edited */
+        private volatile int timestep = 0;
+        /** Whether each timestep has its own mask thresholds */
+        private boolean perTimestepThresholds = false;
+        /**
+         * The thresholds of each timestep which has been visited, when they
+         * are per-timestep
+         */
+        private Map<Integer, Map<String, ThresholdSettings>> timestepThresholds;
+        /**
+         * Reads neighbouring timesteps in the background. Created when first
+         * needed.
+         */
+        private ExecutorService prefetcher = null;
+        /** Incremented to abandon prefetches which are no longer wanted */
+        private final AtomicInteger prefetchGeneration = new AtomicInteger();
+        /**
+         * Reads variables which are likely to be displayed next in the
+         * background. Created when first needed.
+         */
+        private ExecutorService variablePrefetcher = null;
+        /**
+         * Incremented to abandon variable prefetches which are no longer
+         * wanted
+         */
+        private final AtomicInteger variablePrefetchGeneration = new AtomicInteger();
         private final DataReadingStrategy dataReadingStrategy;
         private Map<String, ThresholdMaskPlugin> thresholds;
         private ObservableList<String> unmaskedVariables;
         private ObservableList<String> originalVariables;
 
         private CompositeMaskPlugin compositePlugin;
+        /** The plugins which have been added, in order */
+        private List<VariablePlugin> addedPlugins;
+
+        private volatile CopyOnWriteMask manualMask;
+        /**
+         * The current version of the thresholds, composite components and
+         * manual masks. This is replaced (never modified) by each change.
+         */
+        private final AtomicReference<MaskState> state;
+        /**
+         * A version of the state pinned by the current thread, so that
+         * several reads can be made from the same version
+         */
+        private final ThreadLocal<MaskState> pinnedState = new ThreadLocal<>();
+        /** Where the manual masks have been edited, and when */
+        private final DirtyRegions manualMaskEdits = new DirtyRegions(MAX_EDIT_EXTENT);
 
-        private Array2D<Number> manualMask;
+        /** Cached statistics for each variable, calculated on first use */
+        private ConcurrentMap<String, FutureTask<VariableStatistics>> statistics;
 
-        public MaskedDataset(String id, String location, Collection<GridVariableMetadata> vars,
-                DataReadingStrategy dataReadingStrategy,
-                Map<String, ThresholdSettings> thresholdSettings, Array2D<Number> manualMaskVals)
-                throws EdalException {
+        /** Decoded tiles of the variables in the file, shared between reads */
+        private final TileCache tileCache;
+        /**
+         * Handles to each granule, so that data sources can read concurrently
+         */
+        private final NetcdfHandlePool[] handles;
+        /**
+         * Downsampled copies of the variables, used when rendering large
+         * areas
+         */
+        private final OverviewCache overviewCache;
+        /** The factors of the available overviews, smallest first */
+        private final int[] overviewFactors;
+        /**
+         * Identifies the current versions of the files, so that overviews of
+         * older versions are never used
+         */
+        private final String overviewFileKey;
+        /**
+         * Memoised planes of the derived variables, or <code>null</code> if
+         * the grid is too large to keep whole planes in memory
+         */
+        private final DerivedPlanes derivedPlanes;
+        /**
+         * Whether reads are for a quick preview (e.g. whilst a threshold is
+         * being dragged), in which case planes of derived variables which
+         * aren't already memoised are only evaluated where they are read
+         */
+        private volatile boolean preview = false;
+
+        public MaskedDataset(String id, List<String> granules, int[] granuleOffsets,
+                boolean alongY, double[] timeValues, String timeUnits,
+                Collection<GridVariableMetadata> vars, DataReadingStrategy dataReadingStrategy,
+                Map<String, ThresholdSettings> thresholdSettings,
+                CopyOnWriteMask[] manualMaskVals) throws EdalException {
             super(id, filterVars(vars));
-            this.location = location;
+            this.granules = granules;
+            this.granuleOffsets = granuleOffsets;
+            this.alongY = alongY;
+            this.timeValues = timeValues;
+            this.timeUnits = timeUnits;
+            this.timestepThresholds = new HashMap<>();
             this.dataReadingStrategy = dataReadingStrategy;
 
-            this.thresholds = new HashMap<>();
+            this.thresholds = new ConcurrentHashMap<>();
+            this.statistics = new ConcurrentHashMap<>();
+            this.tileCache = new TileCache(Runtime.getRuntime().maxMemory() / 4);
+            this.overviewCache = new OverviewCache(Runtime.getRuntime().maxMemory() / 16,
+                    overviewDiskSize > 0 ? OVERVIEW_DIRECTORY : null, overviewDiskSize);
+            StringBuilder fileKey = new StringBuilder();
+            for (String granule : granules) {
+                File file = new File(granule);
+                fileKey.append(file.getAbsolutePath() + ":" + file.length() + ":"
+                        + file.lastModified() + ";");
+            }
+            this.overviewFileKey = fileKey.toString();
+            HorizontalGrid grid = vars.iterator().next().getHorizontalDomain();
+            List<Integer> factors = new ArrayList<>();
+            int minSize = Math.min(grid.getXSize(), grid.getYSize());
+            for (int factor = 2; minSize / factor >= MIN_OVERVIEW_SIZE; factor *= 2) {
+                factors.add(factor);
+            }
+            this.overviewFactors = new int[factors.size()];
+            for (int f = 0; f < overviewFactors.length; f++) {
+                overviewFactors[f] = factors.get(f);
+            }
+            if ((long) grid.getXSize() * grid.getYSize() <= MAX_EVALUATED_VALUES) {
+                this.derivedPlanes = new DerivedPlanes(Runtime.getRuntime().maxMemory() / 8,
+                        new DerivedPlanes.Generator() {
+                            @Override
+                            public boolean isDerived(String varId) {
+                                return getRowPlugin(varId) != null
+                                        || getFilteredVariable(varId) != null;
+                            }
+
+                            @Override
+                            public String[] getSources(String varId) {
+                                VariablePlugin rowPlugin = getRowPlugin(varId);
+                                if (rowPlugin != null) {
+                                    return rowPlugin.usesVariables();
+                                }
+                                String filtered = getFilteredVariable(varId);
+                                if (filtered != null) {
+                                    return new String[] { filtered };
+                                }
+                                return new String[0];
+                            }
+
+                            @Override
+                            public FloatArray4D generate(String varId, int t)
+                                    throws IOException {
+                                return generatePlane(varId, t);
+                            }
+                        });
+            } else {
+                this.derivedPlanes = null;
+            }
+            this.handles = new NetcdfHandlePool[granules.size()];
+            for (int g = 0; g < granules.size(); g++) {
+                /*
+                 * Pools only open files when they are first read, so
+                 * granules which are never viewed are never opened
+                 */
+                handles[g] = new NetcdfHandlePool(granules.get(g), Runtime.getRuntime()
+                        .availableProcessors());
+            }
+            this.addedPlugins = new ArrayList<>();
             unmaskedVariables = FXCollections.observableArrayList(getVariableIds());
             originalVariables = FXCollections.observableArrayList(getVariableIds());
 
+            manualMasks = manualMaskVals;
+            manualMask = manualMasks[0];
+            CopyOnWriteMask.Snapshot[] maskSnapshots = new CopyOnWriteMask.Snapshot[
+                    manualMasks.length];
+            for (int t = 0; t < manualMasks.length; t++) {
+                maskSnapshots[t] = manualMasks[t].snapshot();
+            }
+            this.state = new AtomicReference<>(new MaskState(
+                    Collections.<String, ThresholdSettings> emptyMap(),
+                    new String[] { MANUAL_MASK_NAME }, maskSnapshots, 0L));
+
             Set<String> variableIds = new HashSet<>(getVariableIds());
             String[] allVars = new String[variableIds.size()];
             int i = 0;
             for (String var : variableIds) {
+                addOverviews(var);
                 addMaskToVariable(var);
                 allVars[i++] = var;
                 if (thresholdSettings.containsKey(var)) {
                     ThresholdSettings ts = thresholdSettings.get(var);
-                    setMaskMinThreshold(var, ts.min);
-                    setMaskMaxThreshold(var, ts.max);
+                    setMaskThreshold(var, ts.min, ts.max);
                     setMaskThresholdInclusive(var, ts.inclusive);
                 }
             }
@@ -310,7 +736,6 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
              * mask
              */
             GridVariableMetadata metadata = vars.iterator().next();
-            manualMask = manualMaskVals;
             this.vars
                     .put(MANUAL_MASK_NAME,
                             new GridVariableMetadata(
@@ -322,6 +747,7 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
                                             ""), metadata.getHorizontalDomain(), metadata
                                             .getVerticalDomain(), metadata.getTemporalDomain(),
                                     true));
+            addOverviews(MANUAL_MASK_NAME);
             /*
              * We now add the composite mask plugin. This will have a domain
              * which is compatible with all other masked variables. However, no
@@ -329,23 +755,363 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
              */
             compositePlugin = new CompositeMaskPlugin(MANUAL_MASK_NAME);
             super.addVariablePlugin(compositePlugin);
+            addOverviews(CompositeMaskPlugin.COMPOSITEMASK);
         }
 
         @Override
         public void addVariablePlugin(VariablePlugin plugin) throws EdalException {
             super.addVariablePlugin(plugin);
+            addedPlugins.add(plugin);
             for (String newVar : plugin.providesVariables()) {
                 unmaskedVariables.add(newVar);
+                addOverviews(newVar);
                 addMaskToVariable(newVar);
             }
         }
 
         private void addMaskToVariable(String varId) throws EdalException {
-            Extent<Float> valueRange = GraphicsUtils.estimateValueRange(this, varId);
-            ThresholdMaskPlugin thresholdPlugin = new ThresholdMaskPlugin(varId,
-                    valueRange.getLow(), valueRange.getHigh());
+            ThresholdMaskPlugin thresholdPlugin = new ThresholdMaskPlugin(varId, this);
             super.addVariablePlugin(thresholdPlugin);
             thresholds.put(varId, thresholdPlugin);
+            for (String maskVar : thresholdPlugin.providesVariables()) {
+                addOverviews(maskVar);
+            }
+        }
+
+        /**
+         * Adds the metadata for the overviews of a variable. Whether they can
+         * be read depends on how the variable is generated - see
+         * {@link #hasOverviews(String)}
+         */
+        private void addOverviews(String varId) throws VariableNotFoundException {
+            GridVariableMetadata metadata = getVariableMetadata(varId);
+            Parameter p = metadata.getParameter();
+            HorizontalGrid grid = metadata.getHorizontalDomain();
+            for (int factor : overviewFactors) {
+                /*
+                 * Each overview cell is centred on the block of cells it
+                 * covers, so overviews share the co-ordinates of the full
+                 * grid
+                 */
+                RegularAxis xAxis = new RegularAxisImpl("x-axis", (factor - 1) / 2.0, factor,
+                        OverviewCache.getOverviewSize(grid.getXSize(), factor), false);
+                RegularAxis yAxis = new RegularAxisImpl("y-axis", (factor - 1) / 2.0, factor,
+                        OverviewCache.getOverviewSize(grid.getYSize(), factor), false);
+                String overviewId = getOverviewId(varId, factor);
+                vars.put(overviewId, new GridVariableMetadata(new Parameter(overviewId,
+                        p.getTitle(), "Overview of (" + p.getDescription() + ") at 1/" + factor
+                                + " resolution", p.getUnits(), p.getStandardName()),
+                        new RegularGridImpl(xAxis, yAxis, null), metadata.getVerticalDomain(),
+                        metadata.getTemporalDomain(), true));
+            }
+        }
+
+        /**
+         * @return The factors by which the overviews of variables are reduced
+         *         in each direction, smallest first. This is empty for small
+         *         grids
+         */
+        public int[] getOverviewFactors() {
+            return overviewFactors;
+        }
+
+        /**
+         * @param varId
+         *            The ID of the variable
+         * @param factor
+         *            One of the factors from {@link #getOverviewFactors()}
+         * @return The ID of the overview of the variable with the given factor
+         */
+        public String getOverviewId(String varId, int factor) {
+            return varId + OVERVIEW_SEPARATOR + factor;
+        }
+
+        /**
+         * @return The factor of the overview with the given ID, or 1 if it is
+         *         not an overview
+         */
+        public int getOverviewFactorOf(String varId) {
+            int separator = varId.lastIndexOf(OVERVIEW_SEPARATOR);
+            if (separator > 0 && !originalVariables.contains(varId)) {
+                return Integer.parseInt(varId.substring(separator + 1));
+            }
+            return 1;
+        }
+
+        /**
+         * Chooses the overview to draw an area of some variables from.
+         * 
+         * Building an overview reads the whole of the variables, so one is
+         * only built if the area covers the whole grid (which needs reading
+         * anyway). Otherwise, overviews are only used if they have already
+         * been built, and reading the area at full resolution (through the
+         * tile cache) is cheaper.
+         * 
+         * @param varIds
+         *            The IDs of the variables, all of which must have
+         *            overviews (see {@link #hasOverviews(String)})
+         * @param dataPerPixel
+         *            The number of data cells covered by each pixel of an
+         *            image, along each axis
+         * @param areaCells
+         *            The number of full resolution data cells in the area
+         * @return The factor of the coarsest overview which still has at least
+         *         one value per pixel and is cheap to read, or 1 if the full
+         *         resolution data should be used
+         */
+        public int getOverviewFactor(Collection<String> varIds, double dataPerPixel,
+                long areaCells) {
+            int ySize = manualMask.getYSize();
+            int xSize = manualMask.getXSize();
+            List<Integer> candidates = new ArrayList<>();
+            for (int f = overviewFactors.length - 1; f >= 0; f--) {
+                int factor = overviewFactors[f];
+                /*
+                 * Overviews which are too large to cache would be built every
+                 * time they were used
+                 */
+                if (factor <= dataPerPixel && overviewCache.fits(ySize, xSize, factor)) {
+                    candidates.add(factor);
+                }
+            }
+            for (int factor : candidates) {
+                boolean available = true;
+                for (String varId : varIds) {
+                    if (!isOverviewAvailable(varId, factor, false)) {
+                        available = false;
+                        break;
+                    }
+                }
+                if (available) {
+                    return factor;
+                }
+            }
+            if (!candidates.isEmpty() && areaCells >= (long) ySize * xSize) {
+                return candidates.get(0);
+            }
+            return 1;
+        }
+
+        /**
+         * @return Whether an overview of a variable can be read without
+         *         building any overviews
+         */
+        private boolean isOverviewAvailable(String varId, int factor, boolean nearest) {
+            VariablePlugin rowPlugin = getRowPlugin(varId);
+            if (rowPlugin != null) {
+                String[] sources = rowPlugin == compositePlugin ? getState().compositeComponents
+                        : rowPlugin.usesVariables();
+                for (String source : sources) {
+                    if (!isOverviewAvailable(source, factor, true)) {
+                        return false;
+                    }
+                }
+                return true;
+            } else if (originalVariables.contains(varId)) {
+                return overviewCache.isAvailable(getOverviewKey(varId, timestep, factor,
+                        nearest));
+            }
+            /*
+             * The manual mask is sampled directly
+             */
+            return MANUAL_MASK_NAME.equals(varId);
+        }
+
+        /**
+         * @return The key of an overview of a variable in the files
+         */
+        private String getOverviewKey(String varId, int t, int factor, boolean nearest) {
+            return overviewFileKey + (timeValues == null ? "" : t + "/") + varId
+                    + OVERVIEW_SEPARATOR + factor + (nearest ? "/nearest" : "/mean");
+        }
+
+        /**
+         * @param varId
+         *            The ID of the variable
+         * @return Whether overviews of the variable can be read. This is the
+         *         case for the variables in the file, the manual mask, and
+         *         anything generated from them by {@link FloatRowPlugin}s
+         */
+        public boolean hasOverviews(String varId) {
+            if (overviewFactors.length == 0) {
+                return false;
+            }
+            VariablePlugin rowPlugin = getRowPlugin(varId);
+            if (rowPlugin != null) {
+                for (String usedVar : rowPlugin.usesVariables()) {
+                    if (!hasOverviews(usedVar)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return MANUAL_MASK_NAME.equals(varId) || originalVariables.contains(varId);
+        }
+
+        /**
+         * Gets the statistics for a variable. These are calculated from a
+         * single read of the data the first time they are requested and cached
+         * thereafter.
+         * 
+         * @param varId
+         *            The ID of the variable
+         * @return The {@link VariableStatistics} for the variable. If the
+         *         variable can't be read, these will be empty, and will be
+         *         calculated again the next time they are requested.
+         */
+        public VariableStatistics getStatistics(String varId) {
+            VariableStatistics stats = getOrCalculateStatistics(varId);
+            if (stats == null) {
+                return VariableStatistics.fromValues(new float[0], 0);
+            }
+            return stats;
+        }
+
+        /**
+         * Gets the cached statistics for a variable, calculating them if
+         * needed. Concurrent calls for the same variable share a single
+         * calculation.
+         * 
+         * @return The {@link VariableStatistics}, or <code>null</code> if the
+         *         variable couldn't be read. Failures are not cached.
+         */
+        private VariableStatistics getOrCalculateStatistics(final String varId) {
+            /*
+             * The calculation is a full read, which may itself need the
+             * statistics of other variables (e.g. for a threshold mask), so it
+             * runs outside of the map rather than in computeIfAbsent
+             */
+            FutureTask<VariableStatistics> task = statistics.get(varId);
+            if (task == null) {
+                FutureTask<VariableStatistics> newTask = new FutureTask<>(
+                        new Callable<VariableStatistics>() {
+                            @Override
+                            public VariableStatistics call() throws Exception {
+                                return calculateStatistics(varId);
+                            }
+                        });
+                task = statistics.putIfAbsent(varId, newTask);
+                if (task == null) {
+                    task = newTask;
+                    task.run();
+                }
+            }
+            try {
+                VariableStatistics stats = task.get();
+                if (stats == null) {
+                    statistics.remove(varId, task);
+                }
+                return stats;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                statistics.remove(varId, task);
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        /**
+         * @param varId
+         *            The ID of the variable
+         * @return The full range of values of the variable. This replaces
+         *         {@link uk.ac.rdg.resc.edal.graphics.utils.GraphicsUtils#estimateValueRange(Dataset, String)}
+         *         , but is only calculated once per variable.
+         */
+        public Extent<Float> getValueRange(String varId) {
+            return getStatistics(varId).getValueRange();
+        }
+
+        /**
+         * Calculates and caches the statistics for a number of variables in
+         * parallel. Statistics are otherwise calculated on first use, which
+         * requires a full read of the variable, so this can be used to do
+         * that work up front for variables which are known to be needed.
+         * 
+         * @param varIds
+         *            The IDs of the variables
+         * @param progressListener
+         *            A {@link LoadProgressListener} to receive an update as
+         *            each variable completes. May be <code>null</code>
+         */
+        public void prefetchStatistics(Collection<String> varIds,
+                LoadProgressListener progressListener) {
+            int nThreads = Math.max(1,
+                    Math.min(varIds.size(), Runtime.getRuntime().availableProcessors()));
+            ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+            CompletionService<String> completionService = new ExecutorCompletionService<>(
+                    executor);
+            for (final String varId : varIds) {
+                completionService.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        /*
+                         * Each read opens its own data source, so these are
+                         * independent of one another
+                         */
+                        if (getOrCalculateStatistics(varId) == null) {
+                            throw new DataReadingException("Could not read " + varId);
+                        }
+                        return varId;
+                    }
+                });
+            }
+            try {
+                for (int i = 1; i <= varIds.size(); i++) {
+                    String message;
+                    try {
+                        message = "Calculated statistics for " + completionService.take().get();
+                    } catch (ExecutionException e) {
+                        /*
+                         * This variable's statistics will be calculated (and
+                         * the error reported again) on demand
+                         */
+                        e.printStackTrace();
+                        message = "Failed to calculate statistics";
+                    }
+                    if (progressListener != null) {
+                        progressListener.progress(i, varIds.size(), message);
+                    }
+                }
+            } catch (InterruptedException e) {
+                /*
+                 * Anything not yet calculated will be done on demand
+                 */
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        /**
+         * @return The statistics of a variable, or <code>null</code> if it
+         *         can't be read
+         */
+        private VariableStatistics calculateStatistics(String varId) {
+            Array4D<Number> values;
+            try {
+                values = readFeature(varId).getValues(varId);
+            } catch (DataReadingException | VariableNotFoundException e) {
+                e.printStackTrace();
+                return null;
+            }
+            int xSize = values.getXSize();
+            int ySize = values.getYSize();
+            int stride = 1;
+            while (((long) xSize / stride) * (ySize / stride) > MAX_STATISTICS_SAMPLES) {
+                stride++;
+            }
+            float[] samples = new float[((xSize + stride - 1) / stride)
+                    * ((ySize + stride - 1) / stride)];
+            int n = 0;
+            for (int y = 0; y < ySize; y += stride) {
+                for (int x = 0; x < xSize; x += stride) {
+                    Number value = values.get(0, 0, y, x);
+                    samples[n++] = value == null ? Float.NaN : value.floatValue();
+                }
+            }
+            return VariableStatistics.fromValues(samples, n);
         }
 
         public void setMaskMaxThreshold(String varId, double max) {
@@ -365,11 +1131,17 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
         }
 
         public boolean isMaskThresholdInclusive(String varId) {
-            return thresholds.get(varId).inclusive;
+            return thresholds.get(varId).getSettings().inclusive;
         }
 
         public void setMaskedVariables(String... vars) {
             compositePlugin.setMasks(vars);
+            MaskState current;
+            do {
+                current = state.get();
+            } while (!state.compareAndSet(current,
+                    current.withCompositeComponents(compositePlugin.usesVariables())));
+            invalidate(CompositeMaskPlugin.COMPOSITEMASK);
         }
 
         public String[] getMaskedVariables() {
@@ -377,8 +1149,8 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
         }
 
         public Extent<Double> getMaskThreshold(String varId) {
-            ThresholdMaskPlugin plugin = thresholds.get(varId);
-            return Extents.newExtent(plugin.min, plugin.max);
+            ThresholdSettings settings = thresholds.get(varId).getSettings();
+            return Extents.newExtent(settings.min, settings.max);
         }
 
         public ObservableList<String> getUnmaskedVariableNames() {
@@ -459,15 +1231,273 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
             }
         }
         
-        @Override
-        protected GridDataSource openDataSource() {
-            NetcdfDataset nc;
+        /**
+         * @return The variable which a median / stddev variable filters, or
+         *         <code>null</code> if the given variable is not filtered
+         */
+        private String getFilteredVariable(String varId) {
+            if (!unmaskedVariables.contains(varId)) {
+                return null;
+            } else if (varId.endsWith(MEDIAN)) {
+                return varId.substring(0, varId.length() - MEDIAN.length());
+            } else if (varId.endsWith(STDDEV)) {
+                return varId.substring(0, varId.length() - STDDEV.length());
+            }
+            return null;
+        }
+
+        /**
+         * Generates the whole grid of a derived variable, reading the
+         * variables it is derived from through {@link #derivedPlanes}
+         */
+        private FloatArray4D generatePlane(String varId, int t) throws IOException {
+            GridDataSource dataSource = openDataSource(t, varId);
             try {
-                nc = NetcdfDatasetAggregator.getDataset(location);
-            } catch (EdalException | IOException e) {
-                throw new DataReadingException("Problem aggregating datasets", e);
+                return FloatArray4D.materialise((FloatArray4D) dataSource.read(varId, 0, 0, 0,
+                        0, 0, manualMask.getYSize() - 1, 0, manualMask.getXSize() - 1));
+            } catch (DataReadingException e) {
+                throw new IOException(e);
+            } finally {
+                dataSource.close();
             }
+        }
+
+        /**
+         * Discards the memoised planes of a variable, and of everything
+         * derived from it. This must be called whenever something which
+         * determines the values of a derived variable changes.
+         */
+        private void invalidate(String varId) {
+            if (derivedPlanes != null) {
+                derivedPlanes.invalidate(varId);
+            }
+        }
+
+        /**
+         * Sets whether reads are for a quick preview. Whilst they are, derived
+         * variables which have changed are only evaluated at the cells which
+         * are read (i.e. at the resolution of the image being drawn), rather
+         * than regenerating their whole planes each time they change. The
+         * planes are regenerated by the first read after the preview ends.
+         * 
+         * @param preview
+         *            Whether reads are for a preview
+         */
+        public void setPreview(boolean preview) {
+            this.preview = preview;
+        }
+
+        /**
+         * @return Whether reads are currently for a quick preview
+         */
+        public boolean isPreview() {
+            return preview;
+        }
+
+        /**
+         * Called when the manual mask has been edited other than through
+         * {@link #setManualMaskPixels(List, boolean)} or
+         * {@link #setManualMask(GridCoordinates2D, Integer, int)}
+         */
+        void manualMaskEdited() {
+            manualMaskEdits.editedAll();
+            manualMaskChanged();
+        }
+
+        /**
+         * Publishes the current manual mask in a new version of the state,
+         * and discards anything derived from the old one. This should be
+         * called on the thread which edits the mask, after each edit.
+         */
+        private void manualMaskChanged() {
+            CopyOnWriteMask.Snapshot snapshot = manualMask.snapshot();
+            long version = manualMaskEdits.getVersion();
+            MaskState current;
+            do {
+                current = state.get();
+            } while (!state.compareAndSet(current,
+                    current.withManualMask(timestep, snapshot, version)));
+            invalidate(MANUAL_MASK_NAME);
+        }
+
+        /**
+         * @return The version of the state which the current thread should
+         *         read from
+         */
+        private MaskState getState() {
+            MaskState pinned = pinnedState.get();
+            return pinned == null ? state.get() : pinned;
+        }
+
+        /**
+         * Makes all reads on the current thread use the current version of
+         * the thresholds, composite components and manual masks, until
+         * {@link #unpinState()} is called. This ensures that several reads
+         * (e.g. of the layers of an image) are consistent with each other,
+         * even if they are edited in the meantime.
+         */
+        public void pinState() {
+            pinnedState.set(state.get());
+        }
+
+        /**
+         * Makes reads on the current thread use the latest state again
+         */
+        public void unpinState() {
+            pinnedState.remove();
+        }
+
+        /**
+         * Gets the versions of everything which the values of a variable are
+         * derived from. If any of these change, anything cached from the
+         * variable may be stale.
+         * 
+         * @param varId
+         *            The ID of the variable (or of one of its overviews)
+         * @return A map of input ID to version. The versions should only be
+         *         compared for equality, except for that of the manual mask
+         *         (see
+         *         {@link #isManualMaskEdited(long, int, int, int, int, int)})
+         *         .
+         */
+        public Map<String, Object> getInputVersions(String varId) {
+            if (getOverviewFactorOf(varId) > 1) {
+                varId = varId.substring(0, varId.lastIndexOf(OVERVIEW_SEPARATOR));
+            }
+            Map<String, Object> versions = new HashMap<>();
+            addInputVersions(varId, versions);
+            return versions;
+        }
+
+        private void addInputVersions(String varId, Map<String, Object> versions) {
+            if (versions.containsKey(varId)) {
+                return;
+            }
+            if (MANUAL_MASK_NAME.equals(varId)) {
+                versions.put(varId, getState().manualMaskVersion);
+                return;
+            }
+            String filtered = getFilteredVariable(varId);
+            if (filtered != null) {
+                addInputVersions(filtered, versions);
+                return;
+            }
+            VariablePlugin plugin = super.isDerivedVariable(varId);
+            if (plugin == null) {
+                /*
+                 * The variables in the files never change
+                 */
+                return;
+            }
+            String[] usedVars = plugin.usesVariables();
+            if (plugin instanceof ThresholdMaskPlugin) {
+                versions.put(varId, ((ThresholdMaskPlugin) plugin).getVersion());
+            } else if (plugin == compositePlugin) {
+                usedVars = getState().compositeComponents;
+                versions.put(varId, Arrays.asList(usedVars));
+            } else {
+                /*
+                 * Other plugins can't be changed once added
+                 */
+                versions.put(varId, Boolean.TRUE);
+            }
+            for (String usedVar : usedVars) {
+                addInputVersions(usedVar, versions);
+            }
+        }
+
+        /**
+         * @param since
+         *            A version of the manual mask, from
+         *            {@link #getInputVersions(String)}
+         * @param t
+         *            The timestep
+         * @return Whether the manual mask of the given timestep may have been
+         *         edited within the given range (inclusive) since the given
+         *         version
+         */
+        public boolean isManualMaskEdited(long since, int t, int xmin, int ymin, int xmax,
+                int ymax) {
+            return manualMaskEdits.isEdited(since, t, xmin, ymin, xmax, ymax);
+        }
+
+        @Override
+        protected GridDataSource openDataSource() {
+            return openDataSource(timestep, null);
+        }
+
+        /**
+         * Opens a data source which reads from the current version of the
+         * state (or the version pinned by this thread), however it is edited
+         * whilst the data source is open.
+         * 
+         * @param t
+         *            The timestep to read. This is fixed for the life of the
+         *            data source, so that changing timestep part way through
+         *            a read has no effect on it
+         * @param generating
+         *            The derived variable which this data source is being
+         *            used to generate the plane of, or <code>null</code>.
+         *            Reads of any other derived variable use its memoised
+         *            plane.
+         */
+        private GridDataSource openDataSource(final int t, final String generating) {
+            Timings.dataSourceOpened();
             return new GridDataSource() {
+                private final MaskState pinned = getState();
+                private final CopyOnWriteMask.Snapshot mask = pinned.manualMasks[t];
+                /*
+                 * Handles are only taken from the pools when a granule is
+                 * first read
+                 */
+                private final NetcdfDataset[] ncs = new NetcdfDataset[granules.size()];
+
+                private NetcdfDataset getGranule(int granule) throws IOException {
+                    if (ncs[granule] == null) {
+                        ncs[granule] = handles[granule].acquire();
+                    }
+                    return ncs[granule];
+                }
+
+                /**
+                 * Reads a range of a variable from the file(s), reading only
+                 * from the granules which the range overlaps
+                 */
+                private FloatArray4D readFromGranules(String variableId, int ymin, int ymax,
+                        int xmin, int xmax) throws IOException, DataReadingException {
+                    int min = alongY ? ymin : xmin;
+                    int max = alongY ? ymax : xmax;
+                    List<FloatArray4D> parts = new ArrayList<>();
+                    for (int g = 0; g < granules.size(); g++) {
+                        int start = granuleOffsets[g];
+                        int end = granuleOffsets[g + 1] - 1;
+                        if (end < min || start > max) {
+                            continue;
+                        }
+                        Variable variable = getGranule(g).findVariable(variableId);
+                        if (variable == null) {
+                            throw new DataReadingException("No variable " + variableId + " in "
+                                    + granules.get(g));
+                        }
+                        int from = Math.max(min, start) - start;
+                        int to = Math.min(max, end) - start;
+                        /*
+                         * 2D variables are the same for every timestep, so
+                         * their tiles are shared between them
+                         */
+                        String tileId = g + "/" + variableId;
+                        if (variable.getRank() == 3) {
+                            tileId = g + "/" + t + "/" + variableId;
+                        }
+                        if (alongY) {
+                            parts.add(tileCache.read(tileId, variable, t, from, to, xmin, xmax));
+                        } else {
+                            parts.add(tileCache.read(tileId, variable, t, ymin, ymax, from, to));
+                        }
+                    }
+                    return FloatArray4D.concatenate(parts.toArray(new FloatArray4D[parts.size()]),
+                            alongY);
+                }
 
                 private Array4D<Number> readNormal(String variableId, int tmin, int tmax, int zmin,
                         int zmax, final int ymin, final int ymax, final int xmin, final int xmax)
@@ -480,51 +1510,25 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
                      * needs to be read than returned
                      */
                     if (MANUAL_MASK_NAME.equals(variableId)) {
-                        return new Array4D<Number>(1, 1, 1 + (ymax - ymin), 1 + (xmax - xmin)) {
+                        return new FloatArray4D(1 + (ymax - ymin), 1 + (xmax - xmin)) {
                             @Override
-                            public Number get(int... coords) {
-                                int y = ymin + coords[2];
-                                int x = xmin + coords[3];
-                                return manualMask.get(y, x);
+                            public float getFloat(int y, int x) {
+                                byte value = mask.getByte(ymin + y, xmin + x);
+                                return value == CopyOnWriteMask.UNSET ? Float.NaN : value;
                             }
 
-                            @Override
-                            public void set(Number value, int... coords) {
-                                throw new UnsupportedOperationException("Immutable array");
-                            }
-                        };
-                    } else {
-                        List<Range> ranges = new ArrayList<>();
-                        Array arr;
-                        try {
-                            ranges.add(new Range(ymin, ymax));
-                            ranges.add(new Range(xmin, xmax));
-                            arr = nc.findVariable(variableId).read(ranges);
-                        } catch (InvalidRangeException e) {
-                            e.printStackTrace();
-                            throw new DataReadingException("Problem reading data", e);
-                        }
-                        return new Array4D<Number>(1, 1, (ymax - ymin) + 1, (xmax - xmin) + 1) {
                             @Override
                             public Number get(int... coords) {
-                                int y = coords[2];
-                                int x = coords[3];
-
                                 /*
-                                 * We are reading
+                                 * Unset values are null rather than NaN
                                  */
-                                Index index = arr.getIndex();
-                                index.setDim(0, y);
-                                index.setDim(1, x);
-
-                                return arr.getFloat(index);
-                            }
-
-                            @Override
-                            public void set(Number value, int... coords) {
-                                throw new UnsupportedOperationException("Immutable array");
+                                int y = ymin + coords[2];
+                                int x = xmin + coords[3];
+                                return mask.get(y, x);
                             }
                         };
+                    } else {
+                        return readFromGranules(variableId, ymin, ymax, xmin, xmax);
                     }
                 }
 
@@ -543,9 +1547,6 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
                     int dataArraySizeX = xmax - xmin + 1;
                     int dataArraySizeY = ymax - ymin + 1;
 
-                    List<Range> ranges = new ArrayList<>();
-                    Array arr;
-
                     /*
                      * Here we adjust the range of the underlying data to read,
                      * expanding by one pixel at each edge if this is possible
@@ -564,43 +1565,46 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
                         xminData = xmin;
                     }
                     int ymaxData;
-                    if (ymax < yDimension.getLength() - 1) {
+                    if (ymax < mask.getYSize() - 1) {
                         ymaxData = ymax + 1;
                     } else {
                         ymaxData = ymax;
                     }
                     int xmaxData;
-                    if (xmax < yDimension.getLength() - 1) {
+                    if (xmax < mask.getXSize() - 1) {
                         xmaxData = xmax + 1;
                     } else {
                         xmaxData = xmax;
                     }
 
-                    try {
-                        ranges.add(new Range(yminData, ymaxData));
-                        ranges.add(new Range(xminData, xmaxData));
-                        arr = nc.findVariable(variableId).read(ranges);
-                    } catch (InvalidRangeException e) {
-                        e.printStackTrace();
-                        throw new DataReadingException("Problem reading data", e);
-                    }
-                    return new Array4D<Number>(1, 1, dataArraySizeY, dataArraySizeX) {
+                    final FloatArray4D data = readFromGranules(variableId, yminData, ymaxData,
+                            xminData, xmaxData);
+                    return new FloatArray4D(dataArraySizeY, dataArraySizeX) {
+                        /*
+                         * Each thread reuses a buffer for the window values,
+                         * to avoid allocating for every pixel
+                         */
+                        private final ThreadLocal<float[]> windows = new ThreadLocal<float[]>() {
+                            @Override
+                            protected float[] initialValue() {
+                                return new float[9];
+                            }
+                        };
+
                         @Override
-                        public Number get(int... coords) {
-                            int y = coords[2];
-                            int x = coords[3];
+                        public float getFloat(int y, int x) {
 
                             /*
                              * Read data in a 3x3 window centred around the
                              * requested pixel
                              */
 
-                            List<Float> values = new ArrayList<>();
+                            float[] values = windows.get();
 
                             if ((xmin == 0 && x == 0)
                                     || (ymin == 0 && y == 0)
-                                    || (xmax == xDimension.getLength() - 1 && x == dataArraySizeX - 1)
-                                    || (ymax == yDimension.getLength() - 1 && y == dataArraySizeY - 1)) {
+                                    || (xmax == mask.getXSize() - 1 && x == dataArraySizeX - 1)
+                                    || (ymax == mask.getYSize() - 1 && y == dataArraySizeY - 1)) {
                                 /*
                                  * If have read from the edge of the underlying
                                  * data and are now trying to access the edge of
@@ -610,7 +1614,6 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
                                 return Float.NaN;
                             }
 
-                            Index index = arr.getIndex();
                             /*-
                              * The data read and stored in arr is indexed from
                              * 0.
@@ -642,19 +1645,22 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
                              * plan on editing this.  Which hopefully you won't have to,
                              * because I've spent a brainachy time getting it right...
                              */
+                            int n = 0;
                             for (int i = 0; i <= 2; i++) {
                                 for (int j = 0; j <= 2; j++) {
+                                    int xIndex;
                                     if (xmin == 0) {
-                                        index.setDim(1, x + i - 1);
+                                        xIndex = x + i - 1;
                                     } else {
-                                        index.setDim(1, x + i);
+                                        xIndex = x + i;
                                     }
+                                    int yIndex;
                                     if (ymin == 0) {
-                                        index.setDim(0, y + j - 1);
+                                        yIndex = y + j - 1;
                                     } else {
-                                        index.setDim(0, y + j);
+                                        yIndex = y + j;
                                     }
-                                    values.add(arr.getFloat(index));
+                                    values[n++] = data.getFloat(yIndex, xIndex);
                                 }
                             }
 
@@ -662,38 +1668,162 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
                                 /*
                                  * Sort numerically and pick the middle value
                                  */
-                                Collections.sort(values);
-                                return values.get(4);
+                                Arrays.sort(values);
+                                return values[4];
                             } else {
                                 /*
                                  * We have a standard deviation
                                  */
                                 float mean = 0.0f;
-                                for (Float value : values) {
+                                for (float value : values) {
                                     mean += value / 9f;
                                 }
 
                                 float var = 0.0f;
-                                for (Float value : values) {
+                                for (float value : values) {
                                     var += (value - mean) * (value - mean);
                                 }
 
-                                return Math.sqrt(var);
+                                return (float) Math.sqrt(var);
                             }
                         }
+                    };
+                }
 
-                        @Override
-                        public void set(Number value, int... coords) {
-                            throw new UnsupportedOperationException("Immutable array");
+                /**
+                 * Generates the values of a {@link FloatRowPlugin}.
+                 * Expressions are generated up front in parallel, since they
+                 * are expensive to evaluate a value at a time, and renders
+                 * read most of the values they ask for. Other plugins
+                 * generate values as they are read.
+                 */
+                private FloatArray4D generate(VariablePlugin rowPlugin, FloatArray4D[] sources,
+                        int ySize, int xSize) throws DataReadingException {
+                    FloatRowPlugin floatPlugin = (FloatRowPlugin) rowPlugin;
+                    if (rowPlugin instanceof ThresholdMaskPlugin) {
+                        ThresholdMaskPlugin threshold = (ThresholdMaskPlugin) rowPlugin;
+                        floatPlugin = threshold.forSettings(threshold.getSettings(pinned));
+                    }
+                    if (rowPlugin instanceof ExpressionPlugin
+                            && (long) ySize * xSize <= MAX_EVALUATED_VALUES) {
+                        return FloatArray4D.materialise(new PluginFloatArray4D(floatPlugin,
+                                sources, ySize, xSize));
+                    }
+                    return new PluginFloatArray4D(floatPlugin, sources, ySize, xSize);
+                }
+
+                /**
+                 * @return The variables used by a plugin in the pinned state
+                 */
+                private String[] getSources(VariablePlugin rowPlugin) {
+                    if (rowPlugin == compositePlugin) {
+                        return pinned.compositeComponents;
+                    }
+                    return rowPlugin.usesVariables();
+                }
+
+                /**
+                 * Reads a range of an overview of a variable
+                 * 
+                 * @param nearest
+                 *            Whether to use the value nearest the centre of
+                 *            each block rather than the mean. Variables
+                 *            generated by plugins use the nearest values of
+                 *            their sources, so that masks are never averaged
+                 */
+                private FloatArray4D readOverview(String variableId, final int factor,
+                        boolean nearest, final int ymin, int ymax, final int xmin, int xmax)
+                        throws IOException, DataReadingException {
+                    VariablePlugin rowPlugin = getRowPlugin(variableId);
+                    if (rowPlugin != null) {
+                        String[] sourceIds = getSources(rowPlugin);
+                        FloatArray4D[] sources = new FloatArray4D[sourceIds.length];
+                        for (int i = 0; i < sourceIds.length; i++) {
+                            sources[i] = readOverview(sourceIds[i], factor, true, ymin, ymax,
+                                    xmin, xmax);
                         }
-                    };
+                        return generate(rowPlugin, sources, (ymax - ymin) + 1,
+                                (xmax - xmin) + 1);
+                    }
+
+                    final int ySize = mask.getYSize();
+                    final int xSize = mask.getXSize();
+                    if (MANUAL_MASK_NAME.equals(variableId)) {
+                        /*
+                         * The mask is already in memory, so is sampled
+                         * directly
+                         */
+                        return new FloatArray4D(1 + (ymax - ymin), 1 + (xmax - xmin)) {
+                            @Override
+                            public float getFloat(int y, int x) {
+                                byte value = mask.getByte(
+                                        OverviewCache.getNearestIndex(ymin + y, factor, ySize),
+                                        OverviewCache.getNearestIndex(xmin + x, factor, xSize));
+                                return value == CopyOnWriteMask.UNSET ? Float.NaN : value;
+                            }
+                        };
+                    } else if (originalVariables.contains(variableId)) {
+                        final String sourceId = variableId;
+                        String key = getOverviewKey(variableId, t, factor, nearest);
+                        final FloatArray4D overview = overviewCache.get(key, ySize, xSize,
+                                factor, nearest, new OverviewCache.RowReader() {
+                                    @Override
+                                    public FloatArray4D read(int ymin, int ymax)
+                                            throws IOException {
+                                        try {
+                                            return readFromGranules(sourceId, ymin, ymax, 0,
+                                                    xSize - 1);
+                                        } catch (DataReadingException e) {
+                                            throw new IOException(e);
+                                        }
+                                    }
+                                });
+                        return FloatArray4D.subset(overview, ymin, ymax, xmin, xmax);
+                    } else {
+                        throw new DataReadingException("No overviews of " + variableId);
+                    }
                 }
 
                 @Override
                 public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
                         int zmax, int ymin, int ymax, int xmin, int xmax) throws IOException,
                         DataReadingException {
-                    if (variableId.endsWith(MEDIAN) && unmaskedVariables.contains(variableId)) {
+                    int separator = variableId.lastIndexOf(OVERVIEW_SEPARATOR);
+                    if (separator > 0 && !originalVariables.contains(variableId)) {
+                        int factor = Integer.parseInt(variableId.substring(separator + 1));
+                        return readOverview(variableId.substring(0, separator), factor, false,
+                                ymin, ymax, xmin, xmax);
+                    }
+                    if (derivedPlanes != null && !variableId.equals(generating)
+                            && pinned == state.get()
+                            && (getRowPlugin(variableId) != null
+                                    || getFilteredVariable(variableId) != null)) {
+                        /*
+                         * Planes are always of the latest state, so can only
+                         * be used if it hasn't changed since this data
+                         * source was opened. Otherwise the variable is
+                         * generated from the pinned state below, as it is
+                         * for a preview when the plane isn't already
+                         * available.
+                         */
+                        FloatArray4D plane = preview ? derivedPlanes.getIfPresent(variableId,
+                                t) : derivedPlanes.get(variableId, t);
+                        if (plane != null && pinned == state.get()) {
+                            return FloatArray4D.subset(plane, ymin, ymax, xmin, xmax);
+                        }
+                    }
+                    VariablePlugin rowPlugin = getRowPlugin(variableId);
+                    if (rowPlugin != null) {
+                        String[] sourceIds = getSources(rowPlugin);
+                        FloatArray4D[] sources = new FloatArray4D[sourceIds.length];
+                        for (int i = 0; i < sourceIds.length; i++) {
+                            sources[i] = (FloatArray4D) read(sourceIds[i], tmin, tmax, zmin,
+                                    zmax, ymin, ymax, xmin, xmax);
+                        }
+                        return generate(rowPlugin, sources, (ymax - ymin) + 1,
+                                (xmax - xmin) + 1);
+                    } else if (variableId.endsWith(MEDIAN)
+                            && unmaskedVariables.contains(variableId)) {
                         return read3x3Window(
                                 variableId.substring(0, variableId.length() - MEDIAN.length()),
                                 tmin, tmax, zmin, zmax, ymin, ymax, xmin, xmax, true);
@@ -710,11 +1840,67 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
 
                 @Override
                 public void close() {
-                    NetcdfDatasetAggregator.releaseDataset(nc);
+                    for (int g = 0; g < ncs.length; g++) {
+                        if (ncs[g] != null) {
+                            handles[g].release(ncs[g]);
+                            ncs[g] = null;
+                        }
+                    }
                 }
             };
         }
 
+        /**
+         * Variables provided by {@link FloatRowPlugin}s are generated by the
+         * data source (see {@link #openDataSource()}), so are not treated as
+         * derived variables here. This avoids boxing and allocating for every
+         * pixel when they are read.
+         */
+        @Override
+        public VariablePlugin isDerivedVariable(String varId) {
+            if (getRowPlugin(varId) != null) {
+                return null;
+            }
+            return super.isDerivedVariable(varId);
+        }
+
+        /**
+         * @param varId
+         *            The ID of the variable
+         * @return The plugin providing the variable, if it is a
+         *         {@link FloatRowPlugin} and all of the variables it uses can
+         *         be read from the data source. Otherwise <code>null</code>
+         */
+        private VariablePlugin getRowPlugin(String varId) {
+            VariablePlugin plugin = super.isDerivedVariable(varId);
+            if (!(plugin instanceof FloatRowPlugin)) {
+                return null;
+            }
+            for (String usedVar : plugin.usesVariables()) {
+                if (super.isDerivedVariable(usedVar) != null && getRowPlugin(usedVar) == null) {
+                    return null;
+                }
+            }
+            return plugin;
+        }
+
+        @Override
+        public GridFeature readFeature(String featureId) throws DataReadingException,
+                VariableNotFoundException {
+            boolean derived = !originalVariables.contains(featureId);
+            VariableReadEvent event = new VariableReadEvent(featureId, getGridSize(), derived);
+            event.start();
+            try {
+                long start = Timings.start();
+                GridFeature feature = super.readFeature(featureId);
+                Timings.record(derived ? Stage.PLUGIN_EVALUATION : Stage.READ_FEATURE, featureId,
+                        start);
+                return feature;
+            } finally {
+                event.finish();
+            }
+        }
+
         @Override
         protected DataReadingStrategy getDataReadingStrategy() {
             return dataReadingStrategy;
@@ -747,7 +1933,7 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
                                             && y < values.getYSize()) {
                                         Number oldValue = values.get(0, 0, y, x);
                                         Number oldManualValue = manualMask.get(y, x);
-                                        if (setManualMaskPixel(x, y, value, oldValue)) {
+                                        if (setManualMaskValue(x, y, value, oldValue)) {
                                             /*
                                              * Add changed pixel to return list
                                              */
@@ -763,12 +1949,40 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
                     }
                 }
             }
+            if (!changes.isEmpty()) {
+                manualMaskChanged();
+            }
             return changes;
         }
 
-        boolean setManualMaskPixel(int x, int y, Integer newValue, Number oldValue) {
+        /**
+         * Sets the manual mask pixels of several {@link PixelChange}s, e.g.
+         * to undo or redo them
+         * 
+         * @param undo
+         *            <code>true</code> to set the pixels back to the values
+         *            they were changed from, <code>false</code> to set them
+         *            to the values they were changed to
+         */
+        public void setManualMaskPixels(List<PixelChange> changes, boolean undo) {
+            for (PixelChange change : changes) {
+                setManualMaskValue(change.coords.getX(), change.coords.getY(),
+                        undo ? change.fromValue : change.toValue, undo ? change.toValue
+                                : change.fromValue);
+            }
+            manualMaskChanged();
+        }
+
+        /**
+         * Sets a value of the manual mask without publishing it - see
+         * {@link #manualMaskChanged()}
+         * 
+         * @return Whether the value was set
+         */
+        private boolean setManualMaskValue(int x, int y, Integer newValue, Number oldValue) {
             if (newValue == null && oldValue != null) {
                 manualMask.set(newValue, y, x);
+                manualMaskEdits.edited(timestep, x, y);
                 return true;
             } else if (oldValue == null
                     || (MANUAL_CLEAR == newValue && oldValue.floatValue() != 0f)
@@ -779,14 +1993,384 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
                  * Only set cloudy / clear if this changes the composite mask
                  */
                 manualMask.set(newValue, y, x);
+                manualMaskEdits.edited(timestep, x, y);
                 return true;
             }
             return false;
         }
 
+        /**
+         * Closes the files held open by this dataset and frees its cached
+         * data. The dataset should not be read from afterwards.
+         */
+        public void close() {
+            if (prefetcher != null) {
+                prefetchGeneration.incrementAndGet();
+                prefetcher.shutdown();
+            }
+            if (variablePrefetcher != null) {
+                variablePrefetchGeneration.incrementAndGet();
+                variablePrefetcher.shutdown();
+            }
+            for (NetcdfHandlePool granuleHandles : handles) {
+                granuleHandles.close();
+            }
+            clearCaches();
+        }
+
+        /**
+         * Frees the data cached in memory: tiles of the files, overviews, and
+         * planes of derived variables. These are all read or generated again
+         * when next needed. Overviews persisted on disk are left in place.
+         */
+        public void clearCaches() {
+            tileCache.clear();
+            overviewCache.clear();
+            if (derivedPlanes != null) {
+                derivedPlanes.clear();
+            }
+        }
+
+        /**
+         * @return The locations of the files making up this dataset, in the
+         *         order in which they are joined
+         */
+        public List<String> getGranules() {
+            return granules;
+        }
+
+        /**
+         * @return Whether this dataset is made up of more than one file
+         */
+        public boolean isMosaic() {
+            return granules.size() > 1;
+        }
+
+        /**
+         * @return <code>true</code> if the granules of this dataset are joined
+         *         along the y-axis, <code>false</code> for the x-axis
+         */
+        public boolean isJoinedAlongY() {
+            return alongY;
+        }
+
+        /**
+         * @param granule
+         *            The index of a granule
+         * @return The index along the joining axis at which the granule
+         *         starts. Passing the number of granules gives the total size
+         *         along that axis.
+         */
+        public int getGranuleOffset(int granule) {
+            return granuleOffsets[granule];
+        }
+
+        /**
+         * @return The number of timesteps in this dataset. This is 1 if it has
+         *         no time dimension.
+         */
+        public int getTimestepCount() {
+            return manualMasks.length;
+        }
+
+        /**
+         * @return The timestep which is currently read and edited
+         */
+        public int getTimestep() {
+            return timestep;
+        }
+
+        /**
+         * @param t
+         *            The index of a timestep
+         * @return A label for the timestep, giving its time where it is known
+         */
+        public String getTimestepLabel(int t) {
+            if (timeValues == null) {
+                return "Timestep " + (t + 1) + " of " + getTimestepCount();
+            }
+            if (timeUnits != null) {
+                try {
+                    return CalendarDateUnit.of(null, timeUnits)
+                            .makeCalendarDate(timeValues[t]).toString();
+                } catch (IllegalArgumentException e) {
+                    /*
+                     * Not a time unit. Just use the value.
+                     */
+                }
+            }
+            return timeValues[t] + (timeUnits == null ? "" : " " + timeUnits);
+        }
+
+        /**
+         * Sets the timestep to read and edit. Features which have already been
+         * read are not affected, so any cached ones should be discarded.
+         * 
+         * The value ranges of variables are calculated at whichever timestep
+         * they are first needed, so colour scales stay fixed while stepping
+         * through time.
+         * 
+         * @param t
+         *            The index of the timestep
+         */
+        public void setTimestep(int t) {
+            if (t < 0 || t >= getTimestepCount()) {
+                throw new IllegalArgumentException("Timestep " + t + " is out of range");
+            }
+            if (t == timestep) {
+                return;
+            }
+            if (perTimestepThresholds) {
+                /*
+                 * Keep the thresholds of the timestep we're leaving, and
+                 * restore the new one's if it has been visited before.
+                 * Otherwise it starts with the current thresholds.
+                 */
+                timestepThresholds.put(timestep, getThresholdSettings());
+                Map<String, ThresholdSettings> stored = timestepThresholds.get(t);
+                if (stored != null) {
+                    for (Entry<String, ThresholdSettings> entry : stored.entrySet()) {
+                        ThresholdMaskPlugin threshold = thresholds.get(entry.getKey());
+                        if (threshold != null) {
+                            threshold.setThreshold(entry.getValue().min, entry.getValue().max);
+                            threshold.setThresholdInclusive(entry.getValue().inclusive);
+                        }
+                    }
+                }
+            }
+            manualMask = manualMasks[t];
+            timestep = t;
+        }
+
+        /**
+         * @param perTimestep
+         *            <code>true</code> to give each timestep its own mask
+         *            thresholds, <code>false</code> to use the same thresholds
+         *            for all timesteps. When switching to global thresholds,
+         *            the thresholds of the current timestep are used.
+         */
+        public void setPerTimestepThresholds(boolean perTimestep) {
+            if (!perTimestep) {
+                timestepThresholds.clear();
+            }
+            perTimestepThresholds = perTimestep;
+        }
+
+        public boolean isPerTimestepThresholds() {
+            return perTimestepThresholds;
+        }
+
+        /**
+         * @return The current settings of all thresholds which have been
+         *         initialised
+         */
+        private Map<String, ThresholdSettings> getThresholdSettings() {
+            return new HashMap<>(state.get().thresholds);
+        }
+
+        /**
+         * Reads timesteps in the background, so that they are already in the
+         * tile cache when they are displayed. Any prefetches still waiting
+         * from a previous call are abandoned.
+         * 
+         * Nothing is read if the timesteps would not fit in the tile cache
+         * alongside the current one, since they would just evict each other.
+         * 
+         * @param ts
+         *            The timesteps to read, in order of priority. Any which
+         *            are out of range are ignored.
+         */
+        public void prefetchTimesteps(int... ts) {
+            final int generation = prefetchGeneration.incrementAndGet();
+            final List<String> varIds = new ArrayList<>(originalVariables);
+            long timestepBytes = 4L * getGridSize() * varIds.size();
+            if (getTimestepCount() < 2
+                    || timestepBytes * (ts.length + 1) > tileCache.getMaxSize()) {
+                return;
+            }
+            if (prefetcher == null) {
+                prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "timestep-prefetch");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            final int ySize = manualMask.getYSize();
+            final int xSize = manualMask.getXSize();
+            for (final int t : ts) {
+                if (t < 0 || t >= getTimestepCount()) {
+                    continue;
+                }
+                prefetcher.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        GridDataSource dataSource = openDataSource(t, null);
+                        try {
+                            for (String varId : varIds) {
+                                if (prefetchGeneration.get() != generation) {
+                                    return;
+                                }
+                                dataSource.read(varId, 0, 0, 0, 0, 0, ySize - 1, 0, xSize - 1);
+                            }
+                        } catch (IOException | DataReadingException e) {
+                            /*
+                             * This will be read again (and the error
+                             * reported) when the timestep is displayed
+                             */
+                            e.printStackTrace();
+                        } finally {
+                            dataSource.close();
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Reads variables of the current timestep in the background, so that
+         * they are already in the tile cache (or, for derived variables, the
+         * memoised planes) if they are displayed next. Any variables still
+         * waiting from a previous call are abandoned, although a variable
+         * which is part way through being read will be finished.
+         * 
+         * Only as many variables are read as fit in a quarter of the tile
+         * cache, so that the data being displayed is not evicted to make room
+         * for them.
+         * 
+         * @param varIds
+         *            The variables to read, in order of priority. Any which
+         *            don't exist are ignored.
+         */
+        public void prefetchVariables(List<String> varIds) {
+            final int generation = variablePrefetchGeneration.incrementAndGet();
+            final int t = getTimestep();
+            long variableBytes = 4L * getGridSize();
+            final List<String> toRead = new ArrayList<>();
+            for (String varId : varIds) {
+                if (variableBytes * (toRead.size() + 1) > tileCache.getMaxSize() / 4) {
+                    break;
+                }
+                if (getVariableIds().contains(varId) && !toRead.contains(varId)) {
+                    toRead.add(varId);
+                }
+            }
+            if (toRead.isEmpty()) {
+                return;
+            }
+            if (variablePrefetcher == null) {
+                variablePrefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "variable-prefetch");
+                        thread.setDaemon(true);
+                        /*
+                         * Only use otherwise idle time
+                         */
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+            }
+            final int ySize = manualMask.getYSize();
+            final int xSize = manualMask.getXSize();
+            variablePrefetcher.submit(new Runnable() {
+                @Override
+                public void run() {
+                    GridDataSource dataSource = openDataSource(t, null);
+                    try {
+                        for (String varId : toRead) {
+                            if (variablePrefetchGeneration.get() != generation
+                                    || getTimestep() != t) {
+                                return;
+                            }
+                            dataSource.read(varId, 0, 0, 0, 0, 0, ySize - 1, 0, xSize - 1);
+                        }
+                    } catch (IOException | DataReadingException e) {
+                        /*
+                         * This will be read again (and the error reported) if
+                         * the variable is displayed
+                         */
+                        e.printStackTrace();
+                    } finally {
+                        dataSource.close();
+                    }
+                }
+            });
+        }
+
         public Array2D<Number> getManualMask() {
             return manualMask;
         }
+
+        /**
+         * @return The number of pixels in each variable of this dataset
+         */
+        public long getGridSize() {
+            return (long) manualMask.getXSize() * manualMask.getYSize();
+        }
+
+        /**
+         * Takes a snapshot of the user-editable state of this dataset. This is
+         * cheap, and should be called on the thread which makes the edits
+         * (i.e. the FX thread). The snapshot can then be used from any thread.
+         * 
+         * @return A new {@link SessionSnapshot}
+         */
+        public SessionSnapshot snapshot() {
+            MaskState current = state.get();
+            List<String> medians = new ArrayList<>();
+            List<String> stddevs = new ArrayList<>();
+            Map<String, double[]> thresholdValues = new LinkedHashMap<>();
+            Map<String, Boolean> inclusiveValues = new LinkedHashMap<>();
+            for (String var : unmaskedVariables) {
+                if (var.endsWith(MEDIAN)) {
+                    medians.add(var.substring(0, var.length() - MEDIAN.length()));
+                } else if (var.endsWith(STDDEV)) {
+                    stddevs.add(var.substring(0, var.length() - STDDEV.length()));
+                }
+                if (thresholds.containsKey(var)) {
+                    /*
+                     * Uninitialised thresholds are still at their default, so
+                     * there's nothing to record
+                     */
+                    ThresholdSettings settings = current.thresholds.get(var);
+                    if (settings != null) {
+                        thresholdValues.put(var, new double[] { settings.min, settings.max });
+                    }
+                    inclusiveValues.put(var, settings != null && settings.inclusive);
+                }
+            }
+            /*
+             * The first component of the composite is always the manual mask,
+             * which is added automatically
+             */
+            String[] components = current.compositeComponents;
+            String[] maskComponents = new String[components.length - 1];
+            System.arraycopy(components, 1, maskComponents, 0, maskComponents.length);
+
+            CopyOnWriteMask.Snapshot[] maskSnapshots = current.manualMasks.clone();
+            Map<Integer, Map<String, double[]>> storedThresholds = new LinkedHashMap<>();
+            Map<Integer, Map<String, Boolean>> storedInclusive = new LinkedHashMap<>();
+            for (Entry<Integer, Map<String, ThresholdSettings>> stored : timestepThresholds
+                    .entrySet()) {
+                Map<String, double[]> values = new LinkedHashMap<>();
+                Map<String, Boolean> inclusive = new LinkedHashMap<>();
+                for (Entry<String, ThresholdSettings> entry : stored.getValue().entrySet()) {
+                    values.put(entry.getKey(), new double[] { entry.getValue().min,
+                            entry.getValue().max });
+                    inclusive.put(entry.getKey(), entry.getValue().inclusive);
+                }
+                storedThresholds.put(stored.getKey(), values);
+                storedInclusive.put(stored.getKey(), inclusive);
+            }
+
+            return new SessionSnapshot(medians, stddevs, addedPlugins, thresholdValues,
+                    inclusiveValues, maskComponents, maskSnapshots, timestep,
+                    perTimestepThresholds, storedThresholds, storedInclusive);
+        }
     }
 
     /**
@@ -833,42 +2417,106 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
      *
      * @author Guy Griffiths
      */
-    private class ThresholdMaskPlugin extends VariablePlugin {
-        private double min;
-        private double max;
+    private class ThresholdMaskPlugin extends VariablePlugin implements FloatRowPlugin {
+        private final String var;
+        private final MaskedDataset dataset;
         private VariableMetadata diffMeta = null;
-        private boolean inclusive = false;
 
-        public ThresholdMaskPlugin(String var, double min, double max) {
+        public ThresholdMaskPlugin(String var, MaskedDataset dataset) {
             super(new String[] { var }, new String[] { MaskedDataset.MASK_SUFFIX });
-            setThreshold(min, max);
+            this.var = var;
+            this.dataset = dataset;
         }
 
-        public void setMinThreshold(double min) {
-            setThreshold(min, max);
+        /**
+         * The default threshold is the full range of the variable. Finding
+         * that needs the variable's statistics, which need a full read of the
+         * data, so it is only done when the threshold is first needed.
+         */
+        public void ensureInitialised() {
+            if (!dataset.state.get().thresholds.containsKey(var)) {
+                synchronized (this) {
+                    if (!dataset.state.get().thresholds.containsKey(var)) {
+                        Extent<Float> valueRange = dataset.getValueRange(var);
+                        setThreshold(valueRange.getLow(), valueRange.getHigh());
+                    }
+                }
+            }
         }
 
-        public void setMaxThreshold(double max) {
-            setThreshold(min, max);
+        /**
+         * @return The settings of this threshold in the state which the
+         *         current thread reads from
+         */
+        public ThresholdSettings getSettings() {
+            return getSettings(dataset.getState());
         }
 
-        public void setThreshold(double min, double max) {
-            this.min = min;
-            this.max = max;
+        /**
+         * @return The settings of this threshold in the given state,
+         *         initialising the threshold if it wasn't in that state
+         */
+        public ThresholdSettings getSettings(MaskState state) {
+            ThresholdSettings settings = state.thresholds.get(var);
+            if (settings == null) {
+                /*
+                 * The default is the same whenever it is found, so it is
+                 * also the right value for older states
+                 */
+                ensureInitialised();
+                settings = dataset.state.get().thresholds.get(var);
+            }
+            return settings;
+        }
+
+        public synchronized void setMinThreshold(double min) {
+            setThreshold(min, getSettings(dataset.state.get()).max);
+        }
+
+        public synchronized void setMaxThreshold(double max) {
+            setThreshold(getSettings(dataset.state.get()).min, max);
+        }
+
+        public synchronized void setThreshold(double min, double max) {
+            ThresholdSettings old = dataset.state.get().thresholds.get(var);
+            updateSettings(new ThresholdSettings(min, max, old != null && old.inclusive));
+            if (old != null && (min != old.min || max != old.max)) {
+                dataset.invalidate(getFullId(MaskedDataset.MASK_SUFFIX));
+            }
             if (diffMeta != null) {
                 diffMeta.getVariableProperties().put("threshold_min", min);
                 diffMeta.getVariableProperties().put("threshold_max", max);
             }
         }
 
-        public void setThresholdInclusive(boolean inclusive) {
-            this.inclusive = inclusive;
+        /**
+         * @return The current threshold settings, which identify the values
+         *         of the mask
+         */
+        public List<Object> getVersion() {
+            ThresholdSettings settings = getSettings();
+            return Arrays.<Object> asList(settings.min, settings.max, settings.inclusive);
+        }
+
+        public synchronized void setThresholdInclusive(boolean inclusive) {
+            ThresholdSettings old = getSettings(dataset.state.get());
+            if (inclusive != old.inclusive) {
+                updateSettings(new ThresholdSettings(old.min, old.max, inclusive));
+                dataset.invalidate(getFullId(MaskedDataset.MASK_SUFFIX));
+            }
             if (diffMeta != null) {
                 diffMeta.getVariableProperties().put("threshold_inclusive",
                         inclusive ? "true" : "false");
             }
         }
 
+        private void updateSettings(ThresholdSettings settings) {
+            MaskState current;
+            do {
+                current = dataset.state.get();
+            } while (!dataset.state.compareAndSet(current, current.withThreshold(var, settings)));
+        }
+
         @Override
         protected VariableMetadata[] doProcessVariableMetadata(VariableMetadata... metadata)
                 throws EdalException {
@@ -878,10 +2526,13 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
                     getFullId(MaskedDataset.MASK_SUFFIX), meta.getParameter().getTitle() + " Mask",
                     "Mask of " + meta.getParameter().getDescription(), "0: unmasked, 1: masked",
                     null), true, meta);
-            diffMeta.getVariableProperties().put("threshold_min", min);
-            diffMeta.getVariableProperties().put("threshold_max", max);
+            ThresholdSettings settings = dataset.state.get().thresholds.get(var);
+            if (settings != null) {
+                diffMeta.getVariableProperties().put("threshold_min", settings.min);
+                diffMeta.getVariableProperties().put("threshold_max", settings.max);
+            }
             diffMeta.getVariableProperties().put("threshold_inclusive",
-                    inclusive ? "true" : "false");
+                    settings != null && settings.inclusive ? "true" : "false");
             diffMeta.setParent(meta.getParent(), null);
             return new VariableMetadata[] { diffMeta };
         }
@@ -889,19 +2540,111 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
         @Override
         protected Number generateValue(String varSuffix, HorizontalPosition pos,
                 Number... sourceValues) {
+            ThresholdSettings settings = getSettings();
             try {
-                if (sourceValues[0].doubleValue() <= min || sourceValues[0].doubleValue() >= max)
-                    return inclusive ? 0 : 1;
-                return inclusive ? 1 : 0;
+                if (sourceValues[0].doubleValue() <= settings.min
+                        || sourceValues[0].doubleValue() >= settings.max)
+                    return settings.inclusive ? 0 : 1;
+                return settings.inclusive ? 1 : 0;
             } catch (NullPointerException e) {
                 return null;
             }
         }
+
+        @Override
+        public void evaluateRow(float[][] sourceRows, int length, float[] out) {
+            evaluateRow(getSettings(), sourceRows, length, out);
+        }
+
+        /**
+         * @return A {@link FloatRowPlugin} which generates this mask with the
+         *         given settings, however this threshold changes
+         */
+        public FloatRowPlugin forSettings(final ThresholdSettings settings) {
+            return new FloatRowPlugin() {
+                @Override
+                public void evaluateRow(float[][] sourceRows, int length, float[] out) {
+                    ThresholdMaskPlugin.this.evaluateRow(settings, sourceRows, length, out);
+                }
+            };
+        }
+
+        private void evaluateRow(ThresholdSettings settings, float[][] sourceRows, int length,
+                float[] out) {
+            double min = settings.min;
+            double max = settings.max;
+            float outside = settings.inclusive ? 0f : 1f;
+            float inside = settings.inclusive ? 1f : 0f;
+            float[] values = sourceRows[0];
+            for (int i = 0; i < length; i++) {
+                out[i] = (values[i] <= min || values[i] >= max) ? outside : inside;
+            }
+        }
     }
 
     public static void writeDataset(MaskedDataset dataset, String location) throws IOException,
             VariableNotFoundException, InvalidRangeException, DataReadingException {
-        NetcdfFileWriter fileWriter = NetcdfFileWriter.createNew(Version.netcdf3, location);
+        int nGranules = dataset.getGranules().size();
+        writeDatasets(dataset, new String[] { location },
+                new int[] { 0, dataset.getGranuleOffset(nGranules) });
+    }
+
+    /**
+     * Writes each granule of a dataset to its own file, named after the
+     * granule with the suffix {@value #GRANULE_OUTPUT_SUFFIX}
+     * 
+     * @param dataset
+     *            The dataset to write
+     * @param directory
+     *            The directory to write the files to
+     * @return The files which were written, in granule order
+     */
+    public static List<File> writeGranules(MaskedDataset dataset, File directory)
+            throws IOException, VariableNotFoundException, InvalidRangeException,
+            DataReadingException {
+        List<String> granules = dataset.getGranules();
+        String[] locations = new String[granules.size()];
+        int[] offsets = new int[granules.size() + 1];
+        List<File> files = new ArrayList<>();
+        for (int g = 0; g < granules.size(); g++) {
+            String name = new File(granules.get(g)).getName();
+            if (name.contains(".")) {
+                name = name.substring(0, name.lastIndexOf('.'));
+            }
+            File file = new File(directory, name + GRANULE_OUTPUT_SUFFIX);
+            locations[g] = file.getAbsolutePath();
+            offsets[g] = dataset.getGranuleOffset(g);
+            files.add(file);
+        }
+        offsets[granules.size()] = dataset.getGranuleOffset(granules.size());
+        writeDatasets(dataset, locations, offsets);
+        return files;
+    }
+
+    /**
+     * Writes consecutive regions of a dataset to separate files. Each
+     * variable is read once per timestep, and split between all of the files.
+     * 
+     * Datasets with more than one timestep are written as (time, y, x),
+     * visiting each timestep in turn so that the per-timestep manual masks
+     * and thresholds are used. The dataset is returned to its current
+     * timestep afterwards.
+     * 
+     * @param dataset
+     *            The dataset to write
+     * @param locations
+     *            The file to write each region to
+     * @param offsets
+     *            The index along the dataset's joining axis at which each
+     *            region starts, followed by the index at which the last one
+     *            ends
+     */
+    private static void writeDatasets(MaskedDataset dataset, String[] locations, int[] offsets)
+            throws IOException, VariableNotFoundException, InvalidRangeException,
+            DataReadingException {
+        boolean alongY = dataset.isJoinedAlongY();
+        int nTimesteps = dataset.getTimestepCount();
+        boolean timeSeries = nTimesteps > 1;
 
         Set<String> outputVariables = new LinkedHashSet<>();
         outputVariables.addAll(dataset.getOriginalVariableNames());
@@ -913,104 +2656,191 @@ public final class CloudMaskDatasetFactory extends DatasetFactory {
             }
         }
         outputVariables.add(CompositeMaskPlugin.COMPOSITEMASK);
+        List<String> varIds = new ArrayList<>(outputVariables);
 
-        Map<Variable, Array> dataToWrite = new HashMap<>();
-        boolean firstVar = true;
-        ArrayList<Dimension> dims = null;
-        for (String varId : outputVariables) {
-            GridVariableMetadata metadata = dataset
-                    .getVariableMetadata(varId);
-            int xSize = metadata.getHorizontalDomain().getXSize();
-            int ySize = metadata.getHorizontalDomain().getYSize();
-            if (firstVar) {
-                dims = new ArrayList<Dimension>();
-                Dimension yDim = fileWriter.addDimension(null, "y", ySize);
-                Dimension xDim = fileWriter.addDimension(null, "x", xSize);
-                /*
-                 * Define dimensions
-                 */
-                dims.add(yDim);
-                dims.add(xDim);
+        /*
+         * The region of the dataset which goes in each file
+         */
+        GridVariableMetadata firstMetadata = dataset.getVariableMetadata(varIds.get(0));
+        int[] xmins = new int[locations.length];
+        int[] ymins = new int[locations.length];
+        int[] xSizes = new int[locations.length];
+        int[] ySizes = new int[locations.length];
+        for (int r = 0; r < locations.length; r++) {
+            xmins[r] = alongY ? 0 : offsets[r];
+            ymins[r] = alongY ? offsets[r] : 0;
+            xSizes[r] = alongY ? firstMetadata.getHorizontalDomain().getXSize()
+                    : offsets[r + 1] - offsets[r];
+            ySizes[r] = alongY ? offsets[r + 1] - offsets[r] : firstMetadata
+                    .getHorizontalDomain().getYSize();
+        }
 
-                firstVar = false;
+        /*
+         * Define everything first, so that the data can then be written one
+         * timestep at a time
+         */
+        NetcdfFileWriter[] fileWriters = new NetcdfFileWriter[locations.length];
+        Variable[][] variables = new Variable[locations.length][varIds.size()];
+        Variable[] timeVariables = new Variable[locations.length];
+        for (int r = 0; r < locations.length; r++) {
+            NetcdfFileWriter fileWriter = NetcdfFileWriter.createNew(Version.netcdf3,
+                    locations[r]);
+            fileWriters[r] = fileWriter;
+            /*
+             * Define dimensions
+             */
+            List<Dimension> dims = new ArrayList<Dimension>();
+            if (timeSeries) {
+                Dimension tDim = fileWriter.addDimension(null, "time", nTimesteps);
+                dims.add(tDim);
+                if (dataset.timeValues != null) {
+                    timeVariables[r] = fileWriter.addVariable(null, "time", DataType.DOUBLE,
+                            Collections.singletonList(tDim));
+                    if (dataset.timeUnits != null) {
+                        fileWriter.addVariableAttribute(timeVariables[r], new Attribute(
+                                "units", dataset.timeUnits));
+                    }
+                }
             }
+            dims.add(fileWriter.addDimension(null, "y", ySizes[r]));
+            dims.add(fileWriter.addDimension(null, "x", xSizes[r]));
 
-            GridFeature feature = dataset.readFeature(varId);
-            Array4D<Number> array4d = feature.getValues(varId);
-
-            Variable variable;
-            if (metadata.getId().endsWith(MaskedDataset.MASK_SUFFIX)) {
-                ArrayShort.D2 values = new ArrayShort.D2(ySize, xSize, false);
+            for (int v = 0; v < varIds.size(); v++) {
+                String varId = varIds.get(v);
+                if (varId.endsWith(MaskedDataset.MASK_SUFFIX)) {
+                    /*
+                     * Make sure the threshold attributes are populated, even
+                     * if this variable has never been looked at
+                     */
+                    dataset.getMaskThreshold(varId.substring(0, varId.length()
+                            - MaskedDataset.MASK_SUFFIX.length() - 1));
+                }
+                GridVariableMetadata metadata = dataset.getVariableMetadata(varId);
 
-                for (int y = 0; y < ySize; y++) {
-                    for (int x = 0; x < xSize; x++) {
-                        /*
-                         * Masks can not have missing values - they are either 0
-                         * or 1.
-                         */
-                        Number number = array4d.get(0, 0, y, x);
-                        values.set(y, x, number.shortValue());
+                Variable variable;
+                if (varId.endsWith(MaskedDataset.MASK_SUFFIX)) {
+                    variable = fileWriter.addVariable(null, varId, DataType.SHORT, dims);
+                } else {
+                    variable = fileWriter.addVariable(null, varId, DataType.FLOAT, dims);
+                }
+                variables[r][v] = variable;
+
+                for (Entry<String, Object> entry : metadata.getVariableProperties().entrySet()) {
+                    Object value = entry.getValue();
+                    if (value instanceof String) {
+                        fileWriter.addVariableAttribute(variable, new Attribute(entry.getKey(),
+                                (String) value));
+                    } else if (value instanceof Number) {
+                        fileWriter.addVariableAttribute(variable, new Attribute(entry.getKey(),
+                                (Number) value));
                     }
                 }
-                variable = fileWriter.addVariable(null, metadata.getId(), DataType.SHORT, dims);
-                dataToWrite.put(variable, values);
-            } else if (metadata.getId().equals(CompositeMaskPlugin.COMPOSITEMASK)) {
-                ArrayFloat.D2 values = new ArrayFloat.D2(ySize, xSize);
 
-                for (int y = 0; y < ySize; y++) {
-                    for (int x = 0; x < xSize; x++) {
-                        Number number = array4d.get(0, 0, y, x);
-                        if (number == null || number.floatValue() > 1f) {
-                            /*
-                             * Write unset values as NaNs, and remove aerosol
-                             * values from the composite mask (these are
-                             * included in the manual mask, but are not part of
-                             * the composite, which only applies to clouds)
-                             */
-                            number = Float.NaN;
+                fileWriter.addVariableAttribute(variable, new Attribute("units", metadata
+                        .getParameter().getUnits()));
+                fileWriter.addVariableAttribute(variable, new Attribute("long_name", metadata
+                        .getParameter().getDescription()));
+            }
+        }
+
+        for (int r = 0; r < locations.length; r++) {
+            fileWriters[r].create();
+            if (timeVariables[r] != null) {
+                fileWriters[r].write(timeVariables[r], Array.factory(dataset.timeValues));
+            }
+        }
+
+        int currentTimestep = dataset.getTimestep();
+        try {
+            for (int t = 0; t < nTimesteps; t++) {
+                dataset.setTimestep(t);
+                /*
+                 * All variables of a timestep are written from the same
+                 * state, so that the composite agrees with its components
+                 */
+                dataset.pinState();
+                try {
+                    for (int v = 0; v < varIds.size(); v++) {
+                        String varId = varIds.get(v);
+                        GridFeature feature = dataset.readFeature(varId);
+                        Array4D<Number> array4d = feature.getValues(varId);
+
+                        for (int r = 0; r < locations.length; r++) {
+                            Array values = getRegionValues(varId, array4d, ymins[r], ySizes[r],
+                                    xmins[r], xSizes[r]);
+                            if (timeSeries) {
+                                fileWriters[r].write(variables[r][v], new int[] { t, 0, 0 },
+                                        values.reshape(new int[] { 1, ySizes[r], xSizes[r] }));
+                            } else {
+                                fileWriters[r].write(variables[r][v], values);
+                            }
                         }
-                        values.set(y, x, number.floatValue());
                     }
+                } finally {
+                    dataset.unpinState();
                 }
-                variable = fileWriter.addVariable(null, metadata.getId(), DataType.FLOAT, dims);
-                dataToWrite.put(variable, values);
-            } else {
-                ArrayFloat.D2 values = new ArrayFloat.D2(ySize, xSize);
+            }
+        } finally {
+            dataset.setTimestep(currentTimestep);
+        }
 
-                for (int y = 0; y < ySize; y++) {
-                    for (int x = 0; x < xSize; x++) {
-                        Number number = array4d.get(0, 0, y, x);
-                        if (number == null) {
-                            number = Float.NaN;
-                        }
-                        values.set(y, x, number.floatValue());
+        for (int r = 0; r < locations.length; r++) {
+            fileWriters[r].close();
+        }
+    }
+
+    /**
+     * @return The values of a variable in a region, ready to be written to
+     *         file
+     */
+    private static Array getRegionValues(String varId, Array4D<Number> array4d, int ymin,
+            int ySize, int xmin, int xSize) {
+        if (varId.endsWith(MaskedDataset.MASK_SUFFIX)) {
+            ArrayShort.D2 values = new ArrayShort.D2(ySize, xSize, false);
+
+            for (int y = 0; y < ySize; y++) {
+                for (int x = 0; x < xSize; x++) {
+                    /*
+                     * Masks can not have missing values - they are either 0
+                     * or 1.
+                     */
+                    Number number = array4d.get(0, 0, ymin + y, xmin + x);
+                    values.set(y, x, number.shortValue());
+                }
+            }
+            return values;
+        } else if (varId.equals(CompositeMaskPlugin.COMPOSITEMASK)) {
+            ArrayFloat.D2 values = new ArrayFloat.D2(ySize, xSize);
+
+            for (int y = 0; y < ySize; y++) {
+                for (int x = 0; x < xSize; x++) {
+                    Number number = array4d.get(0, 0, ymin + y, xmin + x);
+                    if (number == null || number.floatValue() > 1f) {
+                        /*
+                         * Write unset values as NaNs, and remove aerosol
+                         * values from the composite mask (these are included
+                         * in the manual mask, but are not part of the
+                         * composite, which only applies to clouds)
+                         */
+                        number = Float.NaN;
                     }
+                    values.set(y, x, number.floatValue());
                 }
-                variable = fileWriter.addVariable(null, metadata.getId(), DataType.FLOAT, dims);
-                dataToWrite.put(variable, values);
             }
+            return values;
+        } else {
+            ArrayFloat.D2 values = new ArrayFloat.D2(ySize, xSize);
 
-            for (Entry<String, Object> entry : metadata.getVariableProperties().entrySet()) {
-                Object value = entry.getValue();
-                if (value instanceof String) {
-                    fileWriter.addVariableAttribute(variable, new Attribute(entry.getKey(),
-                            (String) value));
-                } else if (value instanceof Number) {
-                    fileWriter.addVariableAttribute(variable, new Attribute(entry.getKey(),
-                            (Number) value));
+            for (int y = 0; y < ySize; y++) {
+                for (int x = 0; x < xSize; x++) {
+                    Number number = array4d.get(0, 0, ymin + y, xmin + x);
+                    if (number == null) {
+                        number = Float.NaN;
+                    }
+                    values.set(y, x, number.floatValue());
                 }
             }
-
-            fileWriter.addVariableAttribute(variable, new Attribute("units", metadata
-                    .getParameter().getUnits()));
-            fileWriter.addVariableAttribute(variable, new Attribute("long_name", metadata
-                    .getParameter().getDescription()));
-        }
-
-        fileWriter.create();
-        for (Entry<Variable, Array> entry : dataToWrite.entrySet()) {
-            fileWriter.write(entry.getKey(), entry.getValue());
+            return values;
         }
-        fileWriter.close();
     }
-}
\ No newline at end of file
+}
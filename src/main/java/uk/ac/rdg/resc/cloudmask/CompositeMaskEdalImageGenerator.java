@@ -32,6 +32,9 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 
 import uk.ac.rdg.resc.cloudmask.CloudMaskDatasetFactory.MaskedDataset;
+import uk.ac.rdg.resc.cloudmask.profiling.ImageRenderEvent;
+import uk.ac.rdg.resc.cloudmask.profiling.Timings;
+import uk.ac.rdg.resc.cloudmask.profiling.Timings.Stage;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
@@ -40,7 +43,6 @@ import uk.ac.rdg.resc.edal.graphics.style.RGBColourScheme;
 import uk.ac.rdg.resc.edal.graphics.style.RasterLayer;
 import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
 import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
-import uk.ac.rdg.resc.edal.graphics.utils.GraphicsUtils;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
 import uk.ac.rdg.resc.edal.graphics.utils.SimpleFeatureCatalogue;
 import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
@@ -56,7 +58,7 @@ public class CompositeMaskEdalImageGenerator extends EdalImageGenerator {
 
     public CompositeMaskEdalImageGenerator(String var,
             SimpleFeatureCatalogue<MaskedDataset> catalogue) throws IOException, EdalException {
-        this(var, catalogue, GraphicsUtils.estimateValueRange(catalogue.getDataset(), var));
+        this(var, catalogue, catalogue.getDataset().getValueRange(var));
     }
 
     public CompositeMaskEdalImageGenerator(String var,
@@ -85,7 +87,7 @@ public class CompositeMaskEdalImageGenerator extends EdalImageGenerator {
     }
 
     public void setVariable(String var) throws EdalException {
-        this.setVariable(var, GraphicsUtils.estimateValueRange(catalogue.getDataset(), var));
+        this.setVariable(var, catalogue.getDataset().getValueRange(var));
     }
 
     public void setVariable(String var, Extent<Float> scaleRange) throws EdalException {
@@ -114,6 +116,11 @@ public class CompositeMaskEdalImageGenerator extends EdalImageGenerator {
         return isRgb;
     }
 
+    @Override
+    public String getPalette() {
+        return palette;
+    }
+
     @Override
     public void setPalette(String palette) {
         this.palette = palette;
@@ -149,10 +156,20 @@ public class CompositeMaskEdalImageGenerator extends EdalImageGenerator {
     @Override
     public BufferedImage generateImage(double minX, double minY, double maxX, double maxY,
             int width, int height) {
+        ImageRenderEvent event = new ImageRenderEvent(CompositeMaskPlugin.COMPOSITEMASK,
+                width, height);
+        event.start();
+        long start = Timings.start();
+        /*
+         * All layers are drawn from the same version of the masks
+         */
+        catalogue.getDataset().pinState();
         try {
             PlottingDomainParams params = new PlottingDomainParams(width, height,
                     new BoundingBoxImpl(minX, minY, maxX, maxY, null), null, null, null, null, null);
-            BufferedImage drawImage = image.drawImage(params, catalogue);
+            BufferedImage drawImage = getImage(minX, minY, maxX, maxY, width, height)
+                    .drawImage(params, catalogue);
+            Timings.record(Stage.GENERATE_IMAGE, CompositeMaskPlugin.COMPOSITEMASK, start);
             return drawImage;
         } catch (EdalException e) {
             /*
@@ -160,6 +177,9 @@ public class CompositeMaskEdalImageGenerator extends EdalImageGenerator {
              */
             e.printStackTrace();
             return null;
+        } finally {
+            catalogue.getDataset().unpinState();
+            event.finish();
         }
     }
 
@@ -34,7 +34,7 @@ import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 
-public class CompositeMaskPlugin extends VariablePlugin {
+public class CompositeMaskPlugin extends VariablePlugin implements FloatRowPlugin {
 
     public static final String COMPOSITEMASK = "composite-mask";
     public static final String COMPOSITEMASK_UNITS = "0: clear; 0.33: probably clear; 0.66: probably cloudy; 1: cloudy";
@@ -84,6 +84,27 @@ public class CompositeMaskPlugin extends VariablePlugin {
         return 0f;
     }
 
+    @Override
+    public void evaluateRow(float[][] sourceRows, int length, float[] out) {
+        /*
+         * As for generateValue, but with unset manual mask values as NaN
+         */
+        float[] manualMask = sourceRows[0];
+        for (int i = 0; i < length; i++) {
+            if (!Float.isNaN(manualMask[i])) {
+                out[i] = manualMask[i] / 3.0f;
+            } else {
+                out[i] = 0f;
+                for (int s = 1; s < sourceRows.length; s++) {
+                    if (sourceRows[s][i] > 0) {
+                        out[i] = 1f;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
     @Override
     protected String combineIds(String... partsToUse) {
         return "composite";
@@ -399,6 +399,8 @@ public class CompositeMaskView extends HBox {
 
             varLabel.textProperty().set(variableNames.get(0));
             imageView = new LinkedZoomableImageView(imageWidth, imageHeight, imageGenerator);
+            /* Identifies the view in the timings */
+            imageView.setId(CompositeMaskPlugin.COMPOSITEMASK);
             imageView.addEventHandler(MouseEvent.MOUSE_CLICKED, new EventHandler<MouseEvent>() {
                 @Override
                 public void handle(MouseEvent event) {
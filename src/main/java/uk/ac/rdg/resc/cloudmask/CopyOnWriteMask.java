@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.util.Arrays;
+
+import uk.ac.rdg.resc.edal.util.Array2D;
+
+/**
+ * A mutable 2D array of manual mask values which supports cheap, immutable
+ * snapshots.
+ * 
+ * Values are stored as bytes in square tiles. Taking a {@link #snapshot()}
+ * just copies the references to the tiles - subsequent writes to this mask
+ * copy only the tiles they touch, leaving the snapshot unchanged. This means
+ * that a consistent copy of the mask can be taken on the FX thread and then
+ * read at leisure by a background thread.
+ * 
+ * Unset values are represented by <code>null</code> (as in the original
+ * mask array), and stored as {@link #UNSET}.
+ *
+ * @author Guy Griffiths
+ */
+public class CopyOnWriteMask extends Array2D<Number> {
+    public static final byte UNSET = -1;
+
+    private static final int TILE_SHIFT = 6;
+    private static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+
+    private final int xSize;
+    private final int ySize;
+    private final int tilesX;
+
+    /*
+     * A null tile has no values set
+     */
+    private byte[][] tiles;
+    /*
+     * The generation in which each tile was last copied. If this is not the
+     * current generation, the tile may be shared with a snapshot and must be
+     * copied before writing.
+     */
+    private int[] tileGenerations;
+    private int generation = 0;
+
+    public CopyOnWriteMask(int ySize, int xSize) {
+        super(ySize, xSize);
+        this.xSize = xSize;
+        this.ySize = ySize;
+        tilesX = (xSize + TILE_MASK) >> TILE_SHIFT;
+        int tilesY = (ySize + TILE_MASK) >> TILE_SHIFT;
+        tiles = new byte[tilesX * tilesY][];
+        tileGenerations = new int[tilesX * tilesY];
+    }
+
+    @Override
+    public Number get(int... coords) {
+        byte value = getByte(coords[0], coords[1]);
+        return value == UNSET ? null : Integer.valueOf(value);
+    }
+
+    /**
+     * Gets a value without boxing it
+     * 
+     * @param y
+     *            The y-index
+     * @param x
+     *            The x-index
+     * @return The value, or {@link #UNSET}
+     */
+    public byte getByte(int y, int x) {
+        return getByte(tiles, tilesX, y, x);
+    }
+
+    @Override
+    public void set(Number value, int... coords) {
+        setByte(coords[0], coords[1], value == null ? UNSET : value.byteValue());
+    }
+
+    public void setByte(int y, int x, byte value) {
+        if (y < 0 || y >= ySize || x < 0 || x >= xSize) {
+            throw new ArrayIndexOutOfBoundsException("(" + x + "," + y + ") is outside the mask");
+        }
+        int tileIndex = (y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT);
+        byte[] tile = tiles[tileIndex];
+        if (tile == null) {
+            if (value == UNSET) {
+                return;
+            }
+            tile = new byte[TILE_SIZE * TILE_SIZE];
+            Arrays.fill(tile, UNSET);
+            tiles[tileIndex] = tile;
+            tileGenerations[tileIndex] = generation;
+        } else if (tileGenerations[tileIndex] != generation) {
+            /*
+             * This tile is shared with a snapshot. Take a private copy.
+             */
+            tile = tile.clone();
+            tiles[tileIndex] = tile;
+            tileGenerations[tileIndex] = generation;
+        }
+        tile[((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK)] = value;
+    }
+
+    /**
+     * Takes an immutable snapshot of the current state of this mask. This
+     * only costs one reference per tile - the data itself is shared until it
+     * is next written to.
+     * 
+     * @return A {@link Snapshot} which will not change when this mask does
+     */
+    public Snapshot snapshot() {
+        generation++;
+        return new Snapshot(tiles.clone(), ySize, xSize, tilesX);
+    }
+
+    private static byte getByte(byte[][] tiles, int tilesX, int y, int x) {
+        byte[] tile = tiles[(y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT)];
+        if (tile == null) {
+            return UNSET;
+        }
+        return tile[((y & TILE_MASK) << TILE_SHIFT) + (x & TILE_MASK)];
+    }
+
+    /**
+     * An immutable view of a {@link CopyOnWriteMask} at a point in time.
+     * Safe to read from any thread.
+     */
+    public static final class Snapshot extends Array2D<Number> {
+        private final byte[][] tiles;
+        private final int tilesX;
+
+        private Snapshot(byte[][] tiles, int ySize, int xSize, int tilesX) {
+            super(ySize, xSize);
+            this.tiles = tiles;
+            this.tilesX = tilesX;
+        }
+
+        @Override
+        public Number get(int... coords) {
+            byte value = getByte(coords[0], coords[1]);
+            return value == UNSET ? null : Integer.valueOf(value);
+        }
+
+        public byte getByte(int y, int x) {
+            return CopyOnWriteMask.getByte(tiles, tilesX, y, x);
+        }
+
+        @Override
+        public void set(Number value, int... coords) {
+            throw new UnsupportedOperationException("Snapshots are immutable");
+        }
+    }
+}
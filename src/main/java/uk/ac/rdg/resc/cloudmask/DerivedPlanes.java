@@ -0,0 +1,357 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Memoises whole-grid planes of derived variables (masks, composites,
+ * filtered and combined bands).
+ * 
+ * Derived variables form a graph, with each variable depending on the
+ * variables it is derived from. Each variable is generated once into a
+ * plane, which is then shared by everything which reads it, so a chain of
+ * derived variables costs one generation of each rather than re-deriving
+ * every level of the chain for each pixel of each read. The derived
+ * variables which a variable depends on are generated in parallel before
+ * it is generated itself.
+ * 
+ * When an input of a variable changes (e.g. a threshold, or the manual
+ * mask), {@link #invalidate(String)} removes the planes of it and of every
+ * variable downstream of it, leaving the rest of the graph in place.
+ *
+ * @author Guy Griffiths
+ */
+public class DerivedPlanes {
+    /**
+     * Describes the graph of derived variables, and generates their values
+     */
+    interface Generator {
+        /**
+         * @return Whether the variable is derived from other variables, and
+         *         so should be memoised
+         */
+        public boolean isDerived(String varId);
+
+        /**
+         * @return The IDs of the variables which the given variable is derived
+         *         from
+         */
+        public String[] getSources(String varId);
+
+        /**
+         * Generates the whole grid of a derived variable. This may read the
+         * planes of the variables it is derived from using
+         * {@link DerivedPlanes#get(String, int)}
+         * 
+         * @param t
+         *            The timestep to generate
+         * @return The values of the variable, which should be held in memory
+         */
+        public FloatArray4D generate(String varId, int t) throws IOException;
+    }
+
+    /*
+     * Generates the sources of a plane in parallel. This is not bounded,
+     * since generating a plane can wait on the planes it depends on, and the
+     * CPU-bound work is done by the pool in FloatArray4D.
+     */
+    private static ExecutorService generator = null;
+
+    private final long maxBytes;
+    private final Generator planeGenerator;
+    /** Planes keyed by timestep and variable, least recently used first */
+    private final Map<String, FloatArray4D> planes;
+    /** Planes currently being generated, so that they are only generated once */
+    private final Map<String, FutureTask<FloatArray4D>> pending;
+    private long bytes = 0L;
+    /*
+     * Incremented by every invalidation. Planes which were being generated
+     * when an invalidation happened may be stale, so they are returned but
+     * not kept.
+     */
+    private long version = 0L;
+
+    /**
+     * @param maxBytes
+     *            The maximum total size of the planes to keep
+     * @param planeGenerator
+     *            Describes and generates the derived variables
+     */
+    public DerivedPlanes(long maxBytes, Generator planeGenerator) {
+        this.maxBytes = maxBytes;
+        this.planeGenerator = planeGenerator;
+        planes = new LinkedHashMap<>(16, 0.75f, true);
+        pending = new HashMap<>();
+    }
+
+    /**
+     * Gets the plane of a derived variable, generating it (and any derived
+     * variables it depends on) if necessary. If another thread is already
+     * generating the plane, this waits for it rather than generating it
+     * again.
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @param t
+     *            The timestep
+     * @return The values of the whole grid of the variable
+     */
+    public FloatArray4D get(final String varId, final int t) throws IOException {
+        String key = t + "/" + varId;
+        FutureTask<FloatArray4D> task;
+        boolean owner = false;
+        long startVersion;
+        synchronized (this) {
+            FloatArray4D plane = planes.get(key);
+            if (plane != null) {
+                return plane;
+            }
+            task = pending.get(key);
+            if (task == null) {
+                task = new FutureTask<>(new Callable<FloatArray4D>() {
+                    @Override
+                    public FloatArray4D call() throws Exception {
+                        return generate(varId, t);
+                    }
+                });
+                pending.put(key, task);
+                owner = true;
+            }
+            startVersion = version;
+        }
+        if (owner) {
+            task.run();
+        }
+        FloatArray4D plane = null;
+        try {
+            plane = getResult(task);
+            return plane;
+        } finally {
+            if (owner) {
+                put(key, task, plane, startVersion);
+            }
+        }
+    }
+
+    /**
+     * Generates a plane, after generating the derived variables it depends
+     * on in parallel
+     */
+    private FloatArray4D generate(String varId, final int t) throws IOException {
+        List<Future<FloatArray4D>> sources = new ArrayList<>();
+        String[] sourceIds = planeGenerator.getSources(varId);
+        for (final String sourceId : sourceIds) {
+            if (sourceIds.length > 1 && planeGenerator.isDerived(sourceId)) {
+                sources.add(getGenerator().submit(new Callable<FloatArray4D>() {
+                    @Override
+                    public FloatArray4D call() throws Exception {
+                        return get(sourceId, t);
+                    }
+                }));
+            }
+        }
+        try {
+            for (Future<FloatArray4D> source : sources) {
+                getResult(source);
+            }
+        } finally {
+            for (Future<FloatArray4D> source : sources) {
+                source.cancel(false);
+            }
+        }
+        return planeGenerator.generate(varId, t);
+    }
+
+    private static FloatArray4D getResult(Future<FloatArray4D> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst generating data", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private synchronized void put(String key, FutureTask<FloatArray4D> task, FloatArray4D plane,
+            long startVersion) {
+        if (pending.get(key) == task) {
+            pending.remove(key);
+        }
+        if (plane == null || version != startVersion) {
+            return;
+        }
+        long size = 4L * plane.getYSize() * plane.getXSize();
+        if (size > maxBytes) {
+            return;
+        }
+        FloatArray4D previous = planes.put(key, plane);
+        if (previous != null) {
+            bytes -= 4L * previous.getYSize() * previous.getXSize();
+        }
+        bytes += size;
+        Iterator<FloatArray4D> iterator = planes.values().iterator();
+        while (bytes > maxBytes) {
+            FloatArray4D evicted = iterator.next();
+            bytes -= 4L * evicted.getYSize() * evicted.getXSize();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes the planes of a variable, and of every variable derived from
+     * it, at all timesteps. This should be called whenever anything which
+     * the values of the variable depend on changes.
+     * 
+     * @param varId
+     *            The ID of the variable which has changed. This need not be
+     *            a derived variable (e.g. it could be the manual mask)
+     */
+    public synchronized void invalidate(String varId) {
+        version++;
+        Map<String, Boolean> dependencies = new HashMap<>();
+        Iterator<Map.Entry<String, FloatArray4D>> iterator = planes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, FloatArray4D> entry = iterator.next();
+            String planeVar = entry.getKey().substring(entry.getKey().indexOf('/') + 1);
+            if (dependsOn(planeVar, varId, dependencies)) {
+                FloatArray4D plane = entry.getValue();
+                bytes -= 4L * plane.getYSize() * plane.getXSize();
+                iterator.remove();
+            }
+        }
+        Iterator<String> pendingKeys = pending.keySet().iterator();
+        while (pendingKeys.hasNext()) {
+            String key = pendingKeys.next();
+            if (dependsOn(key.substring(key.indexOf('/') + 1), varId, dependencies)) {
+                /*
+                 * Later requests generate the plane afresh, rather than
+                 * waiting for this stale one
+                 */
+                pendingKeys.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the plane of a variable if it has already been generated, without
+     * generating it
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @param t
+     *            The timestep
+     * @return The values of the whole grid of the variable, or
+     *         <code>null</code> if they are not available
+     */
+    public synchronized FloatArray4D getIfPresent(String varId, int t) {
+        return planes.get(t + "/" + varId);
+    }
+
+    /**
+     * @param dependencies
+     *            Already-known answers for the same target, to avoid walking
+     *            shared parts of the graph more than once
+     * @return Whether a variable is, or is derived (directly or indirectly)
+     *         from, the target
+     */
+    private boolean dependsOn(String varId, String target, Map<String, Boolean> dependencies) {
+        if (varId.equals(target)) {
+            return true;
+        }
+        Boolean known = dependencies.get(varId);
+        if (known != null) {
+            return known;
+        }
+        boolean depends = false;
+        for (String source : planeGenerator.getSources(varId)) {
+            if (dependsOn(source, target, dependencies)) {
+                depends = true;
+                break;
+            }
+        }
+        dependencies.put(varId, depends);
+        return depends;
+    }
+
+    /**
+     * @return The total size of the kept planes, in bytes
+     */
+    public synchronized long getSize() {
+        return bytes;
+    }
+
+    /**
+     * Removes all planes
+     */
+    public synchronized void clear() {
+        version++;
+        planes.clear();
+        pending.clear();
+        bytes = 0L;
+    }
+
+    private static synchronized ExecutorService getGenerator() {
+        if (generator == null) {
+            generator = Executors.newCachedThreadPool(new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "derived-planes-" + count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return generator;
+    }
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Records which parts of a gridded variable have been edited, so that
+ * results cached from it can tell whether a later edit affects them.
+ * 
+ * Each edit increments a version number. Nearby edits (e.g. the pixels of a
+ * brush stroke) are merged into a single region, and only the most recent
+ * regions are kept, so a result from before the oldest kept region is always
+ * treated as affected.
+ *
+ * @author Guy Griffiths
+ */
+public class DirtyRegions {
+    /*
+     * The number of regions to keep
+     */
+    private static final int MAX_REGIONS = 256;
+
+    private static final class Region {
+        private final int t;
+        private int xmin;
+        private int xmax;
+        private int ymin;
+        private int ymax;
+        /** The version of the latest edit in this region */
+        private long version;
+
+        public Region(int t, int x, int y, long version) {
+            this.t = t;
+            xmin = xmax = x;
+            ymin = ymax = y;
+            this.version = version;
+        }
+    }
+
+    private final int maxExtent;
+    /** The kept regions, oldest first */
+    private final Deque<Region> regions = new ArrayDeque<>();
+    private long version = 0L;
+    /** All edits up to and including this version have been forgotten */
+    private long forgottenVersion = 0L;
+
+    /**
+     * @param maxExtent
+     *            The largest width / height of a merged region. Larger values
+     *            keep edits for longer, but may mark more results as affected
+     */
+    public DirtyRegions(int maxExtent) {
+        this.maxExtent = maxExtent;
+    }
+
+    /**
+     * @return The version of the latest edit
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Records an edit to a single pixel
+     * 
+     * @param t
+     *            The timestep of the edited pixel
+     * @return The new version
+     */
+    public synchronized long edited(int t, int x, int y) {
+        version++;
+        Region last = regions.peekLast();
+        if (last != null && last.t == t
+                && Math.max(last.xmax, x) - Math.min(last.xmin, x) < maxExtent
+                && Math.max(last.ymax, y) - Math.min(last.ymin, y) < maxExtent) {
+            last.xmin = Math.min(last.xmin, x);
+            last.xmax = Math.max(last.xmax, x);
+            last.ymin = Math.min(last.ymin, y);
+            last.ymax = Math.max(last.ymax, y);
+            last.version = version;
+        } else {
+            regions.addLast(new Region(t, x, y, version));
+            if (regions.size() > MAX_REGIONS) {
+                forgottenVersion = regions.removeFirst().version;
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Records an edit which may have changed any part of the variable
+     * 
+     * @return The new version
+     */
+    public synchronized long editedAll() {
+        version++;
+        regions.clear();
+        forgottenVersion = version;
+        return version;
+    }
+
+    /**
+     * @param since
+     *            The version at which a result was calculated
+     * @param t
+     *            The timestep of the result
+     * @return Whether any edit since the given version may have changed the
+     *         given range (inclusive) of the variable
+     */
+    public synchronized boolean isEdited(long since, int t, int xmin, int ymin, int xmax,
+            int ymax) {
+        if (since >= version) {
+            return false;
+        } else if (since < forgottenVersion) {
+            return true;
+        }
+        Iterator<Region> newestFirst = regions.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Region region = newestFirst.next();
+            if (region.version <= since) {
+                /*
+                 * Only the newest region is ever extended, so the regions
+                 * are in order of version and none of the rest are newer
+                 */
+                break;
+            }
+            if (region.t == t && region.xmin <= xmax && region.xmax >= xmin
+                    && region.ymin <= ymax && region.ymax >= ymin) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -31,14 +31,22 @@ package uk.ac.rdg.resc.cloudmask;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import uk.ac.rdg.resc.cloudmask.CloudMaskDatasetFactory.MaskedDataset;
+import uk.ac.rdg.resc.cloudmask.profiling.ImageRenderEvent;
+import uk.ac.rdg.resc.cloudmask.profiling.Timings;
+import uk.ac.rdg.resc.cloudmask.profiling.Timings.Stage;
+import uk.ac.rdg.resc.cloudmask.widgets.FrameCache;
 import uk.ac.rdg.resc.cloudmask.widgets.ZoomableImageView.ImageGenerator;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
 import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
 import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
+import uk.ac.rdg.resc.edal.graphics.style.Drawable;
 import uk.ac.rdg.resc.edal.graphics.style.MapImage;
 import uk.ac.rdg.resc.edal.graphics.style.RGBColourScheme;
 import uk.ac.rdg.resc.edal.graphics.style.RasterLayer;
@@ -49,7 +57,7 @@ import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
 import uk.ac.rdg.resc.edal.graphics.utils.SimpleFeatureCatalogue;
 import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
 
-public class EdalImageGenerator implements ImageGenerator {
+public class EdalImageGenerator implements ImageGenerator, FrameCache.Versioned {
     /*
      * Share between all instances of EdalImageGenerators
      */
@@ -73,7 +81,7 @@ public class EdalImageGenerator implements ImageGenerator {
 
     public EdalImageGenerator(String var, SimpleFeatureCatalogue<MaskedDataset> catalogue)
             throws IOException, EdalException {
-        this(var, catalogue, GraphicsUtils.estimateValueRange(catalogue.getDataset(), var));
+        this(var, catalogue, catalogue.getDataset().getValueRange(var));
     }
 
     public EdalImageGenerator(String var, SimpleFeatureCatalogue<MaskedDataset> catalogue,
@@ -110,6 +118,10 @@ public class EdalImageGenerator implements ImageGenerator {
         return varName;
     }
 
+    public String getPalette() {
+        return palette;
+    }
+
     public void setPalette(String palette) {
         this.palette = palette;
         refreshColourScheme();
@@ -141,10 +153,19 @@ public class EdalImageGenerator implements ImageGenerator {
     @Override
     public BufferedImage generateImage(double minX, double minY, double maxX, double maxY,
             int width, int height) {
+        ImageRenderEvent event = new ImageRenderEvent(varName, width, height);
+        event.start();
+        long start = Timings.start();
+        /*
+         * All layers are drawn from the same version of the masks
+         */
+        catalogue.getDataset().pinState();
         try {
             PlottingDomainParams params = new PlottingDomainParams(width, height,
                     new BoundingBoxImpl(minX, minY, maxX, maxY, null), null, null, null, null, null);
-            BufferedImage drawImage = image.drawImage(params, catalogue);
+            BufferedImage drawImage = getImage(minX, minY, maxX, maxY, width, height)
+                    .drawImage(params, catalogue);
+            Timings.record(Stage.GENERATE_IMAGE, varName, start);
             return drawImage;
         } catch (EdalException e) {
             /*
@@ -152,7 +173,65 @@ public class EdalImageGenerator implements ImageGenerator {
              */
             e.printStackTrace();
             return null;
+        } finally {
+            catalogue.getDataset().unpinState();
+            event.finish();
+        }
+    }
+
+    /**
+     * Gets the image to draw an area with. If each pixel covers several data
+     * cells, this draws the same layers from overviews of their variables
+     * where that is cheaper than reading the full resolution data (see
+     * {@link MaskedDataset#getOverviewFactor(java.util.Collection, double, long)}).
+     * 
+     * @return The {@link MapImage} to draw
+     */
+    protected MapImage getImage(double minX, double minY, double maxX, double maxY, int width,
+            int height) {
+        MaskedDataset dataset = catalogue.getDataset();
+        List<RasterLayer> layers = new ArrayList<>();
+        List<String> varIds = new ArrayList<>();
+        for (Drawable layer : new ArrayList<>(image.getLayers())) {
+            if (!(layer instanceof RasterLayer)) {
+                return image;
+            }
+            RasterLayer rasterLayer = (RasterLayer) layer;
+            if (!dataset.hasOverviews(rasterLayer.getDataFieldName())) {
+                return image;
+            }
+            layers.add(rasterLayer);
+            varIds.add(rasterLayer.getDataFieldName());
         }
+        /*
+         * The part of the area which is actually covered by data
+         */
+        double areaWidth = Math.min(maxX, getMaxValidX()) - Math.max(minX, getMinValidX());
+        double areaHeight = Math.min(maxY, getMaxValidY()) - Math.max(minY, getMinValidY());
+        long areaCells = (long) (Math.max(0.0, areaWidth) * Math.max(0.0, areaHeight));
+        int factor = dataset.getOverviewFactor(varIds,
+                Math.min((maxX - minX) / width, (maxY - minY) / height), areaCells);
+        if (factor == 1) {
+            return image;
+        }
+        MapImage overviewImage = new MapImage();
+        for (RasterLayer rasterLayer : layers) {
+            overviewImage.getLayers().add(
+                    new RasterLayer(dataset.getOverviewId(rasterLayer.getDataFieldName(), factor),
+                            rasterLayer.getColourScheme()));
+        }
+        return overviewImage;
+    }
+
+    @Override
+    public Object getFrameVersion() {
+        /*
+         * The display settings, plus the versions of the data and mask
+         */
+        MaskedDataset dataset = catalogue.getDataset();
+        return Arrays.asList(scaleRange.getLow(), scaleRange.getHigh(), palette, maskColor,
+                dataset.getTimestep(), dataset.getInputVersions(varName),
+                dataset.getInputVersions(thresholdLayer.getDataFieldName()));
     }
 
     public BufferedImage getLegend(int size, float fracOutOfRangeLow, float fracOutOfRangeHigh,
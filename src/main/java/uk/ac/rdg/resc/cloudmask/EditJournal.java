@@ -0,0 +1,692 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import uk.ac.rdg.resc.cloudmask.CloudMaskController.PixelChange;
+import uk.ac.rdg.resc.cloudmask.CloudMaskDatasetFactory.MaskedDataset;
+import uk.ac.rdg.resc.edal.dataset.plugins.DifferencePlugin;
+import uk.ac.rdg.resc.edal.dataset.plugins.NormalisedDifferencePlugin;
+import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.Extents;
+
+/**
+ * An append-only binary journal of the edits made to a {@link MaskedDataset}
+ * since it was last saved. Threshold changes, plugin additions, composite
+ * membership, manual mask changes and changes of timestep are all recorded, so
+ * that a session can be recovered after a crash.
+ * 
+ * Records are buffered in memory and written through a {@link FileChannel},
+ * which is flushed and synced to disk periodically from a background thread.
+ * A crash therefore loses at most {@link #SYNC_INTERVAL_MS} of edits, and a
+ * partially-written record at the end of the journal is simply ignored on
+ * replay.
+ *
+ * @author Guy Griffiths
+ */
+public class EditJournal implements Closeable {
+    public static final String JOURNAL_SUFFIX = ".journal";
+    /** How often buffered records get written and synced to disk */
+    public static final long SYNC_INTERVAL_MS = 2000L;
+
+    /* "CMJ1" */
+    private static final int MAGIC = 0x434d4a31;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte THRESHOLD = 1;
+    private static final byte INCLUSIVE = 2;
+    private static final byte PLUGIN = 3;
+    private static final byte FILTER = 4;
+    private static final byte COMPOSITE = 5;
+    private static final byte MANUAL_PIXELS = 6;
+    private static final byte MANUAL_MASK = 7;
+    private static final byte TIMESTEP = 8;
+
+    private static final byte PLUGIN_DIFFERENCE = 1;
+    private static final byte PLUGIN_NORMALISED_DIFFERENCE = 2;
+    private static final byte PLUGIN_RGB = 3;
+    private static final byte PLUGIN_EXPRESSION = 4;
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final ScheduledExecutorService syncer;
+
+    /*
+     * Used to serialise records before they are copied into the buffer
+     */
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+    private boolean unsynced = false;
+    private boolean closed = false;
+
+    /**
+     * @param datasetFile
+     *            The dataset being edited
+     * @return The file which the journal for the given dataset is stored in
+     */
+    public static File journalFileFor(File datasetFile) {
+        return new File(datasetFile.getAbsolutePath() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Opens a journal for writing, creating it if necessary.
+     * 
+     * @param journalFile
+     *            The journal file
+     * @param datasetFile
+     *            The dataset which the journal refers to. This is recorded
+     *            in the header so that a journal is never replayed against a
+     *            different version of the data
+     * @param append
+     *            <code>true</code> to keep existing records (i.e. when they
+     *            have just been recovered), <code>false</code> to start a
+     *            fresh journal
+     * @throws IOException
+     *             If the journal file cannot be written
+     */
+    public EditJournal(File journalFile, File datasetFile, boolean append) throws IOException {
+        this(journalFile, datasetFile, append, SYNC_INTERVAL_MS);
+    }
+
+    /**
+     * Opens a journal for writing, with a given sync interval
+     * 
+     * @param syncIntervalMs
+     *            How often to write and sync buffered records, or 0 to only do
+     *            so when the journal is closed
+     * @see EditJournal#EditJournal(File, File, boolean)
+     */
+    EditJournal(File journalFile, File datasetFile, boolean append, long syncIntervalMs)
+            throws IOException {
+        this.file = journalFile;
+        @SuppressWarnings("resource")
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        channel = raf.getChannel();
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        if (!append || channel.size() == 0 || !headerMatches(channel, datasetFile)) {
+            channel.truncate(0);
+            writeHeader(datasetFile);
+        }
+        channel.position(channel.size());
+
+        if (syncIntervalMs <= 0) {
+            syncer = null;
+            return;
+        }
+        syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "edit-journal-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        syncer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void logThreshold(String varId, double min, double max) {
+        try {
+            record.writeByte(THRESHOLD);
+            record.writeUTF(varId);
+            record.writeDouble(min);
+            record.writeDouble(max);
+        } catch (IOException e) {
+            /*
+             * Can't happen - we are writing to a byte array
+             */
+        }
+        append();
+    }
+
+    public void logInclusive(String varId, boolean inclusive) {
+        try {
+            record.writeByte(INCLUSIVE);
+            record.writeUTF(varId);
+            record.writeBoolean(inclusive);
+        } catch (IOException e) {
+        }
+        append();
+    }
+
+    /**
+     * Logs the addition of a plugin. Only the plugins which can be created
+     * through the user interface can be journalled - others are silently
+     * ignored.
+     * 
+     * @param plugin
+     *            The {@link VariablePlugin} which was added to the dataset
+     */
+    public void logPlugin(VariablePlugin plugin) {
+        try {
+            if (plugin instanceof RgbFalseColourPlugin) {
+                RgbFalseColourPlugin rgb = (RgbFalseColourPlugin) plugin;
+                record.writeByte(PLUGIN);
+                record.writeByte(PLUGIN_RGB);
+                writeStrings(plugin.usesVariables());
+                writeExtent(rgb.getRScaleRange());
+                writeExtent(rgb.getGScaleRange());
+                writeExtent(rgb.getBScaleRange());
+            } else if (plugin instanceof ExpressionPlugin) {
+                ExpressionPlugin expression = (ExpressionPlugin) plugin;
+                record.writeByte(PLUGIN);
+                record.writeByte(PLUGIN_EXPRESSION);
+                writeStrings(plugin.usesVariables());
+                record.writeUTF(expression.getName());
+                record.writeUTF(expression.getExpression());
+            } else if (plugin instanceof NormalisedDifferencePlugin) {
+                record.writeByte(PLUGIN);
+                record.writeByte(PLUGIN_NORMALISED_DIFFERENCE);
+                writeStrings(plugin.usesVariables());
+            } else if (plugin instanceof DifferencePlugin) {
+                record.writeByte(PLUGIN);
+                record.writeByte(PLUGIN_DIFFERENCE);
+                writeStrings(plugin.usesVariables());
+            } else {
+                return;
+            }
+        } catch (IOException e) {
+        }
+        append();
+    }
+
+    /**
+     * Logs the enabling of a median or standard deviation filter
+     */
+    public void logFilter(String varId, boolean median) {
+        try {
+            record.writeByte(FILTER);
+            record.writeUTF(varId);
+            record.writeBoolean(median);
+        } catch (IOException e) {
+        }
+        append();
+    }
+
+    /**
+     * Logs a change to the masks included in the composite
+     * 
+     * @param masks
+     *            The names of the mask variables, as passed to
+     *            {@link MaskedDataset#setMaskedVariables(String...)}
+     */
+    public void logComposite(String[] masks) {
+        try {
+            record.writeByte(COMPOSITE);
+            writeStrings(masks);
+        } catch (IOException e) {
+        }
+        append();
+    }
+
+    /**
+     * Logs a set of changes to the manual mask
+     * 
+     * @param changes
+     *            The changes which have been applied
+     * @param reverse
+     *            <code>true</code> if the changes have been undone (i.e. each
+     *            pixel now has its <code>fromValue</code>)
+     */
+    public void logManualPixels(List<PixelChange> changes, boolean reverse) {
+        if (changes == null || changes.isEmpty()) {
+            return;
+        }
+        try {
+            record.writeByte(MANUAL_PIXELS);
+            record.writeInt(changes.size());
+            for (PixelChange change : changes) {
+                Integer value = reverse ? change.fromValue : change.toValue;
+                record.writeInt(change.coords.getX());
+                record.writeInt(change.coords.getY());
+                record.writeByte(value == null ? CopyOnWriteMask.UNSET : value);
+            }
+        } catch (IOException e) {
+        }
+        append();
+    }
+
+    /**
+     * Logs the entire state of the manual mask. The mask is run-length
+     * encoded, since it will usually be mostly unset.
+     * 
+     * @param mask
+     *            A snapshot of the manual mask
+     */
+    public void logManualMask(CopyOnWriteMask.Snapshot mask) {
+        int ySize = mask.getYSize();
+        int xSize = mask.getXSize();
+        try {
+            record.writeByte(MANUAL_MASK);
+            record.writeInt(ySize);
+            record.writeInt(xSize);
+            byte runValue = mask.getByte(0, 0);
+            int runLength = 0;
+            for (int y = 0; y < ySize; y++) {
+                for (int x = 0; x < xSize; x++) {
+                    byte value = mask.getByte(y, x);
+                    if (value != runValue) {
+                        record.writeByte(runValue);
+                        record.writeInt(runLength);
+                        runValue = value;
+                        runLength = 0;
+                    }
+                    runLength++;
+                }
+            }
+            record.writeByte(runValue);
+            record.writeInt(runLength);
+        } catch (IOException e) {
+        }
+        append();
+    }
+
+    /**
+     * Logs a change of timestep, or of whether thresholds are per-timestep.
+     * Threshold and manual mask records which follow it apply to this
+     * timestep.
+     * 
+     * @param timestep
+     *            The current timestep
+     * @param perTimestepThresholds
+     *            Whether each timestep has its own thresholds
+     */
+    public void logTimestep(int timestep, boolean perTimestepThresholds) {
+        try {
+            record.writeByte(TIMESTEP);
+            record.writeInt(timestep);
+            record.writeBoolean(perTimestepThresholds);
+        } catch (IOException e) {
+        }
+        append();
+    }
+
+    /**
+     * Discards all records. Should be called once the dataset has been saved
+     */
+    public synchronized void reset(File datasetFile) throws IOException {
+        buffer.clear();
+        channel.truncate(0);
+        channel.position(0);
+        writeHeader(datasetFile);
+        unsynced = true;
+    }
+
+    /**
+     * Closes the journal, leaving the file on disk so that it can be
+     * recovered
+     */
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            flush();
+            channel.force(false);
+            channel.close();
+            closed = true;
+        }
+    }
+
+    /**
+     * Closes and removes the journal. Used when there are no edits which need
+     * to be recovered
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Copies the current record into the buffer, writing to the channel if
+     * there isn't enough space
+     */
+    private synchronized void append() {
+        if (closed) {
+            recordBytes.reset();
+            return;
+        }
+        try {
+            int length = recordBytes.size();
+            if (buffer.remaining() < length + 4) {
+                flush();
+            }
+            if (length + 4 > buffer.capacity()) {
+                /*
+                 * Too big for the buffer (e.g. a very large brush stroke).
+                 * Write it straight out.
+                 */
+                ByteBuffer big = ByteBuffer.allocate(length + 4);
+                big.putInt(length);
+                big.put(recordBytes.toByteArray());
+                big.flip();
+                while (big.hasRemaining()) {
+                    channel.write(big);
+                }
+            } else {
+                buffer.putInt(length);
+                buffer.put(recordBytes.toByteArray());
+            }
+            unsynced = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            recordBytes.reset();
+        }
+    }
+
+    /**
+     * Writes any buffered records to the channel
+     */
+    private synchronized void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writes buffered records and forces them to disk.
+     */
+    private void sync() throws IOException {
+        synchronized (this) {
+            if (!unsynced || closed) {
+                return;
+            }
+            flush();
+            unsynced = false;
+        }
+        /*
+         * Forcing is thread-safe on the channel, and can be slow, so we don't
+         * hold the lock (and block the FX thread from logging) whilst doing it.
+         */
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            /*
+             * Closed whilst we were syncing - close() has forced it anyway.
+             */
+        }
+    }
+
+    private void writeHeader(File datasetFile) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4 + 8 + 8);
+        header.putInt(MAGIC);
+        header.putLong(datasetFile.length());
+        header.putLong(datasetFile.lastModified());
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    private static boolean headerMatches(FileChannel channel, File datasetFile)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4 + 8 + 8);
+        channel.position(0);
+        while (header.hasRemaining()) {
+            if (channel.read(header) < 0) {
+                return false;
+            }
+        }
+        header.flip();
+        return header.getInt() == MAGIC && header.getLong() == datasetFile.length()
+                && header.getLong() == datasetFile.lastModified();
+    }
+
+    private void writeStrings(String[] strings) throws IOException {
+        record.writeInt(strings.length);
+        for (String string : strings) {
+            record.writeUTF(string);
+        }
+    }
+
+    private void writeExtent(Extent<Float> extent) throws IOException {
+        record.writeFloat(extent.getLow());
+        record.writeFloat(extent.getHigh());
+    }
+
+    /**
+     * Determines whether a dataset has a journal containing edits which can
+     * be recovered
+     * 
+     * @param journalFile
+     *            The journal file
+     * @param datasetFile
+     *            The dataset it should refer to
+     * @return <code>true</code> if there are edits to recover
+     */
+    public static boolean hasRecoverableEdits(File journalFile, File datasetFile) {
+        if (!journalFile.exists() || journalFile.length() <= 4 + 8 + 8) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "r")) {
+            return headerMatches(raf.getChannel(), datasetFile);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Replays a journal onto a freshly-loaded dataset.
+     * 
+     * All records are applied directly to the dataset, without any UI
+     * callbacks or cache expiry - the caller should do this once afterwards.
+     * Manual mask changes are written straight into the mask array, so even
+     * very long sessions replay quickly.
+     * 
+     * @param journalFile
+     *            The journal to replay
+     * @param dataset
+     *            The dataset to apply it to
+     * @return The number of records which were replayed
+     * @throws IOException
+     *             If the journal cannot be read
+     */
+    public static int replay(File journalFile, MaskedDataset dataset) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(journalFile.toPath()));
+        if (data.remaining() < 4 + 8 + 8 || data.getInt() != MAGIC) {
+            return 0;
+        }
+        data.getLong();
+        data.getLong();
+
+        Array2D<Number> manualMask = dataset.getManualMask();
+        int count = 0;
+        while (data.remaining() >= 4) {
+            int length = data.getInt();
+            if (length <= 0 || length > data.remaining()) {
+                /*
+                 * A partially-written record from a crash. Everything before
+                 * it is valid.
+                 */
+                break;
+            }
+            ByteBuffer rec = data.slice();
+            rec.limit(length);
+            data.position(data.position() + length);
+            try {
+                byte type = rec.get();
+                switch (type) {
+                case THRESHOLD: {
+                    String varId = readString(rec);
+                    double min = rec.getDouble();
+                    double max = rec.getDouble();
+                    dataset.setMaskThreshold(varId, min, max);
+                    break;
+                }
+                case INCLUSIVE: {
+                    String varId = readString(rec);
+                    dataset.setMaskThresholdInclusive(varId, rec.get() != 0);
+                    break;
+                }
+                case PLUGIN: {
+                    byte pluginType = rec.get();
+                    String[] vars = readStrings(rec);
+                    VariablePlugin plugin;
+                    if (pluginType == PLUGIN_RGB) {
+                        plugin = new RgbFalseColourPlugin(vars[0], vars[1], vars[2],
+                                readExtent(rec), readExtent(rec), readExtent(rec));
+                    } else if (pluginType == PLUGIN_EXPRESSION) {
+                        plugin = new ExpressionPlugin(readString(rec), readString(rec));
+                    } else if (pluginType == PLUGIN_NORMALISED_DIFFERENCE) {
+                        plugin = new RowNormalisedDifferencePlugin(vars[0], vars[1]);
+                    } else {
+                        plugin = new RowDifferencePlugin(vars[0], vars[1]);
+                    }
+                    dataset.addVariablePlugin(plugin);
+                    break;
+                }
+                case FILTER: {
+                    String varId = readString(rec);
+                    if (rec.get() != 0) {
+                        dataset.enableMedian(varId);
+                    } else {
+                        dataset.enableStddev(varId);
+                    }
+                    break;
+                }
+                case COMPOSITE:
+                    dataset.setMaskedVariables(readStrings(rec));
+                    break;
+                case MANUAL_PIXELS: {
+                    int nPixels = rec.getInt();
+                    for (int i = 0; i < nPixels; i++) {
+                        int x = rec.getInt();
+                        int y = rec.getInt();
+                        byte value = rec.get();
+                        manualMask.set(value == CopyOnWriteMask.UNSET ? null : Integer
+                                .valueOf(value), y, x);
+                    }
+                    dataset.manualMaskEdited();
+                    break;
+                }
+                case MANUAL_MASK: {
+                    int ySize = rec.getInt();
+                    int xSize = rec.getInt();
+                    int pixel = 0;
+                    while (pixel < ySize * xSize) {
+                        byte value = rec.get();
+                        int runEnd = pixel + rec.getInt();
+                        for (; pixel < runEnd; pixel++) {
+                            manualMask.set(value == CopyOnWriteMask.UNSET ? null : Integer
+                                    .valueOf(value), pixel / xSize, pixel % xSize);
+                        }
+                    }
+                    dataset.manualMaskEdited();
+                    break;
+                }
+                case TIMESTEP: {
+                    int timestep = rec.getInt();
+                    dataset.setPerTimestepThresholds(rec.get() != 0);
+                    dataset.setTimestep(timestep);
+                    manualMask = dataset.getManualMask();
+                    break;
+                }
+                default:
+                    /*
+                     * Unknown record type. Skip it.
+                     */
+                    continue;
+                }
+                count++;
+            } catch (BufferUnderflowException | IllegalArgumentException
+                    | NullPointerException e) {
+                /*
+                 * A corrupt record, or one which refers to a variable which
+                 * no longer exists. Skip it and carry on.
+                 */
+                e.printStackTrace();
+            } catch (EdalException e) {
+                e.printStackTrace();
+            }
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        /*
+         * writeUTF uses modified UTF-8, which is identical to UTF-8 for all
+         * sensible variable names
+         */
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String[] readStrings(ByteBuffer buffer) {
+        String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(buffer);
+        }
+        return strings;
+    }
+
+    private static Extent<Float> readExtent(ByteBuffer buffer) {
+        float low = buffer.getFloat();
+        float high = buffer.getFloat();
+        return Extents.newExtent(low, high);
+    }
+}
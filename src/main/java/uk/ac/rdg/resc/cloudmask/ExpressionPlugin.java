@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+
+/**
+ * A {@link VariablePlugin} which generates a variable from an arbitrary
+ * {@link BandMathExpression} of other variables, e.g.
+ * <code>(b4 - b5) / (b4 + b5) &gt; 0.1 ? b7 : NaN</code>.
+ * 
+ * The whole expression is evaluated in one pass over the variables it uses,
+ * so combinations which would otherwise need several plugins (and the
+ * intermediate variables between them) are generated directly.
+ *
+ * @author Guy Griffiths
+ */
+public class ExpressionPlugin extends VariablePlugin implements FloatRowPlugin {
+    public static final String EXPRESSION = "expr";
+
+    private final String name;
+    private final BandMathExpression expression;
+
+    /**
+     * @param name
+     *            The name of the generated variable. Its ID will be this
+     *            followed by "-{@value #EXPRESSION}"
+     * @param expression
+     *            The expression to generate values from
+     * @throws IllegalArgumentException
+     *             If the expression is not valid, or doesn't use any
+     *             variables
+     */
+    public ExpressionPlugin(String name, String expression) {
+        this(name, new BandMathExpression(expression));
+    }
+
+    private ExpressionPlugin(String name, BandMathExpression expression) {
+        super(getUsedVariables(expression), new String[] { EXPRESSION });
+        this.name = name;
+        this.expression = expression;
+    }
+
+    private static String[] getUsedVariables(BandMathExpression expression) {
+        String[] variables = expression.getVariables();
+        if (variables.length == 0) {
+            /*
+             * The generated variable takes its grid from the variables it
+             * uses, so it needs at least one
+             */
+            throw new IllegalArgumentException("The expression doesn't use any variables");
+        }
+        return variables;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getExpression() {
+        return expression.getExpression();
+    }
+
+    @Override
+    protected String combineIds(String... partsToUse) {
+        return name;
+    }
+
+    @Override
+    protected VariableMetadata[] doProcessVariableMetadata(VariableMetadata... metadata)
+            throws EdalException {
+        VariableMetadata expressionMeta = newVariableMetadataFromMetadata(new Parameter(
+                getFullId(EXPRESSION), name, "Calculated as: " + expression.getExpression(), "",
+                null), true, metadata);
+        expressionMeta.setParent(metadata[0].getParent(), null);
+        return new VariableMetadata[] { expressionMeta };
+    }
+
+    @Override
+    protected Number generateValue(String varSuffix, HorizontalPosition pos,
+            Number... sourceValues) {
+        float[] values = new float[sourceValues.length];
+        for (int i = 0; i < sourceValues.length; i++) {
+            values[i] = sourceValues[i] == null ? Float.NaN : sourceValues[i].floatValue();
+        }
+        float value = expression.evaluate(values);
+        return Float.isNaN(value) ? null : value;
+    }
+
+    @Override
+    public void evaluateRow(float[][] sourceRows, int length, float[] out) {
+        expression.evaluateRow(sourceRows, length, out);
+    }
+}
@@ -0,0 +1,324 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * An {@link Array4D} of float values covering a single time and depth, which
+ * can be read without boxing. Missing values are represented as NaNs.
+ * 
+ * Reading values through {@link #get(int...)} will box them as usual, but
+ * {@link #getFloat(int, int)} and {@link #readRow(int, float[])} do not
+ * allocate, so should be used wherever the values are consumed by code in
+ * this tool.
+ *
+ * @author Guy Griffiths
+ */
+public abstract class FloatArray4D extends Array4D<Number> {
+    /*
+     * Arrays smaller than this are materialised on the calling thread, since
+     * splitting them up costs more than it saves
+     */
+    private static final int MIN_PARALLEL_VALUES = 64 * 1024;
+    private static final int N_THREADS = Runtime.getRuntime().availableProcessors();
+    /*
+     * Shared by all arrays, since materialising is CPU-bound. Created when
+     * first needed.
+     */
+    private static ExecutorService materialiser = null;
+
+    public FloatArray4D(int ySize, int xSize) {
+        super(1, 1, ySize, xSize);
+    }
+
+    /**
+     * @param y
+     *            The y-index of the value
+     * @param x
+     *            The x-index of the value
+     * @return The value at the given point, or NaN if it is missing
+     */
+    public abstract float getFloat(int y, int x);
+
+    /**
+     * Reads a row of values into a buffer
+     * 
+     * @param y
+     *            The y-index of the row to read
+     * @param dest
+     *            The buffer to read into. This must be at least as long as
+     *            the x-size of this array
+     */
+    public void readRow(int y, float[] dest) {
+        int xSize = getXSize();
+        for (int x = 0; x < xSize; x++) {
+            dest[x] = getFloat(y, x);
+        }
+    }
+
+    @Override
+    public Number get(int... coords) {
+        return getFloat(coords[2], coords[3]);
+    }
+
+    @Override
+    public void set(Number value, int... coords) {
+        throw new UnsupportedOperationException("Immutable array");
+    }
+
+    /**
+     * Creates a {@link FloatArray4D} backed by an array of values
+     * 
+     * @param ySize
+     *            The size of the array in the y-direction
+     * @param xSize
+     *            The size of the array in the x-direction
+     * @param values
+     *            The values, in row-major order. These are not copied
+     * @return A new {@link FloatArray4D}
+     */
+    public static FloatArray4D wrap(final int ySize, final int xSize, final float[] values) {
+        if (values.length < ySize * xSize) {
+            throw new IllegalArgumentException("Need " + (ySize * xSize) + " values, but got "
+                    + values.length);
+        }
+        return new FloatArray4D(ySize, xSize) {
+            @Override
+            public float getFloat(int y, int x) {
+                return values[y * xSize + x];
+            }
+
+            @Override
+            public void readRow(int y, float[] dest) {
+                System.arraycopy(values, y * xSize, dest, 0, xSize);
+            }
+        };
+    }
+
+    /**
+     * Gets a rectangular part of an array
+     * 
+     * @return A {@link FloatArray4D} reading the values in the range
+     *         (inclusive) from the given array
+     */
+    public static FloatArray4D subset(final FloatArray4D array, final int ymin, int ymax,
+            final int xmin, int xmax) {
+        if (ymin == 0 && xmin == 0 && ymax == array.getYSize() - 1
+                && xmax == array.getXSize() - 1) {
+            return array;
+        }
+        final boolean fullRows = xmin == 0 && xmax == array.getXSize() - 1;
+        return new FloatArray4D(ymax - ymin + 1, xmax - xmin + 1) {
+            @Override
+            public float getFloat(int y, int x) {
+                return array.getFloat(ymin + y, xmin + x);
+            }
+
+            @Override
+            public void readRow(int y, float[] dest) {
+                if (fullRows) {
+                    array.readRow(ymin + y, dest);
+                } else {
+                    super.readRow(y, dest);
+                }
+            }
+        };
+    }
+
+    /**
+     * Reads all of the values of an array into memory. Blocks of rows are
+     * read in parallel, so this is much quicker than reading the values one
+     * at a time when they are generated as they are read (e.g. by a
+     * {@link PluginFloatArray4D}).
+     * 
+     * @return A {@link FloatArray4D} holding the values
+     */
+    public static FloatArray4D materialise(final FloatArray4D array)
+            throws DataReadingException {
+        int ySize = array.getYSize();
+        final int xSize = array.getXSize();
+        final float[] values = new float[ySize * xSize];
+        int nBlocks = 1;
+        if ((long) ySize * xSize >= MIN_PARALLEL_VALUES) {
+            nBlocks = Math.min(ySize, 4 * N_THREADS);
+        }
+        List<Future<?>> blocks = new ArrayList<>();
+        for (int b = 0; b < nBlocks; b++) {
+            final int ymin = (int) ((long) ySize * b / nBlocks);
+            final int ymax = (int) ((long) ySize * (b + 1) / nBlocks);
+            Runnable block = new Runnable() {
+                @Override
+                public void run() {
+                    float[] row = new float[xSize];
+                    for (int y = ymin; y < ymax; y++) {
+                        array.readRow(y, row);
+                        System.arraycopy(row, 0, values, y * xSize, xSize);
+                    }
+                }
+            };
+            if (nBlocks == 1) {
+                block.run();
+            } else {
+                blocks.add(getMaterialiser().submit(block));
+            }
+        }
+        try {
+            for (Future<?> block : blocks) {
+                block.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataReadingException("Interrupted whilst reading values", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new DataReadingException("Problem reading values", e.getCause());
+        } finally {
+            for (Future<?> block : blocks) {
+                block.cancel(false);
+            }
+        }
+        return wrap(ySize, xSize, values);
+    }
+
+    private static synchronized ExecutorService getMaterialiser() {
+        if (materialiser == null) {
+            materialiser = Executors.newFixedThreadPool(N_THREADS, new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "materialise-" + count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return materialiser;
+    }
+
+    /**
+     * Joins arrays end-to-end into a single array. The values are not copied.
+     * 
+     * @param parts
+     *            The arrays to join, in order. These must all be the same size
+     *            along the axis which they are not joined on
+     * @param alongY
+     *            <code>true</code> to join the arrays along the y-axis,
+     *            <code>false</code> for the x-axis
+     * @return A {@link FloatArray4D} containing all of the parts
+     */
+    public static FloatArray4D concatenate(final FloatArray4D[] parts, final boolean alongY) {
+        if (parts.length == 1) {
+            return parts[0];
+        }
+        final int[] offsets = new int[parts.length + 1];
+        for (int i = 0; i < parts.length; i++) {
+            int size = alongY ? parts[i].getYSize() : parts[i].getXSize();
+            int otherSize = alongY ? parts[i].getXSize() : parts[i].getYSize();
+            int expectedOtherSize = alongY ? parts[0].getXSize() : parts[0].getYSize();
+            if (otherSize != expectedOtherSize) {
+                throw new IllegalArgumentException("Arrays to join must be the same size");
+            }
+            offsets[i + 1] = offsets[i] + size;
+        }
+        int ySize = alongY ? offsets[parts.length] : parts[0].getYSize();
+        int xSize = alongY ? parts[0].getXSize() : offsets[parts.length];
+        return new FloatArray4D(ySize, xSize) {
+            @Override
+            public float getFloat(int y, int x) {
+                if (alongY) {
+                    int part = getPart(y);
+                    return parts[part].getFloat(y - offsets[part], x);
+                } else {
+                    int part = getPart(x);
+                    return parts[part].getFloat(y, x - offsets[part]);
+                }
+            }
+
+            @Override
+            public void readRow(int y, float[] dest) {
+                if (alongY) {
+                    int part = getPart(y);
+                    parts[part].readRow(y - offsets[part], dest);
+                } else {
+                    float[] partRow = new float[dest.length];
+                    for (int part = 0; part < parts.length; part++) {
+                        parts[part].readRow(y, partRow);
+                        System.arraycopy(partRow, 0, dest, offsets[part], parts[part].getXSize());
+                    }
+                }
+            }
+
+            private int getPart(int index) {
+                int part = 0;
+                while (index >= offsets[part + 1]) {
+                    part++;
+                }
+                return part;
+            }
+        };
+    }
+
+    /**
+     * Reads a row of values from any {@link Array4D}, without boxing if it is
+     * a {@link FloatArray4D}
+     * 
+     * @param array
+     *            The array to read from. Only the first time and depth are
+     *            read
+     * @param y
+     *            The y-index of the row to read
+     * @param dest
+     *            The buffer to read into. <code>null</code> values are read
+     *            as NaN
+     */
+    public static void readRow(Array4D<Number> array, int y, float[] dest) {
+        if (array instanceof FloatArray4D) {
+            ((FloatArray4D) array).readRow(y, dest);
+        } else {
+            int xSize = array.getXSize();
+            for (int x = 0; x < xSize; x++) {
+                Number value = array.get(0, 0, y, x);
+                dest[x] = value == null ? Float.NaN : value.floatValue();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
+
+/**
+ * A {@link VariablePlugin} which can also generate its values a row at a
+ * time from primitive arrays.
+ * 
+ * {@link VariablePlugin#generateValue(String, uk.ac.rdg.resc.edal.position.HorizontalPosition, Number...)}
+ * allocates a varargs array and a position for every pixel, and boxes every
+ * value. Variables provided by plugins implementing this interface are
+ * instead generated by the {@link CloudMaskDatasetFactory.MaskedDataset}'s
+ * data source, which allocates nothing per pixel. The two methods of
+ * generating values must give the same results.
+ *
+ * @author Guy Griffiths
+ */
+public interface FloatRowPlugin {
+    /**
+     * Generates a row of values
+     * 
+     * @param sourceRows
+     *            A row of values for each of the variables used by this
+     *            plugin, in the order given by
+     *            {@link VariablePlugin#usesVariables()}. Missing values are
+     *            NaN
+     * @param length
+     *            The number of values in the row
+     * @param out
+     *            The buffer to write the generated values to. Missing values
+     *            should be written as NaN
+     */
+    public void evaluateRow(float[][] sourceRows, int length, float[] out);
+}
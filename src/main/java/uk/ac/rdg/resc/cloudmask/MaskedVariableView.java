@@ -62,7 +62,6 @@ import uk.ac.rdg.resc.cloudmask.widgets.PaletteSelector;
 import uk.ac.rdg.resc.cloudmask.widgets.ZoomableImageView.ImageGenerator;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
-import uk.ac.rdg.resc.edal.graphics.utils.GraphicsUtils;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 
 public class MaskedVariableView extends HBox {
@@ -71,6 +70,11 @@ public class MaskedVariableView extends HBox {
     private String currentVariable = null;
     private CompositeMaskView compositeMaskView;
     private LinkedZoomableImageView imageView;
+    /*
+     * The composite view which imageView is linked to. The image view is
+     * reused for each new variable until the composite view changes.
+     */
+    private LinkedZoomableImageView linkedComposite = null;
 
     private final CloudMaskController controller;
     private final int imageWidth;
@@ -319,6 +323,10 @@ public class MaskedVariableView extends HBox {
             @Override
             public void changed(ObservableValue<? extends Boolean> observer, Boolean wasChanging,
                     Boolean changing) {
+                /*
+                 * Preview the masks whilst dragging
+                 */
+                controller.setThresholdPreview(currentVariable, changing);
                 if (!changing) {
                     /*
                      * Finished changing. Add new state to the undo stack
@@ -331,6 +339,7 @@ public class MaskedVariableView extends HBox {
             @Override
             public void changed(ObservableValue<? extends Boolean> observer, Boolean wasChanging,
                     Boolean changing) {
+                controller.setThresholdPreview(currentVariable, changing);
                 if (!changing) {
                     /*
                      * Finished changing. Add new state to the undo stack
@@ -409,8 +418,8 @@ public class MaskedVariableView extends HBox {
         resetView.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent event) {
-                Extent<Float> maxScaleRange = GraphicsUtils.estimateValueRange(
-                        controller.getDataset(), currentVariable);
+                Extent<Float> maxScaleRange = controller.getDataset().getValueRange(
+                        currentVariable);
                 colourbarSlider.setLowValue(maxScaleRange.getLow());
                 colourbarSlider.setHighValue(maxScaleRange.getHigh());
                 maskRangeSlider.setLowValue(maxScaleRange.getLow());
@@ -440,11 +449,6 @@ public class MaskedVariableView extends HBox {
     }
 
     public void newModelSelected(EdalImageGenerator imageGenerator) {
-        /*
-         * Remove the image view
-         */
-        mapMask.getChildren().remove(imageView);
-
         /*
          * Unbind the current inMask property
          */
@@ -463,7 +467,7 @@ public class MaskedVariableView extends HBox {
         /*
          * Set all scale slider values
          */
-        Extent<Float> maxScaleRange = GraphicsUtils.estimateValueRange(controller.getDataset(),
+        Extent<Float> maxScaleRange = controller.getDataset().getValueRange(
                 currentVariable);
 
         /*
@@ -505,6 +509,31 @@ public class MaskedVariableView extends HBox {
 
         disabledCallbacks = false;
 
+        if (linkedComposite == compositeMaskView.imageView
+                && imageView.hasSameBounds(imageGenerator)) {
+            /*
+             * Keep the same view, so that it can show a frame of the new
+             * variable straight away if it has been drawn before
+             */
+            imageView.setImageGenerator(imageGenerator);
+            /* Identifies the view in the timings and the frame cache */
+            imageView.setId(imageGenerator.getVariable());
+        } else {
+            createImageView(imageGenerator);
+        }
+
+        /*
+         * Set the title
+         */
+        varLabel.textProperty().set(currentVariable);
+    }
+
+    private void createImageView(EdalImageGenerator imageGenerator) {
+        /*
+         * Remove the image view
+         */
+        mapMask.getChildren().remove(imageView);
+
         /*
          * Delink the old view
          * 
@@ -514,6 +543,9 @@ public class MaskedVariableView extends HBox {
          */
         compositeMaskView.unlinkView(imageView);
         imageView = new LinkedZoomableImageView(imageWidth, imageHeight, imageGenerator);
+        /* Identifies the view in the timings */
+        imageView.setId(imageGenerator.getVariable());
+        imageView.setFrameCache(controller.getFrameCache());
         imageView.addEventHandler(MouseEvent.MOUSE_CLICKED, new EventHandler<MouseEvent>() {
             @Override
             public void handle(MouseEvent event) {
@@ -566,11 +598,7 @@ public class MaskedVariableView extends HBox {
         imageView.setFitWidth(imageWidth * scale);
         compositeMaskView.linkView(imageView);
 
-        /*
-         * Set the title
-         */
-        varLabel.textProperty().set(currentVariable);
-
+        linkedComposite = compositeMaskView.imageView;
         mapMask.getChildren().add(0, imageView);
     }
 
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A scene made up of several granules which are joined end-to-end into one
+ * large grid, such as consecutive granules from a satellite pass.
+ * 
+ * Mosaics are described by a text file with the extension
+ * {@value #EXTENSION}, listing the location of each granule in order, one per
+ * line. Relative locations are relative to the mosaic file. Blank lines and
+ * lines starting with <code>#</code> are ignored. Granules are joined along
+ * the y-axis, unless the file contains the line <code>axis=x</code>.
+ * 
+ * All granules must contain the same variables, with the same size along the
+ * axis which they are not joined on.
+ *
+ * @author Guy Griffiths
+ */
+public class Mosaic {
+    public static final String EXTENSION = ".mosaic";
+
+    private final List<String> granules;
+    private final boolean alongY;
+
+    /**
+     * @param granules
+     *            The locations of the granules, in order
+     * @param alongY
+     *            <code>true</code> if the granules are joined along the y-axis,
+     *            <code>false</code> for the x-axis
+     */
+    public Mosaic(List<String> granules, boolean alongY) {
+        if (granules.isEmpty()) {
+            throw new IllegalArgumentException("A mosaic needs at least one granule");
+        }
+        this.granules = Collections.unmodifiableList(new ArrayList<>(granules));
+        this.alongY = alongY;
+    }
+
+    public List<String> getGranules() {
+        return granules;
+    }
+
+    public boolean isAlongY() {
+        return alongY;
+    }
+
+    /**
+     * @param location
+     *            The location of a dataset
+     * @return Whether the location is a mosaic file
+     */
+    public static boolean isMosaic(String location) {
+        return location.endsWith(EXTENSION);
+    }
+
+    /**
+     * Reads a mosaic file
+     * 
+     * @param file
+     *            The mosaic file
+     * @return The {@link Mosaic} it describes
+     */
+    public static Mosaic read(File file) throws IOException {
+        List<String> granules = new ArrayList<>();
+        boolean alongY = true;
+        File parent = file.getAbsoluteFile().getParentFile();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(),
+                StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.startsWith("axis=")) {
+                    String axis = line.substring("axis=".length()).trim();
+                    if (axis.equalsIgnoreCase("x")) {
+                        alongY = false;
+                    } else if (axis.equalsIgnoreCase("y")) {
+                        alongY = true;
+                    } else {
+                        throw new IOException("Unknown mosaic axis: " + axis);
+                    }
+                    continue;
+                }
+                File granule = new File(line);
+                if (!granule.isAbsolute()) {
+                    granule = new File(parent, line);
+                }
+                granules.add(granule.getPath());
+            }
+        }
+        if (granules.isEmpty()) {
+            throw new IOException(file + " does not list any granules");
+        }
+        return new Mosaic(granules, alongY);
+    }
+
+    /**
+     * Writes this mosaic to a file
+     * 
+     * @param file
+     *            The file to write
+     */
+    public void write(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file.toPath(),
+                StandardCharsets.UTF_8))) {
+            writer.println("# Granules joined into a single scene, in order");
+            writer.println("axis=" + (alongY ? "y" : "x"));
+            for (String granule : granules) {
+                writer.println(granule);
+            }
+        }
+    }
+
+    /**
+     * Creates a mosaic of granules joined along the y-axis. Granules are
+     * ordered by name, which for most satellite products is their time order.
+     * This doesn't write anything - see {@link #write(File)}.
+     * 
+     * @param granules
+     *            The granule files
+     * @return The {@link Mosaic}
+     */
+    public static Mosaic fromGranules(List<File> granules) {
+        List<File> sorted = new ArrayList<>(granules);
+        Collections.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return f1.getName().compareTo(f2.getName());
+            }
+        });
+        List<String> locations = new ArrayList<>();
+        for (File granule : sorted) {
+            locations.add(granule.getAbsolutePath());
+        }
+        return new Mosaic(locations, true);
+    }
+
+    /**
+     * @return A name for a file describing this mosaic, based on the name of
+     *         its first granule
+     */
+    public String getDefaultFileName() {
+        String name = new File(granules.get(0)).getName();
+        if (name.contains(".")) {
+            name = name.substring(0, name.lastIndexOf('.'));
+        }
+        return name + EXTENSION;
+    }
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import ucar.nc2.dataset.NetcdfDataset;
+
+/**
+ * A pool of independently opened, read-only handles to a single NetCDF file.
+ * 
+ * Reads through a single handle are serialised on its underlying file, so
+ * each concurrent reader takes its own handle from the pool. Handles are
+ * returned to the pool after use rather than closed, so that opening a data
+ * source for every read does not reopen the file each time.
+ * 
+ * Acquiring a handle never blocks - if none are idle, a new one is opened.
+ * Only up to a fixed number of idle handles are kept, and any further
+ * handles are closed when they are released.
+ *
+ * @author Guy Griffiths
+ */
+public class NetcdfHandlePool {
+    private final String location;
+    private final int maxIdle;
+    private final Deque<NetcdfDataset> idle = new ArrayDeque<>();
+    private boolean closed = false;
+
+    /**
+     * @param location
+     *            The location of the file to open
+     * @param maxIdle
+     *            The maximum number of open handles to keep when they are not
+     *            in use. This should be about the number of threads expected
+     *            to read concurrently
+     */
+    public NetcdfHandlePool(String location, int maxIdle) {
+        this.location = location;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Gets a handle for the exclusive use of the caller, which must be
+     * returned with {@link #release(NetcdfDataset)} when it is finished with
+     * 
+     * @return An open {@link NetcdfDataset}
+     */
+    public NetcdfDataset acquire() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("The handles to " + location + " have been closed");
+            }
+            NetcdfDataset nc = idle.pollFirst();
+            if (nc != null) {
+                return nc;
+            }
+        }
+        /*
+         * Opening can be slow, so don't hold up other threads
+         */
+        return NetcdfDataset.openDataset(location);
+    }
+
+    /**
+     * Returns a handle to the pool
+     * 
+     * @param nc
+     *            A handle obtained from {@link #acquire()}
+     */
+    public void release(NetcdfDataset nc) {
+        synchronized (this) {
+            if (!closed && idle.size() < maxIdle) {
+                /*
+                 * The most recently used handle is reused first, since its
+                 * file buffers are the most likely to still be useful
+                 */
+                idle.offerFirst(nc);
+                return;
+            }
+        }
+        closeQuietly(nc);
+    }
+
+    /**
+     * Closes all idle handles. Handles which are in use will be closed as
+     * they are released, and no more handles can be acquired.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        NetcdfDataset nc;
+        while ((nc = pollIdle()) != null) {
+            closeQuietly(nc);
+        }
+    }
+
+    /**
+     * @return The number of handles which are open but not in use
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    private synchronized NetcdfDataset pollIdle() {
+        return idle.pollFirst();
+    }
+
+    private static void closeQuietly(NetcdfDataset nc) {
+        try {
+            nc.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
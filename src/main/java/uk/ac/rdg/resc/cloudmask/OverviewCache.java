@@ -0,0 +1,413 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of downsampled overviews of variables.
+ * 
+ * Overviews are reduced by a whole factor in each direction, either by
+ * averaging each block of values (for data) or by taking the value nearest
+ * to the centre of the block (for masks, where an average is meaningless).
+ * They are built on first use with a single pass over the full-resolution
+ * data, which only ever holds one block of rows at a time.
+ * 
+ * If a directory is given, overviews are also written to it, so that they
+ * don't need building again the next time the same data is loaded. The
+ * directory is limited in size, and the least recently used overviews in it
+ * (by modification time, which is updated whenever one is read) are deleted
+ * to keep it within that size.
+ *
+ * @author Guy Griffiths
+ */
+public class OverviewCache {
+    private static final int MAGIC = 0x4f565231;
+    private static final String FILE_EXTENSION = ".ovr";
+
+    /**
+     * Reads a range of rows of the full-resolution data
+     */
+    interface RowReader {
+        /**
+         * @return The values of the rows in the range (inclusive), across the
+         *         full width of the data
+         */
+        public FloatArray4D read(int ymin, int ymax) throws IOException;
+    }
+
+    private final long maxBytes;
+    private final File directory;
+    private final long maxDiskBytes;
+    private final Map<String, float[]> overviews;
+    private long bytes = 0L;
+
+    /**
+     * @param maxBytes
+     *            The maximum total size of the overviews to keep in memory.
+     *            Larger overviews are never kept.
+     * @param directory
+     *            The directory to persist overviews in, or <code>null</code>
+     *            to only keep them in memory
+     * @param maxDiskBytes
+     *            The maximum total size of the overviews in the directory,
+     *            including any written by other sessions
+     */
+    public OverviewCache(long maxBytes, File directory, long maxDiskBytes) {
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        overviews = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * @return Whether an overview of data of the given size would be small
+     *         enough to keep in memory
+     */
+    public boolean fits(int ySize, int xSize, int factor) {
+        return 4L * getOverviewSize(ySize, factor) * getOverviewSize(xSize, factor) <= maxBytes;
+    }
+
+    /**
+     * @param key
+     *            The key of an overview, as passed to
+     *            {@link #get(String, int, int, int, boolean, RowReader)}
+     * @return Whether the overview can be got without building it, i.e. it
+     *         is in memory or on disk
+     */
+    public boolean isAvailable(String key) {
+        synchronized (this) {
+            if (overviews.containsKey(key)) {
+                return true;
+            }
+        }
+        return directory != null && getFile(key).exists();
+    }
+
+    /**
+     * Gets an overview, building it if it is not in memory or on disk
+     * 
+     * @param key
+     *            A key identifying the data, factor and method of the
+     *            overview. If overviews are persisted, this should identify
+     *            the source file and its version too
+     * @param ySize
+     *            The y-size of the full-resolution data
+     * @param xSize
+     *            The x-size of the full-resolution data
+     * @param factor
+     *            The factor to reduce the data by in each direction
+     * @param nearest
+     *            <code>true</code> to take the value nearest the centre of
+     *            each block, <code>false</code> to average the non-NaN values
+     *            in it
+     * @param reader
+     *            Reads the full-resolution data, if the overview needs
+     *            building
+     * @return The overview, of size <code>ceil(ySize / factor)</code> by
+     *         <code>ceil(xSize / factor)</code>
+     */
+    public FloatArray4D get(String key, int ySize, int xSize, int factor, boolean nearest,
+            RowReader reader) throws IOException {
+        int outYSize = getOverviewSize(ySize, factor);
+        int outXSize = getOverviewSize(xSize, factor);
+        float[] values = get(key);
+        if (values == null) {
+            values = readFromDisk(key, outYSize, outXSize);
+            if (values == null) {
+                /*
+                 * Build outside of the lock so that different overviews can
+                 * be built in parallel
+                 */
+                values = downsample(reader, ySize, xSize, factor, nearest);
+                writeToDisk(key, outYSize, outXSize, values);
+            }
+            put(key, values);
+        }
+        return FloatArray4D.wrap(outYSize, outXSize, values);
+    }
+
+    /**
+     * Downsamples data by a whole factor in each direction
+     * 
+     * @see #get(String, int, int, int, boolean, RowReader)
+     */
+    static float[] downsample(RowReader reader, int ySize, int xSize, int factor,
+            boolean nearest) throws IOException {
+        int outYSize = getOverviewSize(ySize, factor);
+        int outXSize = getOverviewSize(xSize, factor);
+        float[] out = new float[outYSize * outXSize];
+        float[] row = new float[xSize];
+        if (nearest) {
+            for (int j = 0; j < outYSize; j++) {
+                int y = getNearestIndex(j, factor, ySize);
+                reader.read(y, y).readRow(0, row);
+                for (int i = 0; i < outXSize; i++) {
+                    out[j * outXSize + i] = row[getNearestIndex(i, factor, xSize)];
+                }
+            }
+        } else {
+            double[] sums = new double[outXSize];
+            int[] counts = new int[outXSize];
+            for (int j = 0; j < outYSize; j++) {
+                int ymin = j * factor;
+                int ymax = Math.min(ymin + factor, ySize) - 1;
+                FloatArray4D block = reader.read(ymin, ymax);
+                for (int y = 0; y <= ymax - ymin; y++) {
+                    block.readRow(y, row);
+                    for (int x = 0; x < xSize; x++) {
+                        float value = row[x];
+                        if (!Float.isNaN(value)) {
+                            sums[x / factor] += value;
+                            counts[x / factor]++;
+                        }
+                    }
+                }
+                for (int i = 0; i < outXSize; i++) {
+                    out[j * outXSize + i] = counts[i] > 0 ? (float) (sums[i] / counts[i])
+                            : Float.NaN;
+                    sums[i] = 0.0;
+                    counts[i] = 0;
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return The size of an overview along an axis
+     */
+    public static int getOverviewSize(int size, int factor) {
+        return (size + factor - 1) / factor;
+    }
+
+    /**
+     * @return The index in the full-resolution data of the value used for an
+     *         index in an overview, when taking the nearest value
+     */
+    public static int getNearestIndex(int index, int factor, int size) {
+        return Math.min(index * factor + factor / 2, size - 1);
+    }
+
+    private synchronized float[] get(String key) {
+        return overviews.get(key);
+    }
+
+    private synchronized void put(String key, float[] values) {
+        if (4L * values.length > maxBytes) {
+            /*
+             * This would push everything else out and still not fit
+             */
+            return;
+        }
+        float[] previous = overviews.put(key, values);
+        if (previous != null) {
+            bytes -= 4L * previous.length;
+        }
+        bytes += 4L * values.length;
+        /*
+         * Evict the least recently used overviews. The newest fits, so is
+         * never evicted.
+         */
+        Iterator<float[]> iterator = overviews.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= 4L * iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return The total size of the overviews in memory, in bytes
+     */
+    public synchronized long getSize() {
+        return bytes;
+    }
+
+    /**
+     * Removes all overviews from memory. Persisted overviews are left in
+     * place.
+     */
+    public synchronized void clear() {
+        overviews.clear();
+        bytes = 0L;
+    }
+
+    private float[] readFromDisk(String key, int ySize, int xSize) {
+        if (directory == null) {
+            return null;
+        }
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            buffer.flip();
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            if (buffer.remaining() < 16 || buffer.getInt() != MAGIC
+                    || buffer.getInt() != keyBytes.length) {
+                return null;
+            }
+            byte[] fileKey = new byte[keyBytes.length];
+            buffer.get(fileKey);
+            if (!key.equals(new String(fileKey, StandardCharsets.UTF_8))
+                    || buffer.getInt() != ySize || buffer.getInt() != xSize
+                    || buffer.remaining() != 4 * ySize * xSize) {
+                /*
+                 * A different overview with the same hash, or an old format
+                 */
+                return null;
+            }
+            float[] values = new float[ySize * xSize];
+            buffer.asFloatBuffer().get(values);
+            /*
+             * Mark it as recently used, so that it is kept in preference to
+             * others when the directory is trimmed
+             */
+            file.setLastModified(System.currentTimeMillis());
+            return values;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, int ySize, int xSize, float[] values) {
+        if (directory == null) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long size = 16L + keyBytes.length + 4L * values.length;
+        if (size > maxDiskBytes || (!directory.isDirectory() && !directory.mkdirs())) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(16 + keyBytes.length + 4 * values.length);
+        buffer.putInt(MAGIC);
+        buffer.putInt(keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.putInt(ySize);
+        buffer.putInt(xSize);
+        buffer.asFloatBuffer().put(values);
+        buffer.rewind();
+        /*
+         * Write to a temporary file and move it into place, so that another
+         * session never reads a partly-written overview
+         */
+        File target = getFile(key);
+        File temp = new File(target.getAbsolutePath() + "." + Thread.currentThread().getId()
+                + ".tmp");
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+                FileChannel channel = raf.getChannel();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+            return;
+        }
+        trimDisk();
+    }
+
+    /**
+     * Deletes the least recently used overviews on disk until they are
+     * within {@link #maxDiskBytes} in total
+     */
+    private void trimDisk() {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(FILE_EXTENSION);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        long total = 0L;
+        final Map<File, Long> lastUsed = new HashMap<>();
+        for (File file : files) {
+            total += file.length();
+            lastUsed.put(file, file.lastModified());
+        }
+        if (total <= maxDiskBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(lastUsed.get(f1), lastUsed.get(f2));
+            }
+        });
+        for (int i = 0; i < files.length && total > maxDiskBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private File getFile(String key) {
+        StringBuilder name = new StringBuilder();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (byte b : digest.digest(key.getBytes(StandardCharsets.UTF_8))) {
+                name.append(String.format("%02x", b));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * Every JVM has SHA-1, but fall back to the hash code anyway
+             */
+            name.append(Integer.toHexString(key.hashCode()));
+        }
+        return new File(directory, name.append(FILE_EXTENSION).toString());
+    }
+}
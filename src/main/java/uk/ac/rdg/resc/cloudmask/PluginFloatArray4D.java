@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+/**
+ * A {@link FloatArray4D} whose values are generated on demand by a
+ * {@link FloatRowPlugin} from other {@link FloatArray4D}s.
+ * 
+ * Values are only generated as they are read, so sampling a few pixels of a
+ * large array is cheap. Single values are generated using buffers held per
+ * thread, so no reads allocate per pixel.
+ *
+ * @author Guy Griffiths
+ */
+final class PluginFloatArray4D extends FloatArray4D {
+    private final FloatRowPlugin plugin;
+    private final FloatArray4D[] sources;
+    private final ThreadLocal<PixelBuffers> pixelBuffers;
+
+    PluginFloatArray4D(FloatRowPlugin plugin, final FloatArray4D[] sources, int ySize, int xSize) {
+        super(ySize, xSize);
+        this.plugin = plugin;
+        this.sources = sources;
+        pixelBuffers = new ThreadLocal<PixelBuffers>() {
+            @Override
+            protected PixelBuffers initialValue() {
+                return new PixelBuffers(sources.length);
+            }
+        };
+    }
+
+    @Override
+    public float getFloat(int y, int x) {
+        PixelBuffers buffers = pixelBuffers.get();
+        for (int i = 0; i < sources.length; i++) {
+            buffers.sourceValues[i][0] = sources[i].getFloat(y, x);
+        }
+        plugin.evaluateRow(buffers.sourceValues, 1, buffers.value);
+        return buffers.value[0];
+    }
+
+    @Override
+    public void readRow(int y, float[] dest) {
+        int xSize = getXSize();
+        float[][] sourceRows = new float[sources.length][xSize];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i].readRow(y, sourceRows[i]);
+        }
+        plugin.evaluateRow(sourceRows, xSize, dest);
+    }
+
+    private static final class PixelBuffers {
+        private final float[][] sourceValues;
+        private final float[] value = new float[1];
+
+        private PixelBuffers(int nSources) {
+            sourceValues = new float[nSources][1];
+        }
+    }
+}
@@ -28,8 +28,6 @@
 
 package uk.ac.rdg.resc.cloudmask;
 
-import java.awt.Color;
-
 import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
@@ -38,7 +36,7 @@ import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 
-public class RgbFalseColourPlugin extends VariablePlugin {
+public class RgbFalseColourPlugin extends VariablePlugin implements FloatRowPlugin {
     public static final String RGB = "rgb";
     public static final String RGB_UNITS = "rgbint";
     private Extent<Float> rScaleRange;
@@ -53,6 +51,18 @@ public class RgbFalseColourPlugin extends VariablePlugin {
         this.bScaleRange = bScaleRange;
     }
 
+    public Extent<Float> getRScaleRange() {
+        return rScaleRange;
+    }
+
+    public Extent<Float> getGScaleRange() {
+        return gScaleRange;
+    }
+
+    public Extent<Float> getBScaleRange() {
+        return bScaleRange;
+    }
+
     @Override
     protected VariableMetadata[] doProcessVariableMetadata(VariableMetadata... metadata)
             throws EdalException {
@@ -70,24 +80,43 @@ public class RgbFalseColourPlugin extends VariablePlugin {
 
     @Override
     protected Number generateValue(String varSuffix, HorizontalPosition pos, Number... sourceValues) {
-        float r = (sourceValues[0].floatValue() - rScaleRange.getLow())
-                / (rScaleRange.getHigh() - rScaleRange.getLow());
-        if (r < 0.0)
-            r = 0.0f;
-        if (r > 1.0)
-            r = 1.0f;
-        float g = (sourceValues[1].floatValue() - gScaleRange.getLow())
-                / (gScaleRange.getHigh() - gScaleRange.getLow());
-        if (g < 0.0)
-            g = 0.0f;
-        if (g > 1.0)
-            g = 1.0f;
-        float b = (sourceValues[2].floatValue() - bScaleRange.getLow())
-                / (bScaleRange.getHigh() - bScaleRange.getLow());
-        if (b < 0.0)
-            b = 0.0f;
-        if (b > 1.0)
-            b = 1.0f;
-        return new Color(r, g, b).getRGB();
+        return packRgb(scale(sourceValues[0].floatValue(), rScaleRange),
+                scale(sourceValues[1].floatValue(), gScaleRange),
+                scale(sourceValues[2].floatValue(), bScaleRange));
+    }
+
+    @Override
+    public void evaluateRow(float[][] sourceRows, int length, float[] out) {
+        for (int i = 0; i < length; i++) {
+            if (Float.isNaN(sourceRows[0][i]) || Float.isNaN(sourceRows[1][i])
+                    || Float.isNaN(sourceRows[2][i])) {
+                out[i] = Float.NaN;
+            } else {
+                /*
+                 * Packed colours are integers of magnitude no more than 2^24,
+                 * so can be stored exactly as floats
+                 */
+                out[i] = packRgb(scale(sourceRows[0][i], rScaleRange),
+                        scale(sourceRows[1][i], gScaleRange),
+                        scale(sourceRows[2][i], bScaleRange));
+            }
+        }
+    }
+
+    private static float scale(float value, Extent<Float> scaleRange) {
+        float scaled = (value - scaleRange.getLow()) / (scaleRange.getHigh() - scaleRange.getLow());
+        if (scaled < 0.0)
+            scaled = 0.0f;
+        if (scaled > 1.0)
+            scaled = 1.0f;
+        return scaled;
+    }
+
+    /*
+     * Equivalent to new Color(r, g, b).getRGB(), without the allocation
+     */
+    private static int packRgb(float r, float g, float b) {
+        return 0xFF000000 | ((int) (r * 255 + 0.5) << 16) | ((int) (g * 255 + 0.5) << 8)
+                | (int) (b * 255 + 0.5);
     }
 }
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import uk.ac.rdg.resc.edal.dataset.plugins.NormalisedDifferencePlugin;
+
+/**
+ * A {@link NormalisedDifferencePlugin} which can also generate its values a
+ * row at a time - see {@link RowDifferencePlugin}
+ *
+ * @author Guy Griffiths
+ */
+public class RowNormalisedDifferencePlugin extends NormalisedDifferencePlugin implements
+        FloatRowPlugin {
+    public RowNormalisedDifferencePlugin(String var1, String var2) {
+        super(var1, var2);
+    }
+
+    @Override
+    public void evaluateRow(float[][] sourceRows, int length, float[] out) {
+        float[] values1 = sourceRows[0];
+        float[] values2 = sourceRows[1];
+        for (int i = 0; i < length; i++) {
+            double value1 = values1[i];
+            double value2 = values2[i];
+            out[i] = (float) ((value1 - value2) / (value1 + value2));
+        }
+    }
+}
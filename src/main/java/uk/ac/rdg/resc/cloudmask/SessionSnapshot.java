@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import uk.ac.rdg.resc.cloudmask.CloudMaskDatasetFactory.MaskedDataset;
+import uk.ac.rdg.resc.edal.dataset.plugins.VariablePlugin;
+
+/**
+ * An immutable copy of all of the user-editable state of a
+ * {@link MaskedDataset}: the derived variables which have been added, the
+ * mask thresholds, the composite components, the manual mask of each
+ * timestep, and the current timestep.
+ * 
+ * These are cheap to take (the manual masks are copy-on-write
+ * {@link CopyOnWriteMask.Snapshot}s) and can then be written to disk from
+ * any thread.
+ *
+ * @author Guy Griffiths
+ */
+public final class SessionSnapshot {
+    final List<String> medianVariables;
+    final List<String> stddevVariables;
+    final List<VariablePlugin> plugins;
+    final Map<String, double[]> thresholds;
+    final Map<String, Boolean> inclusive;
+    final String[] maskComponents;
+    final CopyOnWriteMask.Snapshot[] manualMasks;
+    final int timestep;
+    final boolean perTimestepThresholds;
+    /*
+     * The thresholds stored for other timesteps, when they are per-timestep
+     */
+    final Map<Integer, Map<String, double[]>> timestepThresholds;
+    final Map<Integer, Map<String, Boolean>> timestepInclusive;
+
+    SessionSnapshot(List<String> medianVariables, List<String> stddevVariables,
+            List<VariablePlugin> plugins, Map<String, double[]> thresholds,
+            Map<String, Boolean> inclusive, String[] maskComponents,
+            CopyOnWriteMask.Snapshot[] manualMasks, int timestep,
+            boolean perTimestepThresholds, Map<Integer, Map<String, double[]>> timestepThresholds,
+            Map<Integer, Map<String, Boolean>> timestepInclusive) {
+        this.medianVariables = Collections.unmodifiableList(new ArrayList<>(medianVariables));
+        this.stddevVariables = Collections.unmodifiableList(new ArrayList<>(stddevVariables));
+        this.plugins = Collections.unmodifiableList(new ArrayList<>(plugins));
+        this.thresholds = Collections.unmodifiableMap(new LinkedHashMap<>(thresholds));
+        this.inclusive = Collections.unmodifiableMap(new LinkedHashMap<>(inclusive));
+        this.maskComponents = maskComponents.clone();
+        this.manualMasks = manualMasks.clone();
+        this.timestep = timestep;
+        this.perTimestepThresholds = perTimestepThresholds;
+        this.timestepThresholds = Collections.unmodifiableMap(new LinkedHashMap<>(
+                timestepThresholds));
+        this.timestepInclusive = Collections.unmodifiableMap(new LinkedHashMap<>(
+                timestepInclusive));
+    }
+
+    /**
+     * Writes this snapshot to a file, in the same format as an
+     * {@link EditJournal}, so that it can be recovered with
+     * {@link EditJournal#replay(File, MaskedDataset)}
+     * 
+     * @param file
+     *            The file to write to
+     * @param datasetFile
+     *            The dataset file which this is a snapshot of
+     * @throws IOException
+     *             If there is a problem writing the file
+     */
+    public void writeTo(File file, File datasetFile) throws IOException {
+        try (EditJournal out = new EditJournal(file, datasetFile, false, 0L)) {
+            /*
+             * Filters can only be applied to original variables, so they must
+             * be written before any plugins which may use them
+             */
+            for (String var : medianVariables) {
+                out.logFilter(var, true);
+            }
+            for (String var : stddevVariables) {
+                out.logFilter(var, false);
+            }
+            for (VariablePlugin plugin : plugins) {
+                out.logPlugin(plugin);
+            }
+            out.logComposite(maskComponents);
+            if (manualMasks.length == 1) {
+                writeThresholds(out, thresholds, inclusive);
+                out.logManualMask(manualMasks[0]);
+                return;
+            }
+            /*
+             * Visit each timestep in turn, then finish on the current one so
+             * that its thresholds are the ones in effect
+             */
+            for (int t = 0; t < manualMasks.length; t++) {
+                out.logTimestep(t, perTimestepThresholds);
+                if (timestepThresholds.containsKey(t)) {
+                    writeThresholds(out, timestepThresholds.get(t), timestepInclusive.get(t));
+                }
+                out.logManualMask(manualMasks[t]);
+            }
+            out.logTimestep(timestep, perTimestepThresholds);
+            writeThresholds(out, thresholds, inclusive);
+        }
+    }
+
+    private static void writeThresholds(EditJournal out, Map<String, double[]> thresholds,
+            Map<String, Boolean> inclusive) {
+        for (Entry<String, double[]> threshold : thresholds.entrySet()) {
+            out.logThreshold(threshold.getKey(), threshold.getValue()[0],
+                    threshold.getValue()[1]);
+        }
+        for (Entry<String, Boolean> incl : inclusive.entrySet()) {
+            out.logInclusive(incl.getKey(), incl.getValue());
+        }
+    }
+}
@@ -30,34 +30,42 @@ package uk.ac.rdg.resc.cloudmask;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.ObservableList;
+import javafx.concurrent.Task;
+import javafx.concurrent.WorkerStateEvent;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.Slider;
+import javafx.scene.control.TextField;
 import javafx.scene.control.TitledPane;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import javafx.scene.text.Font;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.FileChooser.ExtensionFilter;
 import uk.ac.rdg.resc.cloudmask.CloudMaskDatasetFactory.MaskedDataset;
-import uk.ac.rdg.resc.edal.dataset.plugins.DifferencePlugin;
-import uk.ac.rdg.resc.edal.dataset.plugins.NormalisedDifferencePlugin;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
-import uk.ac.rdg.resc.edal.graphics.utils.GraphicsUtils;
 
 public class SettingsPane extends TitledPane {
     private VBox content;
 
     private HBox datasetBox;
     private Label currentDatasetLabel;
+    private ProgressBar loadProgress;
     private ChoiceBox<String> diffVar1;
     private ChoiceBox<String> diffVar2;
     private ChoiceBox<String> normDiffVar1;
@@ -72,6 +80,20 @@ public class SettingsPane extends TitledPane {
     private Button medianButton;
     private Button stddevButton;
     private Button rgbButton;
+    private TextField expressionName;
+    private TextField expression;
+    private Label expressionError;
+    private Button expressionButton;
+    private Button saveGranulesButton;
+    private TitledPane timestepBox;
+    private Slider timestepSlider;
+    private Label timestepLabel;
+    private CheckBox perTimestepThresholds;
+    /*
+     * Set while the timestep controls are being updated to match a new
+     * dataset, so that they don't try to change it
+     */
+    private boolean updatingTimestepControls = false;
 
     public SettingsPane(CloudMaskController controller) {
         setText("Settings");
@@ -83,7 +105,7 @@ public class SettingsPane extends TitledPane {
 
         datasetBox = new HBox();
         datasetBox.setSpacing(10);
-        Button loadButton = new Button("Load Dataset");
+        final Button loadButton = new Button("Load Dataset");
         loadButton.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent event) {
@@ -91,14 +113,90 @@ public class SettingsPane extends TitledPane {
                 fileChooser.setTitle("Choose NetCDF dataset");
                 fileChooser.getExtensionFilters().addAll(
                         new ExtensionFilter("NetCDF Files", "*.nc"),
-                        new ExtensionFilter("NcML Files", "*.ncml"));
-                File selectedFile = fileChooser.showOpenDialog(null);
-                if (selectedFile != null) {
-                    try {
-                        controller.loadDataset(selectedFile);
-                    } catch (IOException | EdalException e) {
-                        e.printStackTrace();
+                        new ExtensionFilter("NcML Files", "*.ncml"),
+                        new ExtensionFilter("Mosaics", "*" + Mosaic.EXTENSION));
+                List<File> selectedFiles = fileChooser.showOpenMultipleDialog(null);
+                if (selectedFiles != null && !selectedFiles.isEmpty()) {
+                    final File selectedFile;
+                    if (selectedFiles.size() == 1) {
+                        selectedFile = selectedFiles.get(0);
+                    } else {
+                        /*
+                         * Several granules have been chosen. They get opened
+                         * (and saved and journalled) as a single dataset
+                         * through a mosaic file, which the user chooses the
+                         * location of, since the data directory may be
+                         * read-only or already contain one.
+                         */
+                        Mosaic mosaic = Mosaic.fromGranules(selectedFiles);
+                        FileChooser mosaicChooser = new FileChooser();
+                        mosaicChooser.setTitle("Save mosaic of " + selectedFiles.size()
+                                + " granules");
+                        mosaicChooser.getExtensionFilters().add(
+                                new ExtensionFilter("Mosaics", "*" + Mosaic.EXTENSION));
+                        mosaicChooser.setInitialDirectory(new File(mosaic.getGranules().get(0))
+                                .getParentFile());
+                        mosaicChooser.setInitialFileName(mosaic.getDefaultFileName());
+                        selectedFile = mosaicChooser.showSaveDialog(null);
+                        if (selectedFile == null) {
+                            return;
+                        }
+                        try {
+                            mosaic.write(selectedFile);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            currentDatasetLabel.setText("Failed to save mosaic");
+                            return;
+                        }
                     }
+                    /*
+                     * Open the dataset in the background, since this reads
+                     * all of the data. Once it's open, it gets passed to the
+                     * controller on this thread, since that populates the UI.
+                     */
+                    final Task<MaskedDataset> loadTask = new Task<MaskedDataset>() {
+                        @Override
+                        protected MaskedDataset call() throws Exception {
+                            updateMessage("Loading " + selectedFile.getName());
+                            return controller.openDataset(selectedFile,
+                                    new LoadProgressListener() {
+                                        @Override
+                                        public void progress(int done, int total, String message) {
+                                            updateProgress(done, total);
+                                            updateMessage(message);
+                                        }
+                                    });
+                        }
+                    };
+                    loadTask.setOnSucceeded(new EventHandler<WorkerStateEvent>() {
+                        @Override
+                        public void handle(WorkerStateEvent event) {
+                            loadFinished(loadButton);
+                            try {
+                                controller.setDataset(selectedFile, loadTask.getValue());
+                            } catch (IOException | EdalException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                    });
+                    loadTask.setOnFailed(new EventHandler<WorkerStateEvent>() {
+                        @Override
+                        public void handle(WorkerStateEvent event) {
+                            loadFinished(loadButton);
+                            currentDatasetLabel.setText("Failed to load "
+                                    + selectedFile.getName());
+                            loadTask.getException().printStackTrace();
+                        }
+                    });
+
+                    loadButton.setDisable(true);
+                    loadProgress.progressProperty().bind(loadTask.progressProperty());
+                    loadProgress.setVisible(true);
+                    currentDatasetLabel.textProperty().bind(loadTask.messageProperty());
+
+                    Thread loadThread = new Thread(loadTask, "dataset-loader");
+                    loadThread.setDaemon(true);
+                    loadThread.start();
                 }
             }
         });
@@ -107,6 +205,9 @@ public class SettingsPane extends TitledPane {
         currentDatasetLabel = new Label("No dataset loaded");
         currentDatasetLabel.setFont(new Font(16));
         datasetBox.getChildren().add(currentDatasetLabel);
+        loadProgress = new ProgressBar();
+        loadProgress.setVisible(false);
+        datasetBox.getChildren().add(loadProgress);
 
         TitledPane operationsBox = new TitledPane();
         operationsBox.setText("Mathematical Operations");
@@ -131,7 +232,7 @@ public class SettingsPane extends TitledPane {
                 String var1 = diffVar1.getValue();
                 String var2 = diffVar2.getValue();
                 if (var1 != null && var2 != null) {
-                    controller.addPlugin(new DifferencePlugin(var1, var2));
+                    controller.addPlugin(new RowDifferencePlugin(var1, var2));
                 }
             }
         });
@@ -155,7 +256,7 @@ public class SettingsPane extends TitledPane {
                 String var1 = normDiffVar1.getValue();
                 String var2 = normDiffVar2.getValue();
                 if (var1 != null && var2 != null) {
-                    controller.addPlugin(new NormalisedDifferencePlugin(var1, var2));
+                    controller.addPlugin(new RowNormalisedDifferencePlugin(var1, var2));
                 }
             }
         });
@@ -222,10 +323,14 @@ public class SettingsPane extends TitledPane {
                 String var2 = rgbVar2.getValue();
                 String var3 = rgbVar3.getValue();
                 if (var1 != null && var2 != null && var3 != null) {
-                    controller.addPlugin(new RgbFalseColourPlugin(var1, var2, var3, GraphicsUtils
-                            .estimateValueRange(controller.getDataset(), var1), GraphicsUtils
-                            .estimateValueRange(controller.getDataset(), var2), GraphicsUtils
-                            .estimateValueRange(controller.getDataset(), var3)));
+                    /*
+                     * Use the robust ranges so that a few outliers don't wash
+                     * out the rest of the image
+                     */
+                    MaskedDataset dataset = controller.getDataset();
+                    controller.addPlugin(new RgbFalseColourPlugin(var1, var2, var3, dataset
+                            .getStatistics(var1).getRobustRange(), dataset.getStatistics(var2)
+                            .getRobustRange(), dataset.getStatistics(var3).getRobustRange()));
                 }
             }
         });
@@ -236,6 +341,60 @@ public class SettingsPane extends TitledPane {
         operations.add(rgbVar3, 3, 4);
         operations.add(rgbButton, 4, 4);
 
+        Label expressionLabel = new Label("Expression");
+        expressionName = new TextField("expression");
+        expressionName.setMinWidth(150);
+        expressionName.setPromptText("Name");
+        expression = new TextField();
+        expression.setMinWidth(300);
+        expression.setPromptText("e.g. (b4 - b5) / (b4 + b5) > 0.1 ? b7 : NaN");
+        expressionError = new Label();
+        expressionButton = new Button("Generate");
+        expressionButton.setMinWidth(100);
+        expressionButton.setDisable(true);
+        expressionButton.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                String name = expressionName.getText().trim();
+                if (name.isEmpty()) {
+                    expressionError.setText("The expression needs a name");
+                    return;
+                }
+                ExpressionPlugin plugin;
+                try {
+                    plugin = new ExpressionPlugin(name, expression.getText());
+                } catch (IllegalArgumentException e) {
+                    expressionError.setText(e.getMessage());
+                    return;
+                }
+                /*
+                 * Check the names here, since the dataset only reports
+                 * unknown variables as an exception
+                 */
+                List<String> unknown = new ArrayList<>();
+                Set<String> varIds = controller.getDataset().getVariableIds();
+                for (String var : plugin.usesVariables()) {
+                    if (!varIds.contains(var)) {
+                        unknown.add(var);
+                    }
+                }
+                if (!unknown.isEmpty()) {
+                    expressionError.setText("Unknown variable" + (unknown.size() == 1 ? "" : "s")
+                            + ": " + String.join(", ", unknown));
+                } else if (controller.addPlugin(plugin)) {
+                    expressionError.setText("");
+                } else {
+                    expressionError.setText("Could not generate " + name);
+                }
+            }
+        });
+
+        operations.add(expressionLabel, 0, 5);
+        operations.add(expressionName, 1, 5);
+        operations.add(expression, 2, 5, 2, 1);
+        operations.add(expressionButton, 4, 5);
+        operations.add(expressionError, 1, 6, 4, 1);
+
         operationsBox.setContent(operations);
 
         Button saveButton = new Button("Save");
@@ -254,6 +413,24 @@ public class SettingsPane extends TitledPane {
             }
         });
 
+        saveGranulesButton = new Button("Save granules");
+        saveGranulesButton.setDisable(true);
+        saveGranulesButton.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                DirectoryChooser directoryChooser = new DirectoryChooser();
+                directoryChooser.setTitle("Choose directory to save granules in");
+                File selectedDirectory = directoryChooser.showDialog(null);
+                if (selectedDirectory != null) {
+                    controller.saveGranules(selectedDirectory);
+                }
+            }
+        });
+        HBox saveBox = new HBox();
+        saveBox.setSpacing(10);
+        saveBox.getChildren().add(saveButton);
+        saveBox.getChildren().add(saveGranulesButton);
+
         Slider maskOpacity = new Slider(0.0, 1.0, 0.75);
         maskOpacity.valueProperty().addListener(new ChangeListener<Number>() {
             @Override
@@ -264,6 +441,77 @@ public class SettingsPane extends TitledPane {
         });
         TitledPane darknessBox = new TitledPane("Mask Opacity", maskOpacity);
         darknessBox.setCollapsible(false);
+
+        /*
+         * Timestep selection, for time series
+         */
+        timestepSlider = new Slider(0, 0, 0);
+        timestepSlider.setMajorTickUnit(1);
+        timestepSlider.setMinorTickCount(0);
+        timestepSlider.setSnapToTicks(true);
+        timestepSlider.setBlockIncrement(1);
+        HBox.setHgrow(timestepSlider, Priority.ALWAYS);
+        timestepSlider.valueProperty().addListener(new ChangeListener<Number>() {
+            @Override
+            public void changed(ObservableValue<? extends Number> observable, Number oldVal,
+                    Number newVal) {
+                int timestep = (int) Math.round(newVal.doubleValue());
+                if (controller.getDataset() != null) {
+                    timestepLabel.setText(controller.getDataset().getTimestepLabel(timestep));
+                }
+                /*
+                 * Only change timestep once the slider has been released, but
+                 * the label follows it while dragging
+                 */
+                if (!timestepSlider.isValueChanging() && !updatingTimestepControls) {
+                    controller.setTimestep(timestep);
+                }
+            }
+        });
+        timestepSlider.valueChangingProperty().addListener(new ChangeListener<Boolean>() {
+            @Override
+            public void changed(ObservableValue<? extends Boolean> observable, Boolean oldVal,
+                    Boolean newVal) {
+                if (!newVal) {
+                    controller.setTimestep((int) Math.round(timestepSlider.getValue()));
+                }
+            }
+        });
+        Button previousTimestep = new Button("<");
+        previousTimestep.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                timestepSlider.setValue(Math.round(timestepSlider.getValue()) - 1);
+            }
+        });
+        Button nextTimestep = new Button(">");
+        nextTimestep.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                timestepSlider.setValue(Math.round(timestepSlider.getValue()) + 1);
+            }
+        });
+        timestepLabel = new Label();
+        perTimestepThresholds = new CheckBox("Separate thresholds for each timestep");
+        perTimestepThresholds.selectedProperty().addListener(new ChangeListener<Boolean>() {
+            @Override
+            public void changed(ObservableValue<? extends Boolean> observable, Boolean oldVal,
+                    Boolean newVal) {
+                if (!updatingTimestepControls) {
+                    controller.setPerTimestepThresholds(newVal);
+                }
+            }
+        });
+        HBox timestepControls = new HBox();
+        timestepControls.setSpacing(10);
+        timestepControls.getChildren().addAll(previousTimestep, timestepSlider, nextTimestep);
+        VBox timestepContent = new VBox();
+        timestepContent.setSpacing(5);
+        timestepContent.getChildren().addAll(timestepControls, timestepLabel,
+                perTimestepThresholds);
+        timestepBox = new TitledPane("Timestep", timestepContent);
+        timestepBox.setCollapsible(false);
+        timestepBox.setDisable(true);
         
         Button toggleFullscreenButton = new Button("Toggle fullscreen");
         toggleFullscreenButton.setOnAction(new EventHandler<ActionEvent>() {
@@ -282,18 +530,37 @@ public class SettingsPane extends TitledPane {
         });
         
         content.getChildren().add(datasetBox);
-        content.getChildren().add(saveButton);
+        content.getChildren().add(saveBox);
         content.getChildren().add(operationsBox);
         content.getChildren().add(darknessBox);
+        content.getChildren().add(timestepBox);
         content.getChildren().add(toggleFullscreenButton);
         content.getChildren().add(exitButton);
+        content.getChildren().add(new TimingsPane());
 
         setContent(content);
         setPrefWidth(10000);
     }
 
+    private void loadFinished(Button loadButton) {
+        currentDatasetLabel.textProperty().unbind();
+        loadProgress.progressProperty().unbind();
+        loadProgress.setVisible(false);
+        loadButton.setDisable(false);
+    }
+
     public void setDatasetLoaded(MaskedDataset dataset) {
         currentDatasetLabel.setText(dataset.getId());
+        saveGranulesButton.setDisable(!dataset.isMosaic());
+
+        int nTimesteps = dataset.getTimestepCount();
+        updatingTimestepControls = true;
+        timestepSlider.setMax(nTimesteps - 1);
+        timestepSlider.setValue(dataset.getTimestep());
+        perTimestepThresholds.setSelected(dataset.isPerTimestepThresholds());
+        updatingTimestepControls = false;
+        timestepLabel.setText(dataset.getTimestepLabel(dataset.getTimestep()));
+        timestepBox.setDisable(nTimesteps < 2);
 
         ObservableList<String> variables = dataset.getUnmaskedVariableNames();
         diffVar1.setItems(variables);
@@ -321,5 +588,6 @@ public class SettingsPane extends TitledPane {
         medianButton.setDisable(false);
         stddevButton.setDisable(false);
         rgbButton.setDisable(false);
+        expressionButton.setDisable(false);
     }
 }
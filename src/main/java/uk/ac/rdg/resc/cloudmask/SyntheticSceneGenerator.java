@@ -0,0 +1,453 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ucar.ma2.ArrayFloat;
+import ucar.ma2.ArrayShort;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.NetcdfFileWriter.Version;
+import ucar.nc2.Variable;
+import uk.ac.rdg.resc.cloudmask.CloudMaskDatasetFactory.MaskedDataset;
+
+/**
+ * Writes synthetic satellite scenes as NetCDF files in the layout read by
+ * {@link CloudMaskDatasetFactory}, for use in benchmarking and load testing.
+ * 
+ * Each scene is built from fractal noise fields representing cloud cover,
+ * cloud top height and the surface. Channels are named <code>channel1</code>,
+ * <code>channel2</code>, etc. Every third channel (starting with the first) is
+ * a reflectance, and the rest are brightness temperatures. There is a gap at
+ * the edge of the swath and occasional missing scan lines, both written as
+ * NaNs.
+ * 
+ * Optionally, threshold masks for the first two channels, a manual mask and a
+ * composite mask can also be written, as if the file had been saved from a
+ * previous session.
+ * 
+ * The output depends only on the settings and the seed, so the same scene can
+ * be reproduced on any machine. The structure of the fields scales with the
+ * size of the scene, so scenes of different sizes look the same at different
+ * resolutions.
+ *
+ * @author Guy Griffiths
+ */
+public class SyntheticSceneGenerator {
+    private static final int OCTAVES = 6;
+    /* Number of rows to generate and write at once */
+    private static final int BLOCK_ROWS = 64;
+    /* Number of pre-existing masks to write */
+    private static final int N_MASKS = 2;
+
+    /* Noise layers for the different fields */
+    private static final int CLOUD_LAYER = 0;
+    private static final int CLOUD_TOP_LAYER = 1;
+    private static final int SURFACE_LAYER = 2;
+    private static final int CHANNEL_LAYER = 3;
+
+    private final int xSize;
+    private final int ySize;
+    private final int nChannels;
+    private final long seed;
+
+    private double cloudCover = 0.4;
+    private double missingLineFraction = 0.002;
+    private boolean includeMasks = false;
+
+    /* The wavelength, in pixels, of the largest features */
+    private final double baseWavelength;
+
+    /**
+     * @param xSize
+     *            The number of pixels in the x-direction
+     * @param ySize
+     *            The number of pixels in the y-direction
+     * @param nChannels
+     *            The number of channels to generate
+     * @param seed
+     *            The seed from which the scene is generated
+     */
+    public SyntheticSceneGenerator(int xSize, int ySize, int nChannels, long seed) {
+        if (xSize < 1 || ySize < 1 || nChannels < 1) {
+            throw new IllegalArgumentException("Scene must have at least 1 pixel and 1 channel");
+        }
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.nChannels = nChannels;
+        this.seed = seed;
+        baseWavelength = Math.max(xSize, ySize) / 4.0;
+    }
+
+    /**
+     * @param cloudCover
+     *            The approximate fraction of the scene which is cloudy,
+     *            between 0 and 1. Defaults to 0.4
+     */
+    public void setCloudCover(double cloudCover) {
+        this.cloudCover = cloudCover;
+    }
+
+    /**
+     * @param missingLineFraction
+     *            The fraction of scan lines in each channel which are missing.
+     *            Defaults to 0.002
+     */
+    public void setMissingLineFraction(double missingLineFraction) {
+        this.missingLineFraction = missingLineFraction;
+    }
+
+    /**
+     * @param includeMasks
+     *            Whether to include threshold masks, a manual mask and a
+     *            composite mask. Defaults to <code>false</code>
+     */
+    public void setIncludeMasks(boolean includeMasks) {
+        this.includeMasks = includeMasks;
+    }
+
+    /**
+     * Writes the scene to a file
+     * 
+     * @param file
+     *            The file to write to. Any existing file will be overwritten
+     */
+    public void write(File file) throws IOException {
+        NetcdfFileWriter fileWriter = NetcdfFileWriter.createNew(Version.netcdf3,
+                file.getAbsolutePath());
+        try {
+            /*
+             * Large scenes won't fit in the classic format
+             */
+            fileWriter.setLargeFile(true);
+
+            List<Dimension> dims = new ArrayList<Dimension>();
+            dims.add(fileWriter.addDimension(null, "y", ySize));
+            dims.add(fileWriter.addDimension(null, "x", xSize));
+
+            Variable[] channels = new Variable[nChannels];
+            for (int c = 1; c <= nChannels; c++) {
+                channels[c - 1] = fileWriter.addVariable(null, channelName(c), DataType.FLOAT,
+                        dims);
+                fileWriter.addVariableAttribute(channels[c - 1], new Attribute("units",
+                        isReflectance(c) ? "1" : "K"));
+                fileWriter.addVariableAttribute(channels[c - 1], new Attribute("long_name",
+                        "Synthetic " + (isReflectance(c) ? "reflectance" : "brightness temperature")
+                                + " channel " + c));
+            }
+
+            int nMasks = includeMasks ? Math.min(N_MASKS, nChannels) : 0;
+            Variable[] masks = new Variable[nMasks];
+            Variable manualMask = null;
+            Variable compositeMask = null;
+            if (includeMasks) {
+                StringBuilder components = new StringBuilder(MaskedDataset.MANUAL_MASK_NAME);
+                for (int c = 1; c <= nMasks; c++) {
+                    String maskName = channelName(c) + "-" + MaskedDataset.MASK_SUFFIX;
+                    masks[c - 1] = fileWriter.addVariable(null, maskName, DataType.SHORT, dims);
+                    double[] threshold = getThreshold(c);
+                    fileWriter.addVariableAttribute(masks[c - 1], new Attribute("threshold_min",
+                            threshold[0]));
+                    fileWriter.addVariableAttribute(masks[c - 1], new Attribute("threshold_max",
+                            threshold[1]));
+                    fileWriter.addVariableAttribute(masks[c - 1], new Attribute(
+                            "threshold_inclusive", "false"));
+                    fileWriter.addVariableAttribute(masks[c - 1], new Attribute("units",
+                            "0: unmasked, 1: masked"));
+                    components.append("," + maskName);
+                }
+
+                manualMask = fileWriter.addVariable(null, MaskedDataset.MANUAL_MASK_NAME,
+                        DataType.FLOAT, dims);
+                fileWriter.addVariableAttribute(manualMask, new Attribute("units",
+                        "0: clear; 1: probably clear; 2: probably cloudy; 3: cloudy; 4: dust; 5: smoke"));
+
+                compositeMask = fileWriter.addVariable(null, CompositeMaskPlugin.COMPOSITEMASK,
+                        DataType.FLOAT, dims);
+                fileWriter.addVariableAttribute(compositeMask, new Attribute("mask_components",
+                        components.toString()));
+                fileWriter.addVariableAttribute(compositeMask, new Attribute("units",
+                        CompositeMaskPlugin.COMPOSITEMASK_UNITS));
+            }
+
+            fileWriter.create();
+
+            /*
+             * Write in blocks of rows, so that memory use doesn't depend on
+             * the size of the scene
+             */
+            float[] cloud = new float[BLOCK_ROWS * xSize];
+            float[] cloudTop = new float[BLOCK_ROWS * xSize];
+            float[] surface = new float[BLOCK_ROWS * xSize];
+            for (int y0 = 0; y0 < ySize; y0 += BLOCK_ROWS) {
+                int rows = Math.min(BLOCK_ROWS, ySize - y0);
+                fillFields(y0, rows, cloud, cloudTop, surface);
+                int[] origin = new int[] { y0, 0 };
+
+                short[][] maskValues = new short[nMasks][];
+                for (int c = 1; c <= nChannels; c++) {
+                    ArrayFloat.D2 values = new ArrayFloat.D2(rows, xSize);
+                    double[] threshold = c <= nMasks ? getThreshold(c) : null;
+                    if (threshold != null) {
+                        maskValues[c - 1] = new short[rows * xSize];
+                    }
+                    for (int j = 0; j < rows; j++) {
+                        for (int x = 0; x < xSize; x++) {
+                            int i = j * xSize + x;
+                            float value = channelValue(c, x, y0 + j, cloud[i], cloudTop[i],
+                                    surface[i]);
+                            values.set(j, x, value);
+                            if (threshold != null && !Float.isNaN(value)
+                                    && (value <= threshold[0] || value >= threshold[1])) {
+                                maskValues[c - 1][i] = 1;
+                            }
+                        }
+                    }
+                    fileWriter.write(channels[c - 1], origin, values);
+                }
+
+                if (includeMasks) {
+                    ArrayFloat.D2 manualValues = new ArrayFloat.D2(rows, xSize);
+                    ArrayFloat.D2 compositeValues = new ArrayFloat.D2(rows, xSize);
+                    for (int j = 0; j < rows; j++) {
+                        for (int x = 0; x < xSize; x++) {
+                            int i = j * xSize + x;
+                            float manual = manualMaskValue(x, y0 + j, cloud[i]);
+                            manualValues.set(j, x, manual);
+                            float composite = 0f;
+                            if (!Float.isNaN(manual)) {
+                                composite = manual / 3.0f;
+                            } else {
+                                for (int m = 0; m < nMasks; m++) {
+                                    if (maskValues[m][i] > 0) {
+                                        composite = 1f;
+                                    }
+                                }
+                            }
+                            compositeValues.set(j, x, composite);
+                        }
+                    }
+                    for (int m = 0; m < nMasks; m++) {
+                        ArrayShort.D2 values = new ArrayShort.D2(rows, xSize, false);
+                        for (int j = 0; j < rows; j++) {
+                            for (int x = 0; x < xSize; x++) {
+                                values.set(j, x, maskValues[m][j * xSize + x]);
+                            }
+                        }
+                        fileWriter.write(masks[m], origin, values);
+                    }
+                    fileWriter.write(manualMask, origin, manualValues);
+                    fileWriter.write(compositeMask, origin, compositeValues);
+                }
+            }
+        } catch (InvalidRangeException e) {
+            /*
+             * This can only happen if we've got the block arithmetic wrong
+             */
+            throw new IOException("Problem writing synthetic scene", e);
+        } finally {
+            fileWriter.close();
+        }
+    }
+
+    static String channelName(int channel) {
+        return "channel" + channel;
+    }
+
+    private static boolean isReflectance(int channel) {
+        return channel % 3 == 1;
+    }
+
+    /**
+     * @return The threshold (min, max) which roughly picks out the clouds in
+     *         the given channel. Clouds are bright in reflectance channels,
+     *         and cold in brightness temperature channels.
+     */
+    static double[] getThreshold(int channel) {
+        if (isReflectance(channel)) {
+            return new double[] { -1.0, 0.4 };
+        } else {
+            return new double[] { 255.0, 1000.0 };
+        }
+    }
+
+    /**
+     * Calculates the underlying fields for a block of rows
+     */
+    void fillFields(int y0, int rows, float[] cloud, float[] cloudTop, float[] surface) {
+        /*
+         * Fractal noise is centred on 0.5, so this gives roughly the requested
+         * cloud cover
+         */
+        double cloudThreshold = 0.5 + (0.5 - cloudCover) * 0.3;
+        for (int j = 0; j < rows; j++) {
+            for (int x = 0; x < xSize; x++) {
+                int i = j * xSize + x;
+                int y = y0 + j;
+                double cloudField = fractalNoise(CLOUD_LAYER, x, y);
+                cloud[i] = (float) smoothStep(cloudThreshold - 0.04, cloudThreshold + 0.04,
+                        cloudField);
+                cloudTop[i] = (float) fractalNoise(CLOUD_TOP_LAYER, x, y);
+                surface[i] = (float) fractalNoise(SURFACE_LAYER, x, y);
+            }
+        }
+    }
+
+    /**
+     * @return The value of a channel at a pixel, given the underlying fields
+     *         at that pixel
+     */
+    float channelValue(int channel, int x, int y, float cloud, float cloudTop, float surface) {
+        if (isMissing(channel, x, y)) {
+            return Float.NaN;
+        }
+        double noise = lattice(CHANNEL_LAYER + channel, x, y) - 0.5;
+        if (isReflectance(channel)) {
+            return (float) (0.05 + 0.15 * surface + 0.7 * cloud * (0.6 + 0.4 * cloudTop) + 0.02
+                    * noise);
+        } else {
+            double surfaceTemp = 270.0 + 30.0 * surface;
+            double cloudTopTemp = 210.0 + 40.0 * (1.0 - cloudTop);
+            return (float) (surfaceTemp * (1.0 - cloud) + cloudTopTemp * cloud
+                    - (channel % 3) * 1.5 * cloud + 0.5 * noise);
+        }
+    }
+
+    private boolean isMissing(int channel, int x, int y) {
+        /*
+         * A wavy swath edge, missing from all channels
+         */
+        double edge = xSize * 0.03 * (1.0 + Math.sin(2.0 * Math.PI * y / ySize));
+        if (x < edge) {
+            return true;
+        }
+        /*
+         * Dropped scan lines, which differ between channels
+         */
+        return lattice(CHANNEL_LAYER + nChannels + channel, 0, y) < missingLineFraction;
+    }
+
+    /**
+     * @return A manual mask which has a few circular patches marked as cloudy
+     *         or clear
+     */
+    private float manualMaskValue(int x, int y, float cloud) {
+        double radius = Math.max(xSize, ySize) / 64.0;
+        for (int p = 0; p < 5; p++) {
+            double px = lattice(-1, p, 0) * xSize;
+            double py = lattice(-1, p, 1) * ySize;
+            if ((x - px) * (x - px) + (y - py) * (y - py) <= radius * radius) {
+                return cloud > 0.5f ? MaskedDataset.MANUAL_CLOUDY : MaskedDataset.MANUAL_CLEAR;
+            }
+        }
+        return Float.NaN;
+    }
+
+    private static double smoothStep(double edge0, double edge1, double value) {
+        double t = Math.max(0.0, Math.min(1.0, (value - edge0) / (edge1 - edge0)));
+        return t * t * (3.0 - 2.0 * t);
+    }
+
+    /**
+     * @return Fractal (value) noise in the range 0-1
+     */
+    private double fractalNoise(int layer, double x, double y) {
+        double total = 0.0;
+        double amplitude = 1.0;
+        double totalAmplitude = 0.0;
+        double wavelength = baseWavelength;
+        for (int octave = 0; octave < OCTAVES; octave++) {
+            total += amplitude
+                    * valueNoise(layer * OCTAVES + octave, x / wavelength, y / wavelength);
+            totalAmplitude += amplitude;
+            amplitude *= 0.5;
+            wavelength = Math.max(1.0, wavelength / 2.0);
+        }
+        return total / totalAmplitude;
+    }
+
+    private double valueNoise(int layer, double x, double y) {
+        long ix = (long) Math.floor(x);
+        long iy = (long) Math.floor(y);
+        double fx = x - ix;
+        double fy = y - iy;
+        double u = fx * fx * (3.0 - 2.0 * fx);
+        double v = fy * fy * (3.0 - 2.0 * fy);
+        double v00 = lattice(layer, ix, iy);
+        double v10 = lattice(layer, ix + 1, iy);
+        double v01 = lattice(layer, ix, iy + 1);
+        double v11 = lattice(layer, ix + 1, iy + 1);
+        return (v00 * (1 - u) + v10 * u) * (1 - v) + (v01 * (1 - u) + v11 * u) * v;
+    }
+
+    /**
+     * @return A pseudo-random value in the range 0-1, which depends only on
+     *         the seed and the arguments
+     */
+    private double lattice(long layer, long ix, long iy) {
+        long h = seed;
+        h = mix(h ^ (layer * 0x9E3779B97F4A7C15L));
+        h = mix(h ^ (ix * 0xC2B2AE3D27D4EB4FL));
+        h = mix(h ^ (iy * 0x165667B19E3779F9L));
+        return (h >>> 11) * 0x1.0p-53;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    /**
+     * Writes a synthetic scene from the command line
+     * 
+     * @param args
+     *            The output file, the size (in pixels) of the square scene,
+     *            the number of channels, the seed, and optionally "masks" to
+     *            include masks
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.out.println("Usage: SyntheticSceneGenerator <output.nc> <size> <channels> <seed> [masks]");
+            return;
+        }
+        int size = Integer.parseInt(args[1]);
+        SyntheticSceneGenerator generator = new SyntheticSceneGenerator(size, size,
+                Integer.parseInt(args[2]), Long.parseLong(args[3]));
+        generator.setIncludeMasks(args.length > 4 && "masks".equals(args[4]));
+        generator.write(new File(args[0]));
+    }
+}
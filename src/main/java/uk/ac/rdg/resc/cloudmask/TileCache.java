@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ucar.ma2.Array;
+import ucar.ma2.IndexIterator;
+import ucar.ma2.InvalidRangeException;
+import ucar.ma2.Range;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+
+/**
+ * A bounded, least-recently-used cache of decoded tiles of 2D variables (or
+ * of single timesteps of 3D variables).
+ * 
+ * Tiles are aligned to the native chunking of the variable (from its
+ * <code>_ChunkSizes</code> attribute), so reading a tile decompresses each
+ * chunk exactly once. Requested ranges are assembled from the tiles which
+ * they overlap, so panning over a large compressed file only reads the
+ * chunks which have newly come into view.
+ *
+ * @author Guy Griffiths
+ */
+public class TileCache {
+    /*
+     * The tile size for variables which are not chunked
+     */
+    static final int DEFAULT_TILE_SIZE = 256;
+    /*
+     * Small chunks are grouped together into tiles of at least this size, to
+     * keep the per-tile overhead down
+     */
+    static final int MIN_TILE_SIZE = 128;
+
+    /**
+     * Reads a rectangular block of values from a variable
+     */
+    interface TileReader {
+        /**
+         * @return The values in the range (inclusive), in row-major order.
+         *         Missing values should be NaN
+         */
+        public float[] read(int ymin, int ymax, int xmin, int xmax) throws IOException;
+    }
+
+    private final long maxBytes;
+    private final Map<TileKey, float[]> tiles;
+    private long bytes = 0L;
+
+    /**
+     * @param maxBytes
+     *            The maximum total size of the tiles to keep
+     */
+    public TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        tiles = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+    /**
+     * Reads a range of values from a 2D variable, using cached tiles where
+     * possible
+     * 
+     * @param variable
+     *            The variable to read. This must be 2D, and its name must be
+     *            unique within this cache
+     * @return A {@link FloatArray4D} containing the values in the range
+     *         (inclusive). This reads directly from the tiles, so is not
+     *         affected by them later being evicted from the cache
+     */
+    public FloatArray4D read(Variable variable, int ymin, int ymax, int xmin, int xmax)
+            throws IOException {
+        return read(variable.getFullName(), variable, ymin, ymax, xmin, xmax);
+    }
+
+    /**
+     * Reads a range of values from a 2D variable, using cached tiles where
+     * possible
+     * 
+     * @param id
+     *            The ID to cache the variable's tiles under. This must be
+     *            unique within this cache
+     * @param variable
+     *            The variable to read. This must be 2D
+     * @return A {@link FloatArray4D} containing the values in the range
+     *         (inclusive)
+     */
+    public FloatArray4D read(String id, Variable variable, int ymin, int ymax, int xmin,
+            int xmax) throws IOException {
+        return read(id, variable, 0, ymin, ymax, xmin, xmax);
+    }
+
+    /**
+     * Reads a range of values from one timestep of a variable, using cached
+     * tiles where possible
+     * 
+     * @param id
+     *            The ID to cache the tiles under. This must be unique within
+     *            this cache, so for a 3D variable should identify the
+     *            timestep as well as the variable
+     * @param variable
+     *            The variable to read. This must be either 2D, or 3D with
+     *            time as its first dimension
+     * @param t
+     *            The timestep to read. This is ignored for 2D variables
+     * @return A {@link FloatArray4D} containing the values in the range
+     *         (inclusive)
+     */
+    public FloatArray4D read(String id, final Variable variable, final int t, int ymin,
+            int ymax, int xmin, int xmax) throws IOException {
+        int[] shape = variable.getShape();
+        int[] tileSize = getTileSize(variable);
+        return read(id, shape[shape.length - 2], shape[shape.length - 1], tileSize[0],
+                tileSize[1], new TileReader() {
+                    @Override
+                    public float[] read(int ymin, int ymax, int xmin, int xmax)
+                            throws IOException {
+                        List<Range> ranges = new ArrayList<>();
+                        Array arr;
+                        try {
+                            if (variable.getRank() == 3) {
+                                ranges.add(new Range(t, t));
+                            }
+                            ranges.add(new Range(ymin, ymax));
+                            ranges.add(new Range(xmin, xmax));
+                            arr = variable.read(ranges);
+                        } catch (InvalidRangeException e) {
+                            throw new IOException("Problem reading tile", e);
+                        }
+                        float[] values = new float[(int) arr.getSize()];
+                        IndexIterator iterator = arr.getIndexIterator();
+                        for (int i = 0; i < values.length; i++) {
+                            values[i] = iterator.getFloatNext();
+                        }
+                        return values;
+                    }
+                }, ymin, ymax, xmin, xmax);
+    }
+
+    FloatArray4D read(String id, int ySize, int xSize, final int tileYSize,
+            final int tileXSize, TileReader reader, final int ymin, int ymax, final int xmin,
+            int xmax) throws IOException {
+        final int firstTileY = ymin / tileYSize;
+        final int firstTileX = xmin / tileXSize;
+        int nTilesY = ymax / tileYSize - firstTileY + 1;
+        final int nTilesX = xmax / tileXSize - firstTileX + 1;
+
+        final float[][] grid = new float[nTilesY * nTilesX][];
+        final int[] tileWidths = new int[nTilesX];
+        for (int j = 0; j < nTilesY; j++) {
+            int tileYMin = (firstTileY + j) * tileYSize;
+            int tileYMax = Math.min(tileYMin + tileYSize, ySize) - 1;
+            for (int i = 0; i < nTilesX; i++) {
+                int tileXMin = (firstTileX + i) * tileXSize;
+                int tileXMax = Math.min(tileXMin + tileXSize, xSize) - 1;
+                tileWidths[i] = tileXMax - tileXMin + 1;
+
+                TileKey key = new TileKey(id, firstTileY + j, firstTileX + i);
+                float[] tile = get(key);
+                if (tile == null) {
+                    /*
+                     * Read outside of the lock so that different tiles can be
+                     * read in parallel
+                     */
+                    tile = reader.read(tileYMin, tileYMax, tileXMin, tileXMax);
+                    put(key, tile);
+                }
+                grid[j * nTilesX + i] = tile;
+            }
+        }
+
+        final int width = xmax - xmin + 1;
+        return new FloatArray4D(ymax - ymin + 1, width) {
+            @Override
+            public float getFloat(int y, int x) {
+                int dataY = ymin + y;
+                int dataX = xmin + x;
+                int tileX = dataX / tileXSize - firstTileX;
+                float[] tile = grid[(dataY / tileYSize - firstTileY) * nTilesX + tileX];
+                return tile[(dataY % tileYSize) * tileWidths[tileX] + dataX % tileXSize];
+            }
+
+            @Override
+            public void readRow(int y, float[] dest) {
+                int dataY = ymin + y;
+                int rowInTile = dataY % tileYSize;
+                int tileRow = (dataY / tileYSize - firstTileY) * nTilesX;
+                int x = 0;
+                while (x < width) {
+                    int dataX = xmin + x;
+                    int tileX = dataX / tileXSize - firstTileX;
+                    int xInTile = dataX % tileXSize;
+                    int length = Math.min(tileWidths[tileX] - xInTile, width - x);
+                    System.arraycopy(grid[tileRow + tileX], rowInTile * tileWidths[tileX]
+                            + xInTile, dest, x, length);
+                    x += length;
+                }
+            }
+        };
+    }
+
+    private synchronized float[] get(TileKey key) {
+        return tiles.get(key);
+    }
+
+    private synchronized void put(TileKey key, float[] tile) {
+        float[] previous = tiles.put(key, tile);
+        if (previous != null) {
+            bytes -= 4L * previous.length;
+        }
+        bytes += 4L * tile.length;
+        /*
+         * Evict the least recently used tiles, but always keep the newest
+         */
+        Iterator<float[]> iterator = tiles.values().iterator();
+        while (bytes > maxBytes && tiles.size() > 1) {
+            bytes -= 4L * iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return The maximum total size of the tiles which will be kept, in
+     *         bytes
+     */
+    public long getMaxSize() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The total size of the cached tiles, in bytes
+     */
+    public synchronized long getSize() {
+        return bytes;
+    }
+
+    /**
+     * Removes all tiles from the cache
+     */
+    public synchronized void clear() {
+        tiles.clear();
+        bytes = 0L;
+    }
+
+    /**
+     * @param variable
+     *            A 2D variable, or a 3D variable with time as its first
+     *            dimension
+     * @return The tile size to use for the variable, as [y, x]. This is a
+     *         multiple of the native chunk size where there is one
+     */
+    static int[] getTileSize(Variable variable) {
+        int[] shape = variable.getShape();
+        int rank = shape.length;
+        int[] chunks = new int[] { DEFAULT_TILE_SIZE, DEFAULT_TILE_SIZE };
+        Attribute chunkSizes = variable.findAttribute("_ChunkSizes");
+        if (chunkSizes != null && chunkSizes.getLength() == rank) {
+            chunks[0] = chunkSizes.getNumericValue(rank - 2).intValue();
+            chunks[1] = chunkSizes.getNumericValue(rank - 1).intValue();
+        }
+        return new int[] { getTileSize(chunks[0], shape[rank - 2]),
+                getTileSize(chunks[1], shape[rank - 1]) };
+    }
+
+    static int getTileSize(int chunkSize, int dimensionSize) {
+        if (chunkSize <= 0) {
+            chunkSize = DEFAULT_TILE_SIZE;
+        }
+        int tileSize = chunkSize * ((MIN_TILE_SIZE + chunkSize - 1) / chunkSize);
+        return Math.max(1, Math.min(tileSize, dimensionSize));
+    }
+
+    private static final class TileKey {
+        private final String id;
+        private final int tileY;
+        private final int tileX;
+
+        private TileKey(String id, int tileY, int tileX) {
+            this.id = id;
+            this.tileY = tileY;
+            this.tileX = tileX;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + id.hashCode();
+            result = prime * result + tileY;
+            result = prime * result + tileX;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof TileKey))
+                return false;
+            TileKey other = (TileKey) obj;
+            return id.equals(other.id) && tileY == other.tileY && tileX == other.tileX;
+        }
+    }
+}
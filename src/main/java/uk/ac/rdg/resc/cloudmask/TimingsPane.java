@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.event.ActionEvent;
+import javafx.event.EventHandler;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.TitledPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Font;
+import javafx.stage.FileChooser;
+import javafx.stage.FileChooser.ExtensionFilter;
+import javafx.util.Duration;
+import uk.ac.rdg.resc.cloudmask.profiling.LatencyHistogram;
+import uk.ac.rdg.resc.cloudmask.profiling.Timings;
+import uk.ac.rdg.resc.cloudmask.profiling.Timings.Stage;
+
+/**
+ * A collapsible pane showing the median and 99th percentile times for each
+ * stage of reading and rendering, for each view. It updates every second
+ * whilst expanded.
+ *
+ * @author Guy Griffiths
+ */
+public class TimingsPane extends TitledPane {
+    private Label timingsLabel;
+    private Timeline refreshTimeline;
+
+    public TimingsPane() {
+        setText("Timings");
+        setExpanded(false);
+
+        timingsLabel = new Label();
+        timingsLabel.setFont(Font.font("Monospaced", 11));
+
+        Button resetButton = new Button("Reset");
+        resetButton.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                Timings.reset();
+                refresh();
+            }
+        });
+
+        Button exportButton = new Button("Export CSV");
+        exportButton.setOnAction(new EventHandler<ActionEvent>() {
+            @Override
+            public void handle(ActionEvent event) {
+                FileChooser fileChooser = new FileChooser();
+                fileChooser.setTitle("Export timings");
+                fileChooser.getExtensionFilters().add(new ExtensionFilter("CSV Files", "*.csv"));
+                File selectedFile = fileChooser.showSaveDialog(null);
+                if (selectedFile != null) {
+                    try {
+                        Timings.writeCsv(selectedFile);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+
+        HBox buttons = new HBox(resetButton, exportButton);
+        buttons.setSpacing(10);
+        VBox content = new VBox(buttons, timingsLabel);
+        content.setSpacing(10);
+        setContent(content);
+
+        refreshTimeline = new Timeline(new KeyFrame(Duration.seconds(1),
+                new EventHandler<ActionEvent>() {
+                    @Override
+                    public void handle(ActionEvent event) {
+                        refresh();
+                    }
+                }));
+        refreshTimeline.setCycleCount(Animation.INDEFINITE);
+
+        /*
+         * Only update whilst the timings are visible
+         */
+        expandedProperty().addListener(new ChangeListener<Boolean>() {
+            @Override
+            public void changed(ObservableValue<? extends Boolean> observable, Boolean oldValue,
+                    Boolean newValue) {
+                if (newValue) {
+                    refresh();
+                    refreshTimeline.play();
+                } else {
+                    refreshTimeline.stop();
+                }
+            }
+        });
+    }
+
+    private void refresh() {
+        StringBuilder text = new StringBuilder(String.format("%-14s %-28s %7s %10s %10s",
+                "Stage", "View", "Count", "p50 (ms)", "p99 (ms)"));
+        for (Stage stage : Stage.values()) {
+            Map<String, LatencyHistogram> histograms = Timings.getHistograms(stage);
+            for (Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                text.append(String.format("%n%-14s %-28s %7d %10s %10s", stage.getLabel(),
+                        entry.getKey(), histogram.getCount(),
+                        Timings.millis(histogram.getValueAtPercentile(50)),
+                        Timings.millis(histogram.getValueAtPercentile(99))));
+            }
+        }
+        timingsLabel.setText(text.toString());
+    }
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Conflates updates which arrive faster than they can be applied, such as
+ * the values from a slider being dragged.
+ * 
+ * Each update is submitted with a key, and only the most recent update for
+ * each key is kept until the pending updates are next run. The pending updates
+ * are run together (in the order that their keys were last submitted) by a
+ * single task on the given {@link Executor}, and at most one such task is
+ * queued at any time. This means that however many updates are submitted
+ * whilst a slow update (e.g. a render) is running, each key will only be
+ * updated once more, with its latest value.
+ *
+ * @author Guy Griffiths
+ */
+public class UpdateConflater {
+    private final Executor executor;
+    private final Map<String, Runnable> pending = new LinkedHashMap<>();
+    private boolean scheduled = false;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            runPending();
+        }
+    };
+
+    /**
+     * @param executor
+     *            The {@link Executor} to run the updates on. This will usually
+     *            be the FX thread
+     */
+    public UpdateConflater(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Submits an update, replacing any pending update with the same key
+     * 
+     * @param key
+     *            The key identifying what is being updated
+     * @param update
+     *            The update to run
+     */
+    public void submit(String key, Runnable update) {
+        synchronized (this) {
+            /*
+             * Remove first so that the key moves to the end of the queue.
+             * Updates which depend on others (e.g. a render after a change to
+             * the model) will then always run after them.
+             */
+            pending.remove(key);
+            pending.put(key, update);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        executor.execute(drain);
+    }
+
+    /**
+     * Runs all pending updates immediately on the calling thread. This should
+     * be called before reading any state which pending updates would change.
+     */
+    public void flush() {
+        runPending();
+    }
+
+    /**
+     * Discards all pending updates without running them
+     */
+    public synchronized void clear() {
+        pending.clear();
+    }
+
+    /**
+     * @return Whether there are any pending updates
+     */
+    public synchronized boolean isPending() {
+        return !pending.isEmpty();
+    }
+
+    private void runPending() {
+        List<Runnable> updates;
+        synchronized (this) {
+            updates = new ArrayList<>(pending.values());
+            pending.clear();
+            scheduled = false;
+        }
+        for (Runnable update : updates) {
+            update.run();
+        }
+    }
+}
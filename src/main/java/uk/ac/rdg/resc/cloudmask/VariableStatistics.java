@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.util.Extents;
+
+/**
+ * Summary statistics of the values of a single variable: the range, mean,
+ * standard deviation, a histogram, and robust (2%/98%) percentiles.
+ * 
+ * These are calculated from a single read of the data, and are immutable, so
+ * they can be cached and shared freely.
+ *
+ * @author Guy Griffiths
+ */
+public final class VariableStatistics {
+    public static final int N_BINS = 1024;
+    public static final double LOW_PERCENTILE = 2.0;
+    public static final double HIGH_PERCENTILE = 98.0;
+
+    private final long count;
+    private final float min;
+    private final float max;
+    private final double mean;
+    private final double stddev;
+    private final int[] histogram;
+    private final float lowPercentile;
+    private final float highPercentile;
+
+    private VariableStatistics(long count, float min, float max, double mean, double stddev,
+            int[] histogram, float lowPercentile, float highPercentile) {
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.stddev = stddev;
+        this.histogram = histogram;
+        this.lowPercentile = lowPercentile;
+        this.highPercentile = highPercentile;
+    }
+
+    /**
+     * Calculates statistics from an array of values. NaNs are ignored.
+     * 
+     * @param values
+     *            The values. The first <code>length</code> of these will be
+     *            reordered, since the percentiles are found by selection
+     * @param length
+     *            The number of values in the array to use
+     * @return The {@link VariableStatistics} of the values
+     */
+    public static VariableStatistics fromValues(float[] values, int length) {
+        /*
+         * Range, mean and variance (using Welford's method) in one pass
+         */
+        long count = 0;
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        double mean = 0.0;
+        double m2 = 0.0;
+        for (int i = 0; i < length; i++) {
+            float value = values[i];
+            if (Float.isNaN(value)) {
+                continue;
+            }
+            count++;
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+        }
+
+        int[] histogram = new int[N_BINS];
+        if (count == 0) {
+            return new VariableStatistics(0, Float.NaN, Float.NaN, Double.NaN, Double.NaN,
+                    histogram, Float.NaN, Float.NaN);
+        }
+
+        /*
+         * The histogram needs the range, so we go over the values again. They
+         * are already in memory, so this is cheap compared to the read. At
+         * the same time, the valid values are moved to the start of the array
+         * for the percentiles.
+         */
+        double binWidth = (max - min) / (double) N_BINS;
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            float value = values[i];
+            if (Float.isNaN(value)) {
+                continue;
+            }
+            histogram[binIndex(value, min, binWidth)]++;
+            values[n++] = value;
+        }
+
+        /*
+         * The percentiles are selected from the values themselves rather than
+         * estimated from the histogram, whose bins are far too coarse when
+         * there are outliers. Selecting the low percentile partitions the
+         * values, so the high percentile only needs to search above it.
+         */
+        int lowRank = (int) rank(n, LOW_PERCENTILE);
+        float lowPercentile = percentile(values, n, 0, LOW_PERCENTILE);
+        float highPercentile = percentile(values, n, lowRank, HIGH_PERCENTILE);
+
+        return new VariableStatistics(count, min, max, mean, Math.sqrt(m2 / count), histogram,
+                lowPercentile, highPercentile);
+    }
+
+    private static int binIndex(float value, float min, double binWidth) {
+        if (binWidth <= 0.0) {
+            return 0;
+        }
+        int bin = (int) ((value - min) / binWidth);
+        return bin >= N_BINS ? N_BINS - 1 : bin;
+    }
+
+    private static double rank(int n, double percentile) {
+        return (n - 1) * percentile / 100.0;
+    }
+
+    /**
+     * Finds a percentile of some values, interpolating linearly between the
+     * two values either side of it
+     * 
+     * @param values
+     *            The values, none of which may be NaN. These are reordered.
+     * @param n
+     *            The number of values
+     * @param from
+     *            The index to start searching from. All values before this
+     *            must be no larger than any value after it, and the percentile
+     *            must not be before it
+     * @param percentile
+     *            The percentile, between 0 and 100
+     * @return The value at that percentile
+     */
+    private static float percentile(float[] values, int n, int from, double percentile) {
+        double rank = rank(n, percentile);
+        int k = (int) rank;
+        select(values, from, n, k);
+        float value = values[k];
+        double fraction = rank - k;
+        if (fraction > 0.0 && k + 1 < n) {
+            /*
+             * Everything after k is no smaller than it, so the next value is
+             * the smallest of those
+             */
+            float next = values[k + 1];
+            for (int i = k + 2; i < n; i++) {
+                if (values[i] < next) {
+                    next = values[i];
+                }
+            }
+            value += (float) (fraction * (next - value));
+        }
+        return value;
+    }
+
+    /**
+     * Partially sorts a range of values so that the value at index
+     * <code>k</code> is the one which would be there if the range were
+     * sorted, with no larger values before it and no smaller values after it
+     * (Hoare's selection algorithm).
+     */
+    private static void select(float[] values, int from, int to, int k) {
+        int left = from;
+        int right = to - 1;
+        while (right > left) {
+            float a = values[left];
+            float b = values[(left + right) >>> 1];
+            float c = values[right];
+            float pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    float swap = values[i];
+                    values[i] = values[j];
+                    values[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The number of non-NaN values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getStddev() {
+        return stddev;
+    }
+
+    /**
+     * @return The value at the {@link #LOW_PERCENTILE} percentile
+     */
+    public float getLowPercentile() {
+        return lowPercentile;
+    }
+
+    /**
+     * @return The value at the {@link #HIGH_PERCENTILE} percentile
+     */
+    public float getHighPercentile() {
+        return highPercentile;
+    }
+
+    /**
+     * @return A copy of the histogram. This has {@link #N_BINS} equally-sized
+     *         bins covering the range of the data
+     */
+    public int[] getHistogram() {
+        return histogram.clone();
+    }
+
+    /**
+     * @return The full range of the data, suitable for a default colour scale
+     *         or threshold. This is never empty - data with no valid values
+     *         gives 0 to 1, and constant data is padded either side
+     */
+    public Extent<Float> getValueRange() {
+        return nonEmptyExtent(min, max);
+    }
+
+    /**
+     * @return The range between the {@link #LOW_PERCENTILE} and
+     *         {@link #HIGH_PERCENTILE} percentiles, which is not affected by
+     *         outliers
+     */
+    public Extent<Float> getRobustRange() {
+        return nonEmptyExtent(lowPercentile, highPercentile);
+    }
+
+    private static Extent<Float> nonEmptyExtent(float low, float high) {
+        if (Float.isNaN(low) || Float.isNaN(high)) {
+            return Extents.newExtent(0f, 1f);
+        }
+        if (low >= high) {
+            return Extents.newExtent(low - 0.5f, high + 0.5f);
+        }
+        return Extents.newExtent(low, high);
+    }
+}
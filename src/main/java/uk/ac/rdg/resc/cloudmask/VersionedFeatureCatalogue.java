@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import uk.ac.rdg.resc.cloudmask.CloudMaskDatasetFactory.MaskedDataset;
+import uk.ac.rdg.resc.cloudmask.profiling.TimedFeatureCatalogue;
+import uk.ac.rdg.resc.cloudmask.profiling.Timings;
+import uk.ac.rdg.resc.cloudmask.profiling.Timings.Stage;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+
+/**
+ * A feature catalogue which caches the features read for each layer along
+ * with the versions of everything they were derived from (see
+ * {@link MaskedDataset#getInputVersions(String)}).
+ * 
+ * Cached features are checked against the current versions whenever they are
+ * requested, so nothing needs to be expired when a threshold, the composite
+ * mask or the manual mask changes: only features which depend on what
+ * changed are read again. Manual mask edits only make the features covering
+ * the edited pixels stale, so editing one part of the composite mask doesn't
+ * re-read the rest of it.
+ *
+ * @author Guy Griffiths
+ */
+public class VersionedFeatureCatalogue extends TimedFeatureCatalogue<MaskedDataset> {
+    private static final class CachedFeatures {
+        private final FeaturesAndMemberName features;
+        /** The grid range (inclusive) covered, as [xmin, ymin, xmax, ymax] */
+        private final int[] range;
+        private final long bytes;
+        /**
+         * The versions of the inputs when the features were read, or when
+         * they were last found to be unaffected by changes
+         */
+        private volatile Map<String, Object> versions;
+
+        public CachedFeatures(FeaturesAndMemberName features, Map<String, Object> versions,
+                int[] range, long bytes) {
+            this.features = features;
+            this.versions = versions;
+            this.range = range;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long maxBytes;
+    private final Map<String, CachedFeatures> cache;
+    private long bytes = 0L;
+
+    /**
+     * @param dataset
+     *            The dataset to read features from
+     * @param maxBytes
+     *            The maximum total (approximate) size of the features to keep
+     */
+    public VersionedFeatureCatalogue(MaskedDataset dataset, long maxBytes) throws IOException,
+            EdalException {
+        super(dataset, false);
+        this.maxBytes = maxBytes;
+        cache = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+    @Override
+    public FeaturesAndMemberName getFeaturesForLayer(String id, PlottingDomainParams params)
+            throws EdalException {
+        long start = Timings.start();
+        MaskedDataset dataset = getDataset();
+        int t = dataset.getTimestep();
+        BoundingBox bbox = params.getBbox();
+        String key = id + "/" + t + "/" + params.getWidth() + "x" + params.getHeight() + "/"
+                + bbox.getMinX() + "," + bbox.getMinY() + "," + bbox.getMaxX() + ","
+                + bbox.getMaxY();
+        /*
+         * Versions are taken before reading, so that a change part way
+         * through a read leaves the cached features stale rather than wrong
+         */
+        Map<String, Object> versions = dataset.getInputVersions(id);
+
+        CachedFeatures cached = get(key);
+        if (cached != null && isValid(cached, versions, t)) {
+            Timings.record(Stage.CATALOGUE_HIT, id, start);
+            return cached.features;
+        }
+
+        boolean preview = dataset.isPreview();
+        FeaturesAndMemberName features = super.getFeaturesForLayer(id, params);
+        /*
+         * Previews are replaced by a full read as soon as they are finished
+         * with, so aren't worth keeping
+         */
+        if (dataset.getTimestep() == t && !preview && !dataset.isPreview()) {
+            /*
+             * Overview values depend on the pixels either side of the ones
+             * they are centred on
+             */
+            int margin = dataset.getOverviewFactorOf(id);
+            int[] range = new int[] { (int) Math.floor(bbox.getMinX()) - margin,
+                    (int) Math.floor(bbox.getMinY()) - margin,
+                    (int) Math.ceil(bbox.getMaxX()) + margin,
+                    (int) Math.ceil(bbox.getMaxY()) + margin };
+            put(key, new CachedFeatures(features, versions, range, 4L * params.getWidth()
+                    * params.getHeight()));
+        }
+        return features;
+    }
+
+    private boolean isValid(CachedFeatures cached, Map<String, Object> versions, int t) {
+        Map<String, Object> cachedVersions = cached.versions;
+        if (!cachedVersions.keySet().equals(versions.keySet())) {
+            return false;
+        }
+        for (Entry<String, Object> input : cachedVersions.entrySet()) {
+            if (input.getValue().equals(versions.get(input.getKey()))) {
+                continue;
+            }
+            if (MaskedDataset.MANUAL_MASK_NAME.equals(input.getKey())) {
+                int[] range = cached.range;
+                if (!getDataset().isManualMaskEdited((Long) input.getValue(), t, range[0],
+                        range[1], range[2], range[3])) {
+                    continue;
+                }
+            }
+            return false;
+        }
+        /*
+         * Nothing which affects these features has changed, so later checks
+         * only need to look at changes from now on
+         */
+        cached.versions = versions;
+        return true;
+    }
+
+    private synchronized CachedFeatures get(String key) {
+        return cache.get(key);
+    }
+
+    private synchronized void put(String key, CachedFeatures features) {
+        CachedFeatures previous = cache.put(key, features);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += features.bytes;
+        Iterator<CachedFeatures> iterator = cache.values().iterator();
+        while (bytes > maxBytes && cache.size() > 1) {
+            bytes -= iterator.next().bytes;
+            iterator.remove();
+        }
+    }
+}
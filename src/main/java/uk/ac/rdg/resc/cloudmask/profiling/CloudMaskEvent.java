@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask.profiling;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * Base class for Java Flight Recorder events emitted by CloudMask. These can
+ * be recorded alongside the standard JVM events (e.g. with
+ * <code>-XX:StartFlightRecording</code>) and correlated with GC and allocation
+ * profiles.
+ * 
+ * Each event records the bytes allocated on its thread between
+ * {@link #start()} and {@link #finish()}, where the JVM supports it. When the
+ * event is not enabled in the recording, no measurement is done.
+ *
+ * @author Guy Griffiths
+ */
+@Category("CloudMask")
+@StackTrace(false)
+public abstract class CloudMaskEvent extends Event {
+    private static final com.sun.management.ThreadMXBean ALLOCATION_BEAN;
+    static {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadBean)
+                        .isThreadAllocatedMemorySupported()) {
+            ALLOCATION_BEAN = (com.sun.management.ThreadMXBean) threadBean;
+        } else {
+            ALLOCATION_BEAN = null;
+        }
+    }
+
+    @Label("Bytes Allocated")
+    @DataAmount
+    protected long bytesAllocated = -1;
+
+    private transient long allocatedAtStart = -1;
+
+    /**
+     * Starts timing this event
+     */
+    public void start() {
+        if (isEnabled() && ALLOCATION_BEAN != null) {
+            allocatedAtStart = ALLOCATION_BEAN.getThreadAllocatedBytes(Thread.currentThread()
+                    .getId());
+        }
+        begin();
+    }
+
+    /**
+     * Stops timing this event, and commits it if it should be recorded
+     */
+    public void finish() {
+        end();
+        if (shouldCommit()) {
+            if (allocatedAtStart >= 0) {
+                bytesAllocated = ALLOCATION_BEAN.getThreadAllocatedBytes(Thread.currentThread()
+                        .getId()) - allocatedAtStart;
+            }
+            commit();
+        }
+    }
+}
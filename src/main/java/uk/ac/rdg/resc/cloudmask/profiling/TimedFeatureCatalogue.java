@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask.profiling;
+
+import java.io.IOException;
+
+import uk.ac.rdg.resc.cloudmask.profiling.Timings.Stage;
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.graphics.utils.SimpleFeatureCatalogue;
+
+/**
+ * A {@link SimpleFeatureCatalogue} which records whether each request was
+ * served from its cache, and how long it took.
+ * 
+ * A request is counted as a cache miss if any data sources were opened whilst
+ * serving it, so this relies on the dataset calling
+ * {@link Timings#dataSourceOpened()}. Only data sources opened on the calling
+ * thread are counted, so reads by background threads (e.g. prefetching) which
+ * happen at the same time don't turn hits into misses.
+ *
+ * @author Guy Griffiths
+ */
+public class TimedFeatureCatalogue<D extends Dataset> extends SimpleFeatureCatalogue<D> {
+    public TimedFeatureCatalogue(D dataset, boolean cacheEnabled) throws IOException,
+            EdalException {
+        super(dataset, cacheEnabled);
+    }
+
+    @Override
+    public FeaturesAndMemberName getFeaturesForLayer(String id, PlottingDomainParams params)
+            throws EdalException {
+        int opened = Timings.getDataSourcesOpened();
+        long start = Timings.start();
+        FeaturesAndMemberName features = super.getFeaturesForLayer(id, params);
+        Timings.record(Timings.getDataSourcesOpened() == opened ? Stage.CATALOGUE_HIT
+                : Stage.CATALOGUE_MISS, id, start);
+        return features;
+    }
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask.profiling;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the latency of the various stages of reading and rendering data.
+ * 
+ * Usage is:
+ * 
+ * <pre>
+ * long start = Timings.start();
+ * ...do some work...
+ * Timings.record(Stage.READ_FEATURE, varId, start);
+ * </pre>
+ * 
+ * Each stage keeps a {@link LatencyHistogram} per key (usually a variable ID),
+ * so recording costs two calls to {@link System#nanoTime()}, a map lookup and
+ * a few atomic increments. Nothing is logged.
+ *
+ * @author Guy Griffiths
+ */
+public final class Timings {
+    public enum Stage {
+        /** Generating an image of a variable */
+        GENERATE_IMAGE("Render"),
+        /** Converting a generated image for display */
+        TO_FX_IMAGE("FX conversion"),
+        /** Reading a variable from the data */
+        READ_FEATURE("Read"),
+        /**
+         * Reading a variable which is generated from others (by a plugin or a
+         * filter). EDAL may evaluate plugins lazily, in which case some of
+         * this cost appears in {@link #GENERATE_IMAGE} instead
+         */
+        PLUGIN_EVALUATION("Derived read"),
+        /** Fetching a feature for rendering which was already cached */
+        CATALOGUE_HIT("Cache hit"),
+        /** Fetching a feature for rendering which had to be read */
+        CATALOGUE_MISS("Cache miss"),
+        /** Applying a manual mask edit */
+        MANUAL_EDIT("Manual edit");
+
+        private final String label;
+
+        private Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final Map<Stage, ConcurrentHashMap<String, LatencyHistogram>> histograms;
+    static {
+        histograms = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new ConcurrentHashMap<String, LatencyHistogram>());
+        }
+    }
+
+    /*
+     * Counts the data sources opened on each thread, so that a catalogue can
+     * tell whether a request was served from its cache
+     */
+    private static final ThreadLocal<int[]> dataSourcesOpened = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private static volatile boolean enabled = true;
+
+    private Timings() {
+    }
+
+    /**
+     * @param enabled
+     *            Whether to record timings. When disabled, {@link #start()}
+     *            and {@link #record(Stage, String, long)} do nothing
+     */
+    public static void setEnabled(boolean enabled) {
+        Timings.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return A start time to pass to {@link #record(Stage, String, long)}
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records the time since a call to {@link #start()}
+     * 
+     * @param stage
+     *            The {@link Stage} which has been timed
+     * @param key
+     *            What the stage was timed for, usually a variable ID
+     * @param start
+     *            The value returned by {@link #start()}
+     */
+    public static void record(Stage stage, String key, long start) {
+        if (start == 0L || !enabled) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        ConcurrentHashMap<String, LatencyHistogram> stageHistograms = histograms.get(stage);
+        LatencyHistogram histogram = stageHistograms.get(key);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = stageHistograms.putIfAbsent(key, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(elapsed);
+    }
+
+    /**
+     * Should be called whenever a data source is opened
+     */
+    public static void dataSourceOpened() {
+        dataSourcesOpened.get()[0]++;
+    }
+
+    /**
+     * @return The number of data sources which have been opened on the
+     *         current thread
+     */
+    public static int getDataSourcesOpened() {
+        return dataSourcesOpened.get()[0];
+    }
+
+    /**
+     * @param stage
+     *            The {@link Stage}
+     * @return The histograms for each key recorded for that stage, sorted by
+     *         key
+     */
+    public static Map<String, LatencyHistogram> getHistograms(Stage stage) {
+        return Collections.unmodifiableMap(new TreeMap<>(histograms.get(stage)));
+    }
+
+    /**
+     * Clears all recorded timings
+     */
+    public static void reset() {
+        for (ConcurrentHashMap<String, LatencyHistogram> stageHistograms : histograms.values()) {
+            stageHistograms.clear();
+        }
+    }
+
+    /**
+     * Writes a summary of all recorded timings as CSV, with one line per
+     * stage and key. Times are in milliseconds.
+     * 
+     * @param file
+     *            The file to write to
+     */
+    public static void writeCsv(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            writer.println("stage,key,count,mean_ms,p50_ms,p90_ms,p99_ms,max_ms");
+            for (Stage stage : Stage.values()) {
+                for (Entry<String, LatencyHistogram> entry : getHistograms(stage).entrySet()) {
+                    LatencyHistogram histogram = entry.getValue();
+                    writer.println(stage.name() + "," + entry.getKey() + ","
+                            + histogram.getCount() + "," + millis(histogram.getMean()) + ","
+                            + millis(histogram.getValueAtPercentile(50)) + ","
+                            + millis(histogram.getValueAtPercentile(90)) + ","
+                            + millis(histogram.getValueAtPercentile(99)) + ","
+                            + millis(histogram.getMax()));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param nanos
+     *            A time in nanoseconds
+     * @return The time in milliseconds, to 3 decimal places
+     */
+    public static String millis(double nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
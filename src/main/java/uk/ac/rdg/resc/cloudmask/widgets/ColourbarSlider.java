@@ -28,24 +28,44 @@
 
 package uk.ac.rdg.resc.cloudmask.widgets;
 
-import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.ObservableList;
 import javafx.embed.swing.SwingFXUtils;
+import javafx.geometry.Insets;
 import javafx.geometry.Orientation;
+import javafx.geometry.Side;
 import javafx.scene.Node;
+import javafx.scene.image.PixelReader;
 import javafx.scene.image.WritableImage;
 import javafx.scene.layout.Background;
+import javafx.scene.layout.BackgroundFill;
 import javafx.scene.layout.BackgroundImage;
+import javafx.scene.layout.BackgroundPosition;
+import javafx.scene.layout.BackgroundRepeat;
+import javafx.scene.layout.BackgroundSize;
+import javafx.scene.layout.CornerRadii;
 import javafx.scene.layout.StackPane;
+import javafx.scene.paint.Color;
 
 import org.controlsfx.control.RangeSlider;
 
 import uk.ac.rdg.resc.cloudmask.EdalImageGenerator;
 
 public class ColourbarSlider extends RangeSlider {
+    /*
+     * Legends of the whole palette, keyed by palette, size and orientation.
+     * These are shared between all sliders and only accessed on the FX
+     * thread.
+     */
+    private static final int MAX_LEGENDS = 32;
+    private static final Map<String, WritableImage> legends = new LinkedHashMap<>(16, 0.75f,
+            true);
+
     private EdalImageGenerator imageGenerator;
     private Orientation orientation;
 
@@ -127,22 +147,107 @@ public class ColourbarSlider extends RangeSlider {
 
             float belowMin = (float) ((getLowValue() - getMin()) / range);
             float aboveMax = (float) ((getMax() - getHighValue()) / range);
-            BufferedImage legend = imageGenerator.getLegend((int) getHeight(), belowMin, aboveMax,
-                    orientation == Orientation.VERTICAL);
-            WritableImage fxImage = SwingFXUtils.toFXImage(legend, null);
+            int size = (int) getHeight();
+            if (size <= 0) {
+                return;
+            }
+            boolean vertical = orientation == Orientation.VERTICAL;
+            WritableImage legend = getPaletteLegend(size, vertical);
             ObservableList<Node> children = getChildren();
             for (Node node : children) {
                 /*
                  * This gets the track and sets the background image on it
                  */
                 if (node.getStyleClass().contains("track")) {
-                    ((StackPane) node).setBackground(new Background(new BackgroundImage(fxImage,
-                            null, null, null, null)));
+                    StackPane track = (StackPane) node;
+                    track.setBackground(getBackground(legend, belowMin, aboveMax, vertical,
+                            vertical ? track.getHeight() : track.getWidth()));
                 }
             }
         }
     }
 
+    /**
+     * Gets a legend of the whole of the current palette, generating it only
+     * if it's not already cached
+     */
+    private WritableImage getPaletteLegend(int size, boolean vertical) {
+        String key = (imageGenerator.isRgb() ? "rgb" : imageGenerator.getPalette()) + "/"
+                + size + "/" + vertical;
+        WritableImage legend = legends.get(key);
+        if (legend == null) {
+            legend = SwingFXUtils.toFXImage(imageGenerator.getLegend(size, 0f, 0f, vertical),
+                    null);
+            legends.put(key, legend);
+            Iterator<WritableImage> iterator = legends.values().iterator();
+            while (legends.size() > MAX_LEGENDS) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        return legend;
+    }
+
+    /**
+     * Creates a background showing a legend with out-of-range sections. This
+     * is equivalent to the legend generated with the same out-of-range
+     * fractions, but is made by scaling the legend of the whole palette into
+     * the in-range section and filling the rest with the colours at either
+     * end of the palette.
+     * 
+     * @param legend
+     *            The legend of the whole palette
+     * @param belowMin
+     *            The size of the section below the range, as a fraction of
+     *            the in-range section
+     * @param aboveMax
+     *            The size of the section above the range, as a fraction of the
+     *            in-range section
+     * @param vertical
+     *            Whether the legend is vertical (with the lowest values at the
+     *            bottom) or horizontal (with the lowest values at the left)
+     * @param trackLength
+     *            The length of the track the background is for
+     */
+    private static Background getBackground(WritableImage legend, float belowMin,
+            float aboveMax, boolean vertical, double trackLength) {
+        double length = vertical ? legend.getHeight() : legend.getWidth();
+        double total = 1.0 + belowMin + aboveMax;
+        double lowLength = length * belowMin / total;
+        double highLength = length * aboveMax / total;
+        double rangeLength = length - lowLength - highLength;
+
+        PixelReader pixels = legend.getPixelReader();
+        Color lowColour;
+        Color highColour;
+        BackgroundImage inRange;
+        Insets lowInsets;
+        Insets highInsets;
+        if (vertical) {
+            lowColour = pixels.getColor(0, (int) legend.getHeight() - 1);
+            highColour = pixels.getColor(0, 0);
+            inRange = new BackgroundImage(legend, BackgroundRepeat.REPEAT,
+                    BackgroundRepeat.NO_REPEAT, new BackgroundPosition(Side.LEFT, 0, false,
+                            Side.TOP, highLength, false), new BackgroundSize(legend.getWidth(),
+                            rangeLength, false, false, false, false));
+            lowInsets = new Insets(highLength + rangeLength, 0, 0, 0);
+            highInsets = new Insets(0, 0, Math.max(0, trackLength - highLength), 0);
+        } else {
+            lowColour = pixels.getColor(0, 0);
+            highColour = pixels.getColor((int) legend.getWidth() - 1, 0);
+            inRange = new BackgroundImage(legend, BackgroundRepeat.NO_REPEAT,
+                    BackgroundRepeat.REPEAT, new BackgroundPosition(Side.LEFT, lowLength, false,
+                            Side.TOP, 0, false), new BackgroundSize(rangeLength,
+                            legend.getHeight(), false, false, false, false));
+            lowInsets = new Insets(0, Math.max(0, trackLength - lowLength), 0, 0);
+            highInsets = new Insets(0, 0, 0, lowLength + rangeLength);
+        }
+        return new Background(new BackgroundFill[] {
+                new BackgroundFill(lowColour, CornerRadii.EMPTY, lowInsets),
+                new BackgroundFill(highColour, CornerRadii.EMPTY, highInsets) },
+                new BackgroundImage[] { inRange });
+    }
+
     private void setTickUnit() {
         double unit = (getMax() - getMin()) / 10.0;
         for (int i = -10;; i++) {
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask.widgets;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javafx.scene.image.WritableImage;
+
+/**
+ * A bounded, least-recently-used cache of the frames rendered by
+ * {@link ZoomableImageView}s. This allows a view to show a frame it has drawn
+ * before (e.g. when switching back to a previous variable) without rendering
+ * it again.
+ * 
+ * Frames are stored with the version of the
+ * {@link ZoomableImageView.ImageGenerator} state which they were drawn from
+ * (see {@link Versioned}), so that a frame drawn from an older state can be
+ * told apart from an up-to-date one.
+ *
+ * @author Guy Griffiths
+ */
+public class FrameCache {
+    /**
+     * An {@link ZoomableImageView.ImageGenerator} whose frames can be cached
+     */
+    public interface Versioned {
+        /**
+         * @return An object identifying everything which the images generated
+         *         depend on. Two images generated with equal versions (and the
+         *         same bounds and size) must be identical.
+         */
+        public Object getFrameVersion();
+    }
+
+    private static class Frame {
+        final WritableImage image;
+        final Object version;
+        final long bytes;
+
+        public Frame(WritableImage image, Object version) {
+            this.image = image;
+            this.version = version;
+            this.bytes = 4L * (long) image.getWidth() * (long) image.getHeight();
+        }
+    }
+
+    private final long maxBytes;
+    private final Map<String, Frame> frames;
+    private long bytes = 0L;
+
+    /**
+     * @param maxBytes
+     *            The approximate maximum amount of memory to use for frames
+     */
+    public FrameCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        frames = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * @param key
+     *            The key identifying the view and area of the frame
+     * @param version
+     *            The current version of the image generator's state
+     * @return The cached frame, or <code>null</code> if there isn't one drawn
+     *         from the given version
+     */
+    public synchronized WritableImage get(String key, Object version) {
+        Frame frame = frames.get(key);
+        if (frame != null && frame.version.equals(version)) {
+            return frame.image;
+        }
+        return null;
+    }
+
+    /**
+     * @param key
+     *            The key identifying the view and area of the frame
+     * @return The cached frame drawn from any version, or <code>null</code>
+     *         if there isn't one
+     */
+    public synchronized WritableImage getAnyVersion(String key) {
+        Frame frame = frames.get(key);
+        return frame == null ? null : frame.image;
+    }
+
+    /**
+     * Adds a frame to the cache, replacing any previous frame with the same
+     * key
+     * 
+     * @param key
+     *            The key identifying the view and area of the frame
+     * @param image
+     *            The frame
+     * @param version
+     *            The version of the image generator's state it was drawn from
+     */
+    public synchronized void put(String key, WritableImage image, Object version) {
+        if (image == null || version == null) {
+            return;
+        }
+        Frame frame = new Frame(image, version);
+        Frame previous = frames.put(key, frame);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += frame.bytes;
+        Iterator<Frame> iterator = frames.values().iterator();
+        while (bytes > maxBytes && frames.size() > 1) {
+            bytes -= iterator.next().bytes;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes all cached frames
+     */
+    public synchronized void clear() {
+        frames.clear();
+        bytes = 0L;
+    }
+}
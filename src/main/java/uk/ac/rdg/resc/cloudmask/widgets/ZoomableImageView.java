@@ -29,7 +29,12 @@
 package uk.ac.rdg.resc.cloudmask.widgets;
 
 import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import uk.ac.rdg.resc.cloudmask.profiling.Timings;
+import uk.ac.rdg.resc.cloudmask.profiling.Timings.Stage;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import javafx.concurrent.Task;
 import javafx.concurrent.WorkerStateEvent;
@@ -115,6 +120,61 @@ public class ZoomableImageView extends ImageView {
     private Task<Boolean> regenerationTask = null;
     private int touchCount = 0;
 
+    /** A cache of rendered frames, or <code>null</code> if they aren't cached */
+    private FrameCache frameCache = null;
+    /**
+     * Whether the {@link ImageGenerator} has been changed since the image was
+     * last updated
+     */
+    private boolean generatorChanged = false;
+    /**
+     * Incremented on every update, so that background renders which have
+     * been overtaken are discarded
+     */
+    private int renderGeneration = 0;
+    /**
+     * The pending render of a stale cached frame, or <code>null</code>. This
+     * is cancelled as soon as it is overtaken.
+     */
+    private Task<BufferedImage> backgroundRender = null;
+    /**
+     * Renders stale cached frames in the background, for all views. A single
+     * thread is enough, since overtaken renders are cancelled, so flicking
+     * quickly through variables no longer starts a thread for each of them.
+     */
+    private static final ExecutorService backgroundRenderer = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "background-render");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** The time to aim to render each image in whilst it is changing, in ms */
+    private static final long TARGET_RENDER_TIME = 50L;
+    /**
+     * Images requested within this time (in ms) of the last one finishing are
+     * taken to be part of an interaction (e.g. a slider being dragged)
+     */
+    private static final long INTERACTION_INTERVAL = 250L;
+    /** The smallest fraction of the full resolution to render at */
+    private static final double MIN_RENDER_SCALE = 0.25;
+    /**
+     * The fraction of the full resolution which is expected to render in
+     * {@link ZoomableImageView#TARGET_RENDER_TIME}. Adjusted after every
+     * render.
+     */
+    private double interactiveScale = 1.0;
+    /** When the last image finished rendering */
+    private long lastRenderTime = 0L;
+    /**
+     * Regenerates the image at full resolution once an interaction has
+     * finished
+     */
+    private Task<Boolean> refineTask = null;
+
     /**
      * Constructs a new {@link ZoomableImageView}
      * 
@@ -194,8 +254,7 @@ public class ZoomableImageView extends ImageView {
         /*
          * Now generate the initial image to be displayed
          */
-        setImage(SwingFXUtils.toFXImage(
-                imageGenerator.generateImage(minX, minY, maxX, maxY, width, height), null));
+        setImage(toFXImage(imageGenerator.generateImage(minX, minY, maxX, maxY, width, height)));
         setViewport(new Rectangle2D(0, 0, width, height));
 
         setOnTouchPressed(new EventHandler<TouchEvent>() {
@@ -536,6 +595,64 @@ public class ZoomableImageView extends ImageView {
      * to allow for dragging
      */
     public void updateImage() {
+        /*
+         * Whilst the image is changing rapidly, render at whatever resolution
+         * keeps up, and then at full resolution once it stops
+         */
+        boolean interactive = System.currentTimeMillis() - lastRenderTime < INTERACTION_INTERVAL;
+        double scale = interactive ? interactiveScale : 1.0;
+        generateImage(scale);
+        if (scale < 1.0) {
+            refineImageIn(INTERACTION_INTERVAL);
+        }
+    }
+
+    /**
+     * Regenerates the image at full resolution after a delay, unless it has
+     * been updated again in the meantime
+     * 
+     * @param delay
+     *            The delay in ms
+     */
+    private void refineImageIn(long delay) {
+        if (refineTask != null) {
+            refineTask.cancel();
+        }
+        refineTask = new Task<Boolean>() {
+            @Override
+            protected Boolean call() throws Exception {
+                Thread.sleep(delay);
+                return true;
+            }
+        };
+        refineTask.setOnSucceeded(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                if (System.currentTimeMillis() - lastRenderTime >= INTERACTION_INTERVAL) {
+                    /*
+                     * This isn't part of the interaction, so shouldn't make
+                     * the next update look like it is
+                     */
+                    long interactionEnd = lastRenderTime;
+                    generateImage(1.0);
+                    lastRenderTime = interactionEnd;
+                } else {
+                    refineImageIn(INTERACTION_INTERVAL);
+                }
+            }
+        });
+        Thread refineThread = new Thread(refineTask);
+        refineThread.setDaemon(true);
+        refineThread.start();
+    }
+
+    /**
+     * Generates the image for the current view
+     * 
+     * @param scale
+     *            The fraction of the full resolution to render at
+     */
+    private void generateImage(double scale) {
         /*
          * Generate an image with a border around it to allow for smooth panning
          */
@@ -568,21 +685,203 @@ public class ZoomableImageView extends ImageView {
          * Calculate the size of the image which needs to be generated, and
          * store for future use
          */
-        currentImageWidth = (int) (width * (maxXBorder - minXBorder) / (maxX - minX));
-        currentImageHeight = (int) (height * (maxYBorder - minYBorder) / (maxY - minY));
+        int renderWidth = Math.max(1, (int) Math.round(width * scale));
+        int renderHeight = Math.max(1, (int) Math.round(height * scale));
+        currentImageWidth = (int) (renderWidth * (maxXBorder - minXBorder) / (maxX - minX));
+        currentImageHeight = (int) (renderHeight * (maxYBorder - minYBorder) / (maxY - minY));
         /*
          * Generate a new BufferedImage and convert it to a WritableImage for
          * display.
          */
         if (imageGenerator != null) {
-            WritableImage fxImage = SwingFXUtils.toFXImage(imageGenerator.generateImage(minXBorder,
-                    minYBorder, maxXBorder, maxYBorder, currentImageWidth, currentImageHeight),
-                    null);
-            double xoff = (minX - minXBorder) * width / (maxX - minX);
-            double yoff = (maxYBorder - maxY) * (height) / (maxY - minY);
-            setImage(fxImage);
-            setViewport(new Rectangle2D(xoff, yoff, width, height));
+            long start = System.nanoTime();
+            WritableImage fxImage = generateFrame();
+            double xoff = (minX - minXBorder) * renderWidth / (maxX - minX);
+            double yoff = (maxYBorder - maxY) * (renderHeight) / (maxY - minY);
+            if (fxImage != null) {
+                setImage(fxImage);
+            }
+            setViewport(new Rectangle2D(xoff, yoff, renderWidth, renderHeight));
+            adjustInteractiveScale(scale, (System.nanoTime() - start) / 1000000.0);
+        }
+        lastRenderTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Updates the resolution to render at during interactions, based on how
+     * long a render took.
+     * 
+     * @param scale
+     *            The fraction of the full resolution which was rendered
+     * @param renderTime
+     *            The time it took, in ms
+     */
+    private void adjustInteractiveScale(double scale, double renderTime) {
+        /*
+         * Rendering time is roughly proportional to the number of pixels. Don't
+         * increase too quickly, since very fast renders are likely to have
+         * come from a cache.
+         */
+        double target = scale * Math.sqrt(TARGET_RENDER_TIME / Math.max(renderTime, 1.0));
+        target = Math.min(target, 2.0 * interactiveScale);
+        interactiveScale = Math.max(MIN_RENDER_SCALE, Math.min(1.0, target));
+    }
+
+    /**
+     * Sets a cache of rendered frames. Frames are cached under the ID of this
+     * view and the area they cover, so each view sharing the cache must have a
+     * different ID. Only frames from {@link ImageGenerator}s which implement
+     * {@link FrameCache.Versioned} are cached.
+     * 
+     * @param frameCache
+     *            The {@link FrameCache} to use, or <code>null</code> not to
+     *            cache frames
+     */
+    public void setFrameCache(FrameCache frameCache) {
+        this.frameCache = frameCache;
+    }
+
+    /**
+     * Changes the {@link ImageGenerator} used to generate images, keeping the
+     * current view of the image. This does not update the image.
+     * 
+     * When the image is next updated, a cached frame will be displayed if
+     * there is one. If it is out of date, the image will then be regenerated
+     * in the background.
+     * 
+     * @param imageGenerator
+     *            The new {@link ImageGenerator}. This must have the same
+     *            bounds as the current one
+     */
+    public void setImageGenerator(ImageGenerator imageGenerator) {
+        if (!hasSameBounds(imageGenerator)) {
+            throw new IllegalArgumentException(
+                    "Replacement ImageGenerator must have the same bounds");
+        }
+        this.imageGenerator = imageGenerator;
+        generatorChanged = true;
+        nextRenderGeneration();
+    }
+
+    /**
+     * Starts a new render generation, cancelling any background render of
+     * the previous one
+     * 
+     * @return The new generation
+     */
+    private int nextRenderGeneration() {
+        if (backgroundRender != null) {
+            /*
+             * Not interrupted if it has already started, since interrupting
+             * a read would close the file it is reading from. Its result is
+             * discarded.
+             */
+            backgroundRender.cancel(false);
+            backgroundRender = null;
+        }
+        return ++renderGeneration;
+    }
+
+    /**
+     * @return Whether the image from the given {@link ImageGenerator} can be
+     *         displayed in this view, using
+     *         {@link ZoomableImageView#setImageGenerator(ImageGenerator)}
+     */
+    public boolean hasSameBounds(ImageGenerator imageGenerator) {
+        return imageGenerator.getMinValidX() == minXBound
+                && imageGenerator.getMaxValidX() == maxXBound
+                && imageGenerator.getMinValidY() == minYBound
+                && imageGenerator.getMaxValidY() == maxYBound;
+    }
+
+    /**
+     * Generates the image for the current borders, using a cached frame if
+     * possible
+     * 
+     * @return The image, or <code>null</code> if a cached frame is being
+     *         displayed whilst it is regenerated in the background
+     */
+    private WritableImage generateFrame() {
+        int generation = nextRenderGeneration();
+        boolean switched = generatorChanged;
+        generatorChanged = false;
+        if (frameCache == null || !(imageGenerator instanceof FrameCache.Versioned)) {
+            return toFXImage(imageGenerator.generateImage(minXBorder, minYBorder, maxXBorder,
+                    maxYBorder, currentImageWidth, currentImageHeight));
+        }
+
+        String key = getId() + "/" + minXBorder + "," + minYBorder + "," + maxXBorder + ","
+                + maxYBorder + "/" + currentImageWidth + "x" + currentImageHeight;
+        /*
+         * Take the version first, so that a change part way through a render
+         * leaves the frame stale rather than wrong
+         */
+        Object version = ((FrameCache.Versioned) imageGenerator).getFrameVersion();
+        WritableImage frame = frameCache.get(key, version);
+        if (frame != null) {
+            return frame;
         }
+        if (switched) {
+            WritableImage staleFrame = frameCache.getAnyVersion(key);
+            if (staleFrame != null) {
+                /*
+                 * Show what we have straight away, and bring it up to date in
+                 * the background
+                 */
+                setImage(staleFrame);
+                regenerateInBackground(generation, key, version);
+                return null;
+            }
+        }
+        frame = toFXImage(imageGenerator.generateImage(minXBorder, minYBorder, maxXBorder,
+                maxYBorder, currentImageWidth, currentImageHeight));
+        frameCache.put(key, frame, version);
+        return frame;
+    }
+
+    private void regenerateInBackground(final int generation, final String key,
+            final Object version) {
+        final ImageGenerator generator = imageGenerator;
+        final double minX = minXBorder;
+        final double minY = minYBorder;
+        final double maxX = maxXBorder;
+        final double maxY = maxYBorder;
+        final int imageWidth = currentImageWidth;
+        final int imageHeight = currentImageHeight;
+        final Task<BufferedImage> renderTask = new Task<BufferedImage>() {
+            @Override
+            protected BufferedImage call() throws Exception {
+                if (isCancelled()) {
+                    return null;
+                }
+                return generator.generateImage(minX, minY, maxX, maxY, imageWidth, imageHeight);
+            }
+        };
+        renderTask.setOnSucceeded(new EventHandler<WorkerStateEvent>() {
+            @Override
+            public void handle(WorkerStateEvent event) {
+                if (backgroundRender == renderTask) {
+                    backgroundRender = null;
+                }
+                if (renderTask.getValue() == null) {
+                    return;
+                }
+                WritableImage frame = toFXImage(renderTask.getValue());
+                frameCache.put(key, frame, version);
+                if (generation == renderGeneration) {
+                    setImage(frame);
+                }
+            }
+        });
+        backgroundRender = renderTask;
+        backgroundRenderer.execute(renderTask);
+    }
+
+    private WritableImage toFXImage(BufferedImage image) {
+        long start = Timings.start();
+        WritableImage fxImage = SwingFXUtils.toFXImage(image, null);
+        Timings.record(Stage.TO_FX_IMAGE, getId() == null ? "unnamed" : getId(), start);
+        return fxImage;
     }
 
     /**
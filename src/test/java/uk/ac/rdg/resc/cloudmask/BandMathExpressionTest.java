@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BandMathExpressionTest {
+    @Test
+    public void testArithmetic() {
+        BandMathExpression expression = new BandMathExpression("(b4 - b5) / (b4 + b5)");
+        assertArrayEquals(new String[] { "b4", "b5" }, expression.getVariables());
+        assertEquals(0.5f, expression.evaluate(3f, 1f), 1e-6f);
+        assertTrue(Float.isNaN(expression.evaluate(Float.NaN, 1f)));
+
+        assertEquals(-7f, new BandMathExpression("1 + 2 * -4").evaluate(), 0f);
+        assertEquals(-4f, new BandMathExpression("-2^2").evaluate(), 0f);
+        assertEquals(2f, new BandMathExpression("2^3^0").evaluate(), 0f);
+        assertEquals(3f, new BandMathExpression("max(abs(x), sqrt(9))").evaluate(-2f), 0f);
+        assertEquals(-273.15f, new BandMathExpression("t - 273.15").evaluate(0f), 1e-4f);
+    }
+
+    @Test
+    public void testConditions() {
+        BandMathExpression expression = new BandMathExpression(
+                "(b4 - b5) / (b4 + b5) > 0.1 ? b7 : NaN");
+        assertArrayEquals(new String[] { "b4", "b5", "b7" }, expression.getVariables());
+        assertEquals(7f, expression.evaluate(3f, 1f, 7f), 0f);
+        assertTrue(Float.isNaN(expression.evaluate(1f, 3f, 7f)));
+        /*
+         * Missing values make the condition missing
+         */
+        assertTrue(Float.isNaN(expression.evaluate(Float.NaN, 3f, 7f)));
+
+        BandMathExpression logic = new BandMathExpression("a >= 1 && !(b == 2) || a < 0");
+        assertEquals(1f, logic.evaluate(1f, 3f), 0f);
+        assertEquals(0f, logic.evaluate(1f, 2f), 0f);
+        assertEquals(1f, logic.evaluate(-1f, 2f), 0f);
+        assertEquals(1f, new BandMathExpression("a != 1").evaluate(2f), 0f);
+    }
+
+    @Test
+    public void testMissingValues() {
+        /*
+         * Math.pow(NaN, 0) is 1, but a missing input should still give a
+         * missing output
+         */
+        assertTrue(Float.isNaN(new BandMathExpression("a ^ 0").evaluate(Float.NaN)));
+        assertTrue(Float.isNaN(new BandMathExpression("1 ^ a").evaluate(Float.NaN)));
+        assertTrue(Float.isNaN(new BandMathExpression("NaN ^ 0").evaluate()));
+        assertEquals(1f, new BandMathExpression("a ^ 0").evaluate(3f), 0f);
+    }
+
+    @Test
+    public void testConstants() {
+        /*
+         * Folded constants which are then needed as whole rows
+         */
+        assertEquals(5f, new BandMathExpression("2 + 3").evaluate(), 0f);
+        assertEquals(4f, new BandMathExpression("(2 + 3) - a").evaluate(1f), 0f);
+        assertEquals(6f, new BandMathExpression("a > 0 ? -(2 * 3) : 6").evaluate(-1f), 0f);
+        assertEquals(-6f, new BandMathExpression("a > 0 ? -(2 * 3) : 6").evaluate(1f), 0f);
+        assertEquals(8f, new BandMathExpression("1 ? 2 ^ 3 : a").evaluate(0f), 0f);
+        assertEquals(2f, new BandMathExpression("min(2, a)").evaluate(3f), 0f);
+    }
+
+    @Test
+    public void testQuotedNames() {
+        BandMathExpression expression = new BandMathExpression("\"b4-median3x3\" - b4");
+        assertArrayEquals(new String[] { "b4-median3x3", "b4" }, expression.getVariables());
+        assertEquals(1f, expression.evaluate(3f, 2f), 0f);
+    }
+
+    @Test
+    public void testRows() {
+        BandMathExpression expression = new BandMathExpression("a * 2 + b > 4 ? a : b");
+        float[][] rows = new float[][] { { 1f, 2f, 3f, Float.NaN }, { 1f, 1f, 1f, 1f } };
+        float[] out = new float[4];
+        expression.evaluateRow(rows, 4, out);
+        assertEquals(1f, out[0], 0f);
+        assertEquals(2f, out[1], 0f);
+        assertEquals(3f, out[2], 0f);
+        assertTrue(Float.isNaN(out[3]));
+
+        /*
+         * Longer rows than before
+         */
+        rows = new float[][] { new float[100], new float[100] };
+        rows[0][99] = 5f;
+        out = new float[100];
+        expression.evaluateRow(rows, 100, out);
+        assertEquals(0f, out[0], 0f);
+        assertEquals(5f, out[99], 0f);
+    }
+
+    @Test
+    public void testInvalidExpressions() {
+        String[] invalid = new String[] { "", "a +", "(a", "a b", "foo(a)", "min(a)", "\"a",
+                "a ? b", "1.2.3" };
+        for (String text : invalid) {
+            try {
+                new BandMathExpression(text);
+                fail("\"" + text + "\" should not compile");
+            } catch (IllegalArgumentException e) {
+                assertNotNull(e.getMessage());
+            }
+        }
+    }
+}
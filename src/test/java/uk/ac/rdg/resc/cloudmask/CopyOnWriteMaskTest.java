@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CopyOnWriteMaskTest {
+
+    @Test
+    public void testGetSet() {
+        CopyOnWriteMask mask = new CopyOnWriteMask(100, 150);
+        assertNull(mask.get(0, 0));
+        assertEquals(CopyOnWriteMask.UNSET, mask.getByte(99, 149));
+
+        mask.set(3, 10, 20);
+        mask.set(1, 99, 149);
+        assertEquals(3, mask.get(10, 20).intValue());
+        assertEquals(1, mask.getByte(99, 149));
+        assertNull(mask.get(20, 10));
+
+        mask.set(null, 10, 20);
+        assertNull(mask.get(10, 20));
+    }
+
+    @Test
+    public void testSnapshotIsolation() {
+        CopyOnWriteMask mask = new CopyOnWriteMask(200, 200);
+        mask.set(2, 5, 5);
+        mask.set(4, 150, 150);
+
+        CopyOnWriteMask.Snapshot snapshot = mask.snapshot();
+        assertEquals(2, snapshot.getByte(5, 5));
+        assertEquals(4, snapshot.get(150, 150).intValue());
+
+        /*
+         * Writes after the snapshot (to existing tiles, empty tiles, and
+         * unsetting values) must not be visible in the snapshot
+         */
+        mask.set(0, 5, 5);
+        mask.set(5, 100, 10);
+        mask.set(null, 150, 150);
+        assertEquals(0, mask.getByte(5, 5));
+        assertEquals(5, mask.getByte(100, 10));
+        assertNull(mask.get(150, 150));
+
+        assertEquals(2, snapshot.getByte(5, 5));
+        assertNull(snapshot.get(100, 10));
+        assertEquals(4, snapshot.getByte(150, 150));
+
+        /*
+         * A second snapshot sees the new state, and is independent of the
+         * first
+         */
+        CopyOnWriteMask.Snapshot second = mask.snapshot();
+        mask.set(1, 5, 5);
+        assertEquals(0, second.getByte(5, 5));
+        assertEquals(2, snapshot.getByte(5, 5));
+        assertEquals(1, mask.getByte(5, 5));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotImmutable() {
+        new CopyOnWriteMask(10, 10).snapshot().set(1, 0, 0);
+    }
+}
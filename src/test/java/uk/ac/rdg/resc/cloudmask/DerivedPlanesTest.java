@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class DerivedPlanesTest {
+    /**
+     * A graph of "a" and "b" (original variables), "sum" = a + b, "mask" =
+     * sum &gt; 3, and "other" = b * 2. Counts the planes generated.
+     */
+    private static class CountingGenerator implements DerivedPlanes.Generator {
+        final Map<String, AtomicInteger> generated = new ConcurrentHashMap<>();
+        final Map<String, String[]> sources = new HashMap<>();
+        DerivedPlanes planes;
+        float a = 1f;
+        float b = 2f;
+
+        CountingGenerator() {
+            sources.put("sum", new String[] { "a", "b" });
+            sources.put("mask", new String[] { "sum" });
+            sources.put("other", new String[] { "b" });
+        }
+
+        @Override
+        public boolean isDerived(String varId) {
+            return sources.containsKey(varId);
+        }
+
+        @Override
+        public String[] getSources(String varId) {
+            return sources.containsKey(varId) ? sources.get(varId) : new String[0];
+        }
+
+        @Override
+        public FloatArray4D generate(String varId, int t) throws IOException {
+            generated.putIfAbsent(varId, new AtomicInteger());
+            generated.get(varId).incrementAndGet();
+            float value;
+            if ("sum".equals(varId)) {
+                value = a + b;
+            } else if ("mask".equals(varId)) {
+                value = planes.get("sum", t).getFloat(0, 0) > 3f ? 1f : 0f;
+            } else {
+                value = b * 2;
+            }
+            float[] values = new float[4];
+            Arrays.fill(values, value);
+            return FloatArray4D.wrap(2, 2, values);
+        }
+
+        int count(String varId) {
+            return generated.containsKey(varId) ? generated.get(varId).get() : 0;
+        }
+    }
+
+    @Test
+    public void testGeneratesEachPlaneOnce() throws IOException {
+        CountingGenerator generator = new CountingGenerator();
+        DerivedPlanes planes = new DerivedPlanes(Long.MAX_VALUE, generator);
+        generator.planes = planes;
+
+        assertEquals(0f, planes.get("mask", 0).getFloat(1, 1), 0f);
+        assertEquals(0f, planes.get("mask", 0).getFloat(1, 1), 0f);
+        assertEquals(3f, planes.get("sum", 0).getFloat(0, 1), 0f);
+        assertEquals(1, generator.count("mask"));
+        assertEquals(1, generator.count("sum"));
+        assertEquals(4 * 4 * 2, planes.getSize());
+
+        /*
+         * Timesteps are separate planes
+         */
+        planes.get("sum", 1);
+        assertEquals(2, generator.count("sum"));
+    }
+
+    @Test
+    public void testInvalidatesDownstreamOnly() throws IOException {
+        CountingGenerator generator = new CountingGenerator();
+        DerivedPlanes planes = new DerivedPlanes(Long.MAX_VALUE, generator);
+        generator.planes = planes;
+        planes.get("mask", 0);
+        planes.get("other", 0);
+
+        generator.a = 5f;
+        planes.invalidate("a");
+        assertNull(planes.getIfPresent("mask", 0));
+        assertNotNull(planes.getIfPresent("other", 0));
+        assertEquals(1f, planes.get("mask", 0).getFloat(0, 0), 0f);
+        assertEquals(7f, planes.get("sum", 0).getFloat(0, 0), 0f);
+        planes.get("other", 0);
+        assertEquals(2, generator.count("mask"));
+        assertEquals(2, generator.count("sum"));
+        assertEquals(1, generator.count("other"));
+
+        planes.invalidate("mask");
+        planes.get("mask", 0);
+        assertEquals(3, generator.count("mask"));
+        assertEquals(2, generator.count("sum"));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        CountingGenerator generator = new CountingGenerator();
+        DerivedPlanes planes = new DerivedPlanes(4 * 4 * 2, generator);
+        generator.planes = planes;
+        planes.get("sum", 0);
+        planes.get("other", 0);
+        planes.get("sum", 0);
+        planes.get("mask", 0);
+        assertEquals(4 * 4 * 2, planes.getSize());
+        /*
+         * "other" was the least recently used, so was evicted
+         */
+        planes.get("sum", 0);
+        planes.get("other", 0);
+        assertEquals(1, generator.count("sum"));
+        assertEquals(2, generator.count("other"));
+    }
+
+    @Test
+    public void testSharesConcurrentGeneration() throws Exception {
+        final CountingGenerator generator = new CountingGenerator() {
+            @Override
+            public FloatArray4D generate(String varId, int t) throws IOException {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.generate(varId, t);
+            }
+        };
+        final DerivedPlanes planes = new DerivedPlanes(Long.MAX_VALUE, generator);
+        generator.planes = planes;
+        Thread[] threads = new Thread[4];
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        planes.get("mask", 0);
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(1, generator.count("mask"));
+        assertEquals(1, generator.count("sum"));
+    }
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class DirtyRegionsTest {
+    @Test
+    public void testOnlyEditedRangesAreDirty() {
+        DirtyRegions regions = new DirtyRegions(16);
+        long start = regions.getVersion();
+        regions.edited(0, 10, 10);
+        regions.edited(0, 12, 11);
+        assertEquals(start + 2, regions.getVersion());
+
+        assertTrue(regions.isEdited(start, 0, 0, 0, 10, 10));
+        assertTrue(regions.isEdited(start, 0, 12, 11, 20, 20));
+        assertFalse(regions.isEdited(start, 0, 20, 0, 30, 30));
+        /*
+         * Other timesteps are unaffected
+         */
+        assertFalse(regions.isEdited(start, 1, 0, 0, 30, 30));
+        /*
+         * Nothing has changed since the latest version
+         */
+        assertFalse(regions.isEdited(regions.getVersion(), 0, 0, 0, 30, 30));
+
+        long middle = regions.edited(0, 100, 100);
+        regions.edited(0, 200, 200);
+        assertFalse(regions.isEdited(middle, 0, 90, 90, 110, 110));
+        assertTrue(regions.isEdited(middle, 0, 190, 190, 210, 210));
+    }
+
+    @Test
+    public void testForgottenEditsAreDirty() {
+        DirtyRegions regions = new DirtyRegions(1);
+        long start = regions.getVersion();
+        for (int i = 0; i < 1000; i++) {
+            regions.edited(0, i * 10, 0);
+        }
+        /*
+         * The first edits have been forgotten, so everything is dirty
+         */
+        assertTrue(regions.isEdited(start, 0, 5000, 5000, 5001, 5001));
+        long recent = regions.getVersion() - 1;
+        assertFalse(regions.isEdited(recent, 0, 0, 0, 100, 100));
+
+        long beforeAll = regions.getVersion();
+        regions.editedAll();
+        assertTrue(regions.isEdited(beforeAll, 3, 0, 0, 0, 0));
+        assertFalse(regions.isEdited(regions.getVersion(), 3, 0, 0, 0, 0));
+    }
+}
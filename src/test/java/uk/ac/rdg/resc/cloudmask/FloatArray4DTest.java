@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+public class FloatArray4DTest {
+    private static final float DELTA = 1e-6f;
+
+    @Test
+    public void testWrap() {
+        float[] values = new float[] { 1f, 2f, 3f, 4f, 5f, Float.NaN };
+        FloatArray4D array = FloatArray4D.wrap(2, 3, values);
+        assertEquals(3, array.getXSize());
+        assertEquals(2, array.getYSize());
+        assertTrue(Float.isNaN(array.getFloat(1, 2)));
+        assertEquals(2f, array.getFloat(0, 1), DELTA);
+        assertEquals(4f, array.get(0, 0, 1, 0).floatValue(), DELTA);
+
+        float[] row = new float[3];
+        array.readRow(1, row);
+        assertArrayEquals(new float[] { 4f, 5f, Float.NaN }, row, DELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrapTooFewValues() {
+        FloatArray4D.wrap(2, 3, new float[5]);
+    }
+
+    @Test
+    public void testReadRowFromBoxedArray() {
+        Array4D<Number> array = new Array4D<Number>(1, 1, 1, 3) {
+            @Override
+            public Number get(int... coords) {
+                return coords[3] == 1 ? null : coords[3];
+            }
+
+            @Override
+            public void set(Number value, int... coords) {
+            }
+        };
+        float[] row = new float[3];
+        FloatArray4D.readRow(array, 0, row);
+        assertArrayEquals(new float[] { 0f, Float.NaN, 2f }, row, DELTA);
+    }
+
+    @Test
+    public void testPluginArray() {
+        FloatArray4D a = FloatArray4D.wrap(2, 2, new float[] { 1f, 2f, 3f, 4f });
+        FloatArray4D b = FloatArray4D.wrap(2, 2, new float[] { 10f, 20f, 30f, Float.NaN });
+        FloatRowPlugin sum = new FloatRowPlugin() {
+            @Override
+            public void evaluateRow(float[][] sourceRows, int length, float[] out) {
+                for (int i = 0; i < length; i++) {
+                    out[i] = sourceRows[0][i] + sourceRows[1][i];
+                }
+            }
+        };
+        FloatArray4D array = new PluginFloatArray4D(sum, new FloatArray4D[] { a, b }, 2, 2);
+
+        /*
+         * Single values and whole rows must agree
+         */
+        float[] row = new float[2];
+        for (int y = 0; y < 2; y++) {
+            array.readRow(y, row);
+            for (int x = 0; x < 2; x++) {
+                assertEquals(row[x], array.getFloat(y, x), DELTA);
+            }
+        }
+        assertEquals(22f, array.getFloat(0, 1), DELTA);
+        assertTrue(Float.isNaN(array.getFloat(1, 1)));
+    }
+
+    @Test
+    public void testSubsetAndMaterialise() throws Exception {
+        /*
+         * Large enough to be materialised in parallel
+         */
+        final int size = 300;
+        FloatArray4D array = new FloatArray4D(size, size) {
+            @Override
+            public float getFloat(int y, int x) {
+                return y * 1000 + x;
+            }
+        };
+        FloatArray4D materialised = FloatArray4D.materialise(array);
+        for (int y = 0; y < size; y += 7) {
+            for (int x = 0; x < size; x += 13) {
+                assertEquals(y * 1000 + x, materialised.getFloat(y, x), DELTA);
+            }
+        }
+
+        assertSame(materialised, FloatArray4D.subset(materialised, 0, size - 1, 0, size - 1));
+        FloatArray4D subset = FloatArray4D.subset(materialised, 10, 12, 0, size - 1);
+        assertEquals(3, subset.getYSize());
+        float[] row = new float[size];
+        subset.readRow(2, row);
+        assertEquals(12000f, row[0], DELTA);
+        assertEquals(12299f, row[size - 1], DELTA);
+        subset = FloatArray4D.subset(materialised, 5, 6, 20, 22);
+        assertEquals(3, subset.getXSize());
+        assertEquals(6022f, subset.getFloat(1, 2), DELTA);
+    }
+}
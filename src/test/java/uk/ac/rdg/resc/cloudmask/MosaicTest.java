@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class MosaicTest {
+
+    @Test
+    public void testReadRelativeAndAxis() throws Exception {
+        File file = File.createTempFile("granules", Mosaic.EXTENSION);
+        try {
+            try (PrintWriter writer = new PrintWriter(file)) {
+                writer.println("# A comment");
+                writer.println("axis=x");
+                writer.println();
+                writer.println("granule1.nc");
+                writer.println("/data/granule2.nc");
+            }
+            Mosaic mosaic = Mosaic.read(file);
+            assertFalse(mosaic.isAlongY());
+            assertEquals(2, mosaic.getGranules().size());
+            assertEquals(new File(file.getParentFile(), "granule1.nc").getPath(), mosaic
+                    .getGranules().get(0));
+            assertEquals(new File("/data/granule2.nc").getPath(), mosaic.getGranules().get(1));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFromGranulesOrdersByName() throws Exception {
+        File dir = new File("data");
+        File g1 = new File(dir, "scene_0100.nc");
+        File g2 = new File(dir, "scene_0200.nc");
+        Mosaic created = Mosaic.fromGranules(Arrays.asList(g2, g1));
+        assertTrue(created.isAlongY());
+        assertEquals(Arrays.asList(g1.getAbsolutePath(), g2.getAbsolutePath()),
+                created.getGranules());
+        assertEquals("scene_0100" + Mosaic.EXTENSION, created.getDefaultFileName());
+        assertTrue(Mosaic.isMosaic(created.getDefaultFileName()));
+        /*
+         * The granules are absolute, so the mosaic can be written anywhere
+         */
+        File mosaicFile = File.createTempFile("granules", Mosaic.EXTENSION);
+        try {
+            created.write(mosaicFile);
+            Mosaic mosaic = Mosaic.read(mosaicFile);
+            assertTrue(mosaic.isAlongY());
+            assertEquals(created.getGranules(), mosaic.getGranules());
+        } finally {
+            mosaicFile.delete();
+        }
+    }
+
+    @Test
+    public void testConcatenate() {
+        FloatArray4D a = FloatArray4D.wrap(2, 2, new float[] { 1, 2, 3, 4 });
+        FloatArray4D b = FloatArray4D.wrap(1, 2, new float[] { 5, 6 });
+
+        FloatArray4D alongY = FloatArray4D.concatenate(new FloatArray4D[] { a, b }, true);
+        assertEquals(3, alongY.getYSize());
+        assertEquals(2, alongY.getXSize());
+        assertEquals(6f, alongY.getFloat(2, 1), 0f);
+        float[] row = new float[2];
+        alongY.readRow(1, row);
+        assertArrayEquals(new float[] { 3, 4 }, row, 0f);
+
+        FloatArray4D c = FloatArray4D.wrap(2, 1, new float[] { 7, 8 });
+        FloatArray4D alongX = FloatArray4D.concatenate(new FloatArray4D[] { a, c }, false);
+        assertEquals(2, alongX.getYSize());
+        assertEquals(3, alongX.getXSize());
+        row = new float[3];
+        alongX.readRow(1, row);
+        assertArrayEquals(new float[] { 3, 4, 8 }, row, 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConcatenateMismatchedSizes() {
+        FloatArray4D a = FloatArray4D.wrap(2, 2, new float[] { 1, 2, 3, 4 });
+        FloatArray4D b = FloatArray4D.wrap(1, 2, new float[] { 5, 6 });
+        FloatArray4D.concatenate(new FloatArray4D[] { a, b }, false);
+    }
+}
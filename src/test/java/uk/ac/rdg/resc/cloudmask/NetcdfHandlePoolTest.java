@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import ucar.nc2.dataset.NetcdfDataset;
+
+public class NetcdfHandlePoolTest {
+
+    @Test
+    public void testReusesHandles() throws Exception {
+        File file = File.createTempFile("synthetic-scene", ".nc");
+        try {
+            new SyntheticSceneGenerator(20, 10, 1, 1234L).write(file);
+            NetcdfHandlePool pool = new NetcdfHandlePool(file.getAbsolutePath(), 1);
+
+            /*
+             * Concurrent users get their own handles
+             */
+            NetcdfDataset nc1 = pool.acquire();
+            NetcdfDataset nc2 = pool.acquire();
+            assertNotSame(nc1, nc2);
+            assertNotNull(nc1.findVariable(SyntheticSceneGenerator.channelName(1)));
+
+            /*
+             * Only one is kept once they are released
+             */
+            pool.release(nc1);
+            pool.release(nc2);
+            assertEquals(1, pool.getIdleCount());
+            assertSame(nc1, pool.acquire());
+            assertEquals(0, pool.getIdleCount());
+            pool.release(nc1);
+
+            pool.close();
+            assertEquals(0, pool.getIdleCount());
+            try {
+                pool.acquire();
+                fail("Acquired a handle from a closed pool");
+            } catch (IOException e) {
+                /*
+                 * Expected
+                 */
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
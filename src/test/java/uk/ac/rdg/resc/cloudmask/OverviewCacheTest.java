@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.cloudmask.OverviewCache.RowReader;
+
+public class OverviewCacheTest {
+    private static final int X_SIZE = 10;
+    private static final int Y_SIZE = 7;
+
+    /**
+     * Reads from data whose value at (y, x) is y * 100 + x, except for every
+     * 5th column which is missing, counting the rows read
+     */
+    private static class CountingReader implements RowReader {
+        int rows = 0;
+
+        @Override
+        public FloatArray4D read(int ymin, int ymax) throws IOException {
+            int ySize = ymax - ymin + 1;
+            rows += ySize;
+            float[] values = new float[ySize * X_SIZE];
+            for (int y = 0; y < ySize; y++) {
+                for (int x = 0; x < X_SIZE; x++) {
+                    values[y * X_SIZE + x] = x % 5 == 4 ? Float.NaN : (ymin + y) * 100 + x;
+                }
+            }
+            return FloatArray4D.wrap(ySize, X_SIZE, values);
+        }
+    }
+
+    @Test
+    public void testMean() throws IOException {
+        float[] values = OverviewCache.downsample(new CountingReader(), Y_SIZE, X_SIZE, 2,
+                false);
+        assertEquals(4 * 5, values.length);
+        assertEquals(50.5f, values[0], 1e-4f);
+        /*
+         * Missing values are left out of the mean
+         */
+        assertEquals(55f, values[2], 1e-4f);
+        /*
+         * Partial blocks at the edges
+         */
+        assertEquals(608f, values[3 * 5 + 4], 1e-4f);
+    }
+
+    @Test
+    public void testNearest() throws IOException {
+        CountingReader reader = new CountingReader();
+        float[] values = OverviewCache.downsample(reader, Y_SIZE, X_SIZE, 4, true);
+        assertEquals(2 * 3, values.length);
+        assertEquals(202f, values[0], 0f);
+        assertEquals(206f, values[1], 0f);
+        /*
+         * The edges use the last row/column
+         */
+        assertTrue(Float.isNaN(values[2]));
+        assertEquals(606f, values[4], 0f);
+        /*
+         * Only one row is read for each row of the overview
+         */
+        assertEquals(2, reader.rows);
+    }
+
+    @Test
+    public void testCachesAndPersists() throws IOException {
+        File directory = File.createTempFile("overviews", "");
+        directory.delete();
+        directory.mkdir();
+        try {
+            OverviewCache cache = new OverviewCache(Long.MAX_VALUE, directory, Long.MAX_VALUE);
+            CountingReader reader = new CountingReader();
+            FloatArray4D overview = cache.get("var", Y_SIZE, X_SIZE, 2, false, reader);
+            assertEquals(4, overview.getYSize());
+            assertEquals(5, overview.getXSize());
+            assertEquals(Y_SIZE, reader.rows);
+            assertEquals(4 * 4 * 5, cache.getSize());
+
+            cache.get("var", Y_SIZE, X_SIZE, 2, false, reader);
+            assertEquals(Y_SIZE, reader.rows);
+
+            /*
+             * A new cache reads the overview back from disk
+             */
+            OverviewCache newCache = new OverviewCache(Long.MAX_VALUE, directory, Long.MAX_VALUE);
+            FloatArray4D persisted = newCache.get("var", Y_SIZE, X_SIZE, 2, false, reader);
+            assertEquals(Y_SIZE, reader.rows);
+            for (int y = 0; y < 4; y++) {
+                for (int x = 0; x < 5; x++) {
+                    assertEquals(overview.getFloat(y, x), persisted.getFloat(y, x), 0f);
+                }
+            }
+
+            /*
+             * But other overviews are still built
+             */
+            newCache.get("other", Y_SIZE, X_SIZE, 2, false, reader);
+            assertEquals(2 * Y_SIZE, reader.rows);
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testLimits() throws IOException {
+        File directory = File.createTempFile("overviews", "");
+        directory.delete();
+        directory.mkdir();
+        try {
+            /*
+             * Room for one factor-2 overview (80 bytes) in memory, and for
+             * two on disk
+             */
+            OverviewCache cache = new OverviewCache(100, directory, 250);
+            assertTrue(cache.fits(Y_SIZE, X_SIZE, 2));
+            assertFalse(cache.fits(Y_SIZE, X_SIZE, 1));
+
+            CountingReader reader = new CountingReader();
+            assertFalse(cache.isAvailable("a"));
+            cache.get("a", Y_SIZE, X_SIZE, 2, false, reader);
+            assertTrue(cache.isAvailable("a"));
+            cache.get("b", Y_SIZE, X_SIZE, 2, false, reader);
+            assertEquals(4 * 4 * 5, cache.getSize());
+
+            /*
+             * Anything too large to keep is not kept, and leaves the others
+             */
+            cache.get("full", Y_SIZE, X_SIZE, 1, false, reader);
+            assertEquals(4 * 4 * 5, cache.getSize());
+
+            /*
+             * It isn't written to disk either
+             */
+            assertEquals(2, directory.listFiles().length);
+
+            /*
+             * Reading "b" back from disk marks it as used, so "a" is the one
+             * deleted when "c" is written
+             */
+            cache.clear();
+            long now = System.currentTimeMillis();
+            for (File file : directory.listFiles()) {
+                file.setLastModified(now - 10000);
+            }
+            cache.get("b", Y_SIZE, X_SIZE, 2, false, reader);
+            int rows = reader.rows;
+            cache.get("c", Y_SIZE, X_SIZE, 2, false, reader);
+            assertEquals(2, directory.listFiles().length);
+            cache.clear();
+            assertFalse(cache.isAvailable("a"));
+            assertTrue(cache.isAvailable("b"));
+            assertTrue(cache.isAvailable("c"));
+            cache.get("b", Y_SIZE, X_SIZE, 2, false, reader);
+            assertEquals(rows + Y_SIZE, reader.rows);
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+}
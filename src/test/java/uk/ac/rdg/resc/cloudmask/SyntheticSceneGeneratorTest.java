@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.cloudmask.CloudMaskDatasetFactory.MaskedDataset;
+import uk.ac.rdg.resc.edal.domain.Extent;
+
+public class SyntheticSceneGeneratorTest {
+
+    @Test
+    public void testDeterministic() throws Exception {
+        File file1 = File.createTempFile("synthetic-scene", ".nc");
+        File file2 = File.createTempFile("synthetic-scene", ".nc");
+        File file3 = File.createTempFile("synthetic-scene", ".nc");
+        try {
+            new SyntheticSceneGenerator(100, 80, 3, 1234L).write(file1);
+            new SyntheticSceneGenerator(100, 80, 3, 1234L).write(file2);
+            new SyntheticSceneGenerator(100, 80, 3, 4321L).write(file3);
+
+            byte[] bytes1 = Files.readAllBytes(file1.toPath());
+            assertTrue(Arrays.equals(bytes1, Files.readAllBytes(file2.toPath())));
+            assertFalse(Arrays.equals(bytes1, Files.readAllBytes(file3.toPath())));
+        } finally {
+            file1.delete();
+            file2.delete();
+            file3.delete();
+        }
+    }
+
+    @Test
+    public void testLoadsWithMasks() throws Exception {
+        File file = File.createTempFile("synthetic-scene", ".nc");
+        try {
+            SyntheticSceneGenerator generator = new SyntheticSceneGenerator(100, 80, 4, 1234L);
+            generator.setIncludeMasks(true);
+            generator.write(file);
+
+            MaskedDataset dataset = new CloudMaskDatasetFactory().createDataset("test",
+                    file.getAbsolutePath(), false);
+            for (int c = 1; c <= 4; c++) {
+                assertTrue(dataset.getOriginalVariableNames().contains(
+                        SyntheticSceneGenerator.channelName(c)));
+            }
+
+            Extent<Double> threshold = dataset.getMaskThreshold(SyntheticSceneGenerator
+                    .channelName(1));
+            double[] expected = SyntheticSceneGenerator.getThreshold(1);
+            assertEquals(expected[0], threshold.getLow(), 1e-6);
+            assertEquals(expected[1], threshold.getHigh(), 1e-6);
+
+            assertEquals(3, dataset.getMaskedVariables().length);
+        } finally {
+            file.delete();
+        }
+    }
+}
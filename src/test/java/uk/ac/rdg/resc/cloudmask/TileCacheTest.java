@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.cloudmask.TileCache.TileReader;
+
+public class TileCacheTest {
+    private static final int X_SIZE = 100;
+    private static final int Y_SIZE = 70;
+
+    /**
+     * Reads from a variable whose value at (y, x) is y * 1000 + x, counting
+     * the tiles read
+     */
+    private static class CountingReader implements TileReader {
+        int reads = 0;
+
+        @Override
+        public float[] read(int ymin, int ymax, int xmin, int xmax) throws IOException {
+            reads++;
+            float[] values = new float[(ymax - ymin + 1) * (xmax - xmin + 1)];
+            int i = 0;
+            for (int y = ymin; y <= ymax; y++) {
+                for (int x = xmin; x <= xmax; x++) {
+                    values[i++] = y * 1000 + x;
+                }
+            }
+            return values;
+        }
+    }
+
+    @Test
+    public void testAssemblesRangeAcrossTiles() throws IOException {
+        TileCache cache = new TileCache(Long.MAX_VALUE);
+        CountingReader reader = new CountingReader();
+        FloatArray4D values = cache.read("var", Y_SIZE, X_SIZE, 32, 32, reader, 20, 69, 25, 99);
+        assertEquals(50, values.getYSize());
+        assertEquals(75, values.getXSize());
+        /*
+         * 3 rows of tiles by 4 columns, including the partial tiles at the
+         * edges
+         */
+        assertEquals(12, reader.reads);
+
+        float[] row = new float[75];
+        for (int y = 0; y < 50; y++) {
+            values.readRow(y, row);
+            for (int x = 0; x < 75; x++) {
+                float expected = (y + 20) * 1000 + (x + 25);
+                assertEquals(expected, values.getFloat(y, x), 0f);
+                assertEquals(expected, row[x], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void testReusesTiles() throws IOException {
+        TileCache cache = new TileCache(Long.MAX_VALUE);
+        CountingReader reader = new CountingReader();
+        cache.read("var", Y_SIZE, X_SIZE, 32, 32, reader, 0, 31, 0, 40);
+        assertEquals(2, reader.reads);
+        /*
+         * Panning right only needs the newly visible tile
+         */
+        cache.read("var", Y_SIZE, X_SIZE, 32, 32, reader, 0, 31, 10, 70);
+        assertEquals(3, reader.reads);
+        /*
+         * Other variables have their own tiles
+         */
+        cache.read("other", Y_SIZE, X_SIZE, 32, 32, reader, 0, 31, 10, 70);
+        assertEquals(6, reader.reads);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        /*
+         * Room for exactly 2 full tiles
+         */
+        TileCache cache = new TileCache(2 * 32 * 32 * 4);
+        CountingReader reader = new CountingReader();
+        cache.read("var", Y_SIZE, X_SIZE, 32, 32, reader, 0, 0, 0, 0);
+        cache.read("var", Y_SIZE, X_SIZE, 32, 32, reader, 0, 0, 32, 32);
+        cache.read("var", Y_SIZE, X_SIZE, 32, 32, reader, 0, 0, 0, 0);
+        assertEquals(2, reader.reads);
+        assertEquals(2 * 32 * 32 * 4, cache.getSize());
+
+        /*
+         * This evicts the second tile, since the first was used more recently
+         */
+        cache.read("var", Y_SIZE, X_SIZE, 32, 32, reader, 32, 32, 0, 0);
+        assertEquals(3, reader.reads);
+        cache.read("var", Y_SIZE, X_SIZE, 32, 32, reader, 0, 0, 0, 0);
+        assertEquals(3, reader.reads);
+        cache.read("var", Y_SIZE, X_SIZE, 32, 32, reader, 0, 0, 32, 32);
+        assertEquals(4, reader.reads);
+    }
+
+    @Test
+    public void testTileSize() {
+        assertEquals(TileCache.DEFAULT_TILE_SIZE, TileCache.getTileSize(0, 10000));
+        assertEquals(512, TileCache.getTileSize(512, 10000));
+        /*
+         * Small chunks are grouped, but tiles stay aligned to them
+         */
+        assertEquals(150, TileCache.getTileSize(50, 10000));
+        assertEquals(128, TileCache.getTileSize(1, 10000));
+        assertEquals(70, TileCache.getTileSize(512, 70));
+    }
+}
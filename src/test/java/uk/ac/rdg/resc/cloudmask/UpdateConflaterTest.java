@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+public class UpdateConflaterTest {
+    private static class QueueExecutor implements Executor {
+        List<Runnable> queue = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            queue.add(command);
+        }
+
+        void runAll() {
+            List<Runnable> toRun = new ArrayList<>(queue);
+            queue.clear();
+            for (Runnable r : toRun) {
+                r.run();
+            }
+        }
+    }
+
+    private static Runnable record(final List<String> log, final String value) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(value);
+            }
+        };
+    }
+
+    @Test
+    public void testOnlyLatestValuesAreApplied() {
+        QueueExecutor executor = new QueueExecutor();
+        UpdateConflater conflater = new UpdateConflater(executor);
+        List<String> log = new ArrayList<>();
+
+        conflater.submit("a", record(log, "a1"));
+        conflater.submit("render", record(log, "render1"));
+        conflater.submit("b", record(log, "b1"));
+        conflater.submit("a", record(log, "a2"));
+        conflater.submit("render", record(log, "render2"));
+        /*
+         * Only one task is queued however many updates there are
+         */
+        assertEquals(1, executor.queue.size());
+        assertTrue(conflater.isPending());
+
+        executor.runAll();
+        /*
+         * The render was resubmitted after a2, so runs after it
+         */
+        assertEquals(3, log.size());
+        assertEquals("b1", log.get(0));
+        assertEquals("a2", log.get(1));
+        assertEquals("render2", log.get(2));
+        assertFalse(conflater.isPending());
+
+        conflater.submit("a", record(log, "a3"));
+        assertEquals(1, executor.queue.size());
+        executor.runAll();
+        assertEquals("a3", log.get(3));
+    }
+
+    @Test
+    public void testFlushAndClear() {
+        QueueExecutor executor = new QueueExecutor();
+        UpdateConflater conflater = new UpdateConflater(executor);
+        List<String> log = new ArrayList<>();
+
+        conflater.submit("a", record(log, "a1"));
+        conflater.flush();
+        assertEquals(1, log.size());
+        /*
+         * The queued task now has nothing to do
+         */
+        executor.runAll();
+        assertEquals(1, log.size());
+
+        conflater.submit("a", record(log, "a2"));
+        conflater.clear();
+        executor.runAll();
+        assertEquals(1, log.size());
+        assertFalse(conflater.isPending());
+    }
+}
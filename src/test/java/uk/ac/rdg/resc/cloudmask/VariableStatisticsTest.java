@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cloudmask;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+
+public class VariableStatisticsTest {
+    private static final double DELTA = 1e-3;
+
+    @Test
+    public void testSummary() {
+        float[] values = new float[] { 1f, 2f, Float.NaN, 3f, 4f, 5f };
+        VariableStatistics stats = VariableStatistics.fromValues(values, values.length);
+        assertEquals(5, stats.getCount());
+        assertEquals(1f, stats.getMin(), DELTA);
+        assertEquals(5f, stats.getMax(), DELTA);
+        assertEquals(3.0, stats.getMean(), DELTA);
+        assertEquals(Math.sqrt(2.0), stats.getStddev(), DELTA);
+
+        int total = 0;
+        for (int count : stats.getHistogram()) {
+            total += count;
+        }
+        assertEquals(5, total);
+    }
+
+    @Test
+    public void testRobustRangeIgnoresOutliers() {
+        float[] values = new float[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i / 10f;
+        }
+        values[0] = -10000f;
+        values[999] = 10000f;
+        VariableStatistics stats = VariableStatistics.fromValues(values, values.length);
+
+        Extent<Float> range = stats.getValueRange();
+        assertEquals(-10000f, range.getLow(), DELTA);
+        assertEquals(10000f, range.getHigh(), DELTA);
+
+        /*
+         * The 2% and 98% points lie 2% of the way from 1.9 to 2.0, and from
+         * 97.9 to 98.0
+         */
+        Extent<Float> robust = stats.getRobustRange();
+        assertEquals(1.998f, robust.getLow(), 1e-4f);
+        assertEquals(97.902f, robust.getHigh(), 1e-4f);
+    }
+
+    @Test
+    public void testPercentilesOfUnorderedData() {
+        /*
+         * A shuffled permutation of 0-9999, with duplicates and NaNs
+         */
+        float[] values = new float[20000];
+        for (int i = 0; i < 10000; i++) {
+            values[i] = (i * 7919) % 10000;
+            values[10000 + i] = i % 2 == 0 ? Float.NaN : (i * 4987) % 10000;
+        }
+        VariableStatistics stats = VariableStatistics.fromValues(values, values.length);
+        assertEquals(15000, stats.getCount());
+
+        /*
+         * The same values in order: 0-9999, and the odd values again
+         */
+        float[] sorted = new float[15000];
+        for (int i = 0; i < 10000; i++) {
+            sorted[i] = i;
+        }
+        for (int i = 0; i < 5000; i++) {
+            sorted[10000 + i] = 2 * i + 1;
+        }
+        Arrays.sort(sorted);
+        assertEquals(expectedPercentile(sorted, 2.0), stats.getLowPercentile(), 1e-3f);
+        assertEquals(expectedPercentile(sorted, 98.0), stats.getHighPercentile(), 1e-3f);
+    }
+
+    private static float expectedPercentile(float[] sorted, double percentile) {
+        double rank = (sorted.length - 1) * percentile / 100.0;
+        int k = (int) rank;
+        return (float) (sorted[k] + (rank - k) * (sorted[k + 1] - sorted[k]));
+    }
+
+    @Test
+    public void testDegenerateData() {
+        VariableStatistics empty = VariableStatistics.fromValues(new float[] { Float.NaN }, 1);
+        assertEquals(0, empty.getCount());
+        assertEquals(0f, empty.getValueRange().getLow(), DELTA);
+        assertEquals(1f, empty.getValueRange().getHigh(), DELTA);
+
+        VariableStatistics constant = VariableStatistics.fromValues(new float[] { 7f, 7f, 7f },
+                3);
+        assertEquals(0.0, constant.getStddev(), DELTA);
+        assertTrue(constant.getValueRange().getLow() < 7f);
+        assertTrue(constant.getValueRange().getHigh() > 7f);
+        assertEquals(7f, constant.getLowPercentile(), DELTA);
+        assertEquals(7f, constant.getHighPercentile(), DELTA);
+    }
+}